@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.HttpRequestMethod;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.http.impl.Http1Impl;
+import nl.hpfxd.vihttp.http.impl.Http1InputBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading responses with the buffered parser against the byte-at-a-time parser it replaced.
+ * Run with {@code mvn -P benchmark test-compile exec:exec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    private static final int RESPONSES = 16;
+    private static final Http1Impl HTTP_1 = new Http1Impl();
+
+    @Param({"0", "1024", "65536"})
+    public int bodyLength;
+
+    private byte[] responses;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < RESPONSES; i++) {
+            out.write(("HTTP/1.1 200 OK\r\n"
+                    + "Date: Mon, 01 Jun 2020 12:00:00 GMT\r\n"
+                    + "Server: nginx/1.18.0\r\n"
+                    + "Content-Type: application/json; charset=utf-8\r\n"
+                    + "Content-Length: " + this.bodyLength + "\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "Cache-Control: private, max-age=0\r\n"
+                    + "ETag: \"5ed4ee00-400\"\r\n"
+                    + "Vary: Accept-Encoding\r\n"
+                    + "X-Request-Id: 6f9619ff-8b86-d011-b42d-00cf4fc964ff\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (int j = 0; j < this.bodyLength; j++) out.write('a' + j % 26);
+        }
+        this.responses = out.toByteArray();
+    }
+
+    @Benchmark
+    public int buffered() throws IOException {
+        // ByteArrayInputStream locks on every read, like a socket stream
+        Http1InputBuffer in = new Http1InputBuffer(new ByteArrayInputStream(this.responses));
+        int total = 0;
+        for (int i = 0; i < RESPONSES; i++) {
+            ViHttpResponse response = HTTP_1.getResponse(in, HttpRequestMethod.GET, false);
+            total += response.getStatusCode() + response.getHeaders().size();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int byteAtATime() throws IOException {
+        InputStream in = new ByteArrayInputStream(this.responses);
+        int total = 0;
+        for (int i = 0; i < RESPONSES; i++) {
+            int statusCode = Integer.parseInt(readLine(in).split(" ")[1]);
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (String header = readLine(in); header.length() > 0; header = readLine(in)) {
+                int pos = header.indexOf(":");
+                headers.put(header.substring(0, pos), header.substring(pos + 2));
+            }
+            byte[] body = new byte[Integer.parseInt(headers.get("Content-Length"))];
+            for (int j = 0; j < body.length; j++) body[j] = (byte) in.read();
+            total += statusCode + headers.size() + new String(body, StandardCharsets.UTF_8).length();
+        }
+        return total;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int c = in.read(); c != '\n' && c != -1; c = in.read()) {
+            if (c != '\r') line.write(c);
+        }
+        return line.toString("UTF-8");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -19,9 +19,10 @@
 package nl.hpfxd.vihttp;
 
 import lombok.Data;
+import lombok.ToString;
 
 @Data
 public class ViAuthentication {
     private final String username;
-    private final String password;
+    @ToString.Exclude private final String password;
 }
@@ -19,34 +19,68 @@
 package nl.hpfxd.vihttp;
 
 import lombok.Getter;
-import lombok.Setter;
 import lombok.SneakyThrows;
+import nl.hpfxd.vihttp.cache.ResponseCache;
+import nl.hpfxd.vihttp.dns.CachingResolver;
+import nl.hpfxd.vihttp.dns.Resolver;
+import nl.hpfxd.vihttp.http.HedgingPolicy;
 import nl.hpfxd.vihttp.http.HttpCompressionScheme;
 import nl.hpfxd.vihttp.http.HttpRequestMethod;
 import nl.hpfxd.vihttp.http.HttpVersion;
+import nl.hpfxd.vihttp.http.RequestCoalescer;
+import nl.hpfxd.vihttp.http.RetryPolicy;
 import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.network.CircuitBreakerPolicy;
 import nl.hpfxd.vihttp.network.ConnectionManager;
-import nl.hpfxd.vihttp.network.ViHttpConnection;
+import nl.hpfxd.vihttp.network.RateLimitPolicy;
 import nl.hpfxd.vihttp.proxy.ViProxy;
+import nl.hpfxd.vihttp.proxy.ViProxyPool;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ViHttpClient {
     @Getter private final ConnectionManager connectionManager;
-    @Getter @Setter private HttpVersion httpVersion = HttpVersion.HTTP_1;
+    @Getter private HttpVersion httpVersion = HttpVersion.HTTP_1;
     @Getter private ViProxy proxy;
+    @Getter private ViProxyPool proxyPool;
     @Getter private String userAgent = "ViHttp Client";
     @Getter private long timeout = 30000;
+    @Getter private long connectTimeout = 10000;
     private final List<HttpCompressionScheme> compressionSchemes = new ArrayList<>();
     @Getter private boolean connectionReuseEnabled = true;
     @Getter private boolean pipeliningEnabled = false;
+    @Getter private int maxPipelineDepth = 8;
+    @Getter private int maxConnectionsPerRoute = 16;
+    @Getter private long connectionAcquireTimeout = 30000;
+    @Getter private long connectionIdleTimeout = 60000;
+    @Getter private boolean nioEnabled = false;
+    @Getter private int ioThreads = Runtime.getRuntime().availableProcessors();
+    @Getter private Resolver resolver = new CachingResolver(Resolver.SYSTEM);
+    @Getter private ResponseCache cache = null;
+    @Getter private RequestCoalescer coalescer = null;
+    @Getter private RetryPolicy retryPolicy = null;
+    @Getter private HedgingPolicy hedgingPolicy = null;
+    @Getter private CircuitBreakerPolicy circuitBreakerPolicy = null;
+    @Getter private RateLimitPolicy rateLimitPolicy = null;
+    private SSLContext sslContext = null;
+    @Getter private int tlsSessionCacheSize = 20480;
+    @Getter private int tlsSessionTimeout = 86400;
+    private Executor executor = null;
+    private ExecutorService defaultExecutor = null;
 
     public ViHttpClient() {
-        this.connectionManager = new ConnectionManager();
+        this.connectionManager = new ConnectionManager(this);
     }
 
     public ViHttpRequest request(HttpRequestMethod method, URL url) {
@@ -99,6 +133,93 @@ public class ViHttpClient {
      */
     public ViHttpClient setProxy(ViProxy proxy) {
         this.proxy = proxy;
+        this.proxyPool = null;
+        return this;
+    }
+
+    /**
+     * Set the pool of proxies to be used for requests by this client, every request picks one when it's sent.
+     * Use {@code null} to not set a default proxy.
+     * @param proxyPool the proxy pool
+     */
+    public ViHttpClient setProxy(ViProxyPool proxyPool) {
+        this.proxy = null;
+        this.proxyPool = proxyPool;
+        return this;
+    }
+
+    /**
+     * Set the cache that answers requests with stored responses while they're fresh, and stores new responses.
+     * Use {@code null} to not cache responses, which is the default.
+     * @param cache the cache
+     */
+    public ViHttpClient setCache(ResponseCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Set the coalescer that lets identical GET and HEAD requests sent at the same time share one exchange.
+     * Use {@code null} to send every request, which is the default.
+     * @param coalescer the coalescer
+     */
+    public ViHttpClient setCoalescer(RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+        return this;
+    }
+
+    /**
+     * Set the policy that decides whether failed requests are sent again, and when.
+     * Use {@code null} to not retry requests, which is the default.
+     * Idempotent requests are always sent again once when a pooled connection turns out to be closed by the server.
+     * @param retryPolicy the retry policy
+     */
+    public ViHttpClient setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Set the policy that sends copies of slow idempotent requests, answering with the first response.
+     * Use {@code null} to not hedge requests, which is the default.
+     * @param hedgingPolicy the hedging policy
+     */
+    public ViHttpClient setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * Use a circuit breaker for every route, so requests to a failing host fail fast with a
+     * {@link nl.hpfxd.vihttp.exception.CircuitOpenException} instead of waiting for timeouts.
+     * Use {@code null} to not use circuit breakers, which is the default.
+     * @param circuitBreakerPolicy the circuit breaker policy
+     */
+    public ViHttpClient setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+        return this;
+    }
+
+    /**
+     * Set the rate and concurrency limits applied to the requests to every route.
+     * Requests wait for the limits before a connection is leased, and the wait counts towards their deadline.
+     * Use {@code null} to not limit requests, which is the default.
+     * @param rateLimitPolicy the rate limit policy
+     */
+    public ViHttpClient setRateLimitPolicy(RateLimitPolicy rateLimitPolicy) {
+        this.rateLimitPolicy = rateLimitPolicy;
+        return this;
+    }
+
+    /**
+     * Set the HTTP version to be used for requests.
+     * With {@link HttpVersion#HTTP_2}, HTTPS connections offer h2 through ALPN and fall back to HTTP/1.1
+     * if the server doesn't select it. With {@link HttpVersion#HTTP_2_PRIOR_KNOWLEDGE}, plain HTTP connections
+     * start speaking HTTP/2 right away. Connections using NIO always use HTTP/1.1, except prior knowledge ones.
+     * @param httpVersion the HTTP version
+     */
+    public ViHttpClient setHttpVersion(HttpVersion httpVersion) {
+        this.httpVersion = httpVersion;
         return this;
     }
 
@@ -120,6 +241,16 @@ public class ViHttpClient {
         return this;
     }
 
+    /**
+     * Set how long opening a connection may take, across all addresses of the host.
+     * @param connectTimeout the timeout in milliseconds, or 0 to wait for the operating system to give up
+     */
+    public ViHttpClient setConnectTimeout(long connectTimeout) {
+        if (connectTimeout < 0) throw new IllegalArgumentException("connectTimeout can't be negative");
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
     /**
      * Get the enabled compression schemes.
      * @return an unmodifiable list of enabled compression schemes
@@ -166,7 +297,8 @@ public class ViHttpClient {
     /**
      * Allow pipelining.
      * This allows multiple requests to be sent at once, then be read FIFO.
-     * This will only take effect if multiple threads are making requests to a host at once.
+     * This will only take effect if multiple threads are making requests to a host at once,
+     * and only once the maximum amount of connections to the host are open.
      */
     public ViHttpClient enablePipelining() {
         this.pipeliningEnabled = true;
@@ -181,7 +313,177 @@ public class ViHttpClient {
         return this;
     }
 
+    /**
+     * Set the maximum amount of requests that may be waiting for a response on a single connection when pipelining.
+     * @param maxPipelineDepth the maximum pipeline depth
+     */
+    public ViHttpClient setMaxPipelineDepth(int maxPipelineDepth) {
+        if (maxPipelineDepth < 1) throw new IllegalArgumentException("maxPipelineDepth must be at least 1");
+        this.maxPipelineDepth = maxPipelineDepth;
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of connections that may be open to a single route (host, port, TLS and proxy).
+     * Requests wait for a connection to be released once this many connections are leased.
+     * @param maxConnectionsPerRoute the maximum amount of connections
+     */
+    public ViHttpClient setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        if (maxConnectionsPerRoute < 1) throw new IllegalArgumentException("maxConnectionsPerRoute must be at least 1");
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    /**
+     * Set how long a request may wait for a connection when the pool for its route is exhausted.
+     * @param connectionAcquireTimeout the timeout in milliseconds
+     */
+    public ViHttpClient setConnectionAcquireTimeout(long connectionAcquireTimeout) {
+        this.connectionAcquireTimeout = connectionAcquireTimeout;
+        return this;
+    }
+
+    /**
+     * Set how long a pooled connection may stay unused before it is closed.
+     * @param connectionIdleTimeout the timeout in milliseconds
+     */
+    public ViHttpClient setConnectionIdleTimeout(long connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+        return this;
+    }
+
+    /**
+     * Use non-blocking connections driven by a small fixed set of I/O threads.
+     * Waiting for a response then no longer ties up a thread per connection, only the caller of {@code send()}.
+     * Pipelining is not supported on non-blocking connections.
+     */
+    public ViHttpClient enableNio() {
+        this.nioEnabled = true;
+        return this;
+    }
+
+    /**
+     * Use a blocking socket for each connection.
+     */
+    public ViHttpClient disableNio() {
+        this.nioEnabled = false;
+        return this;
+    }
+
+    /**
+     * Set the amount of I/O threads used for non-blocking connections.
+     * This only takes effect before the first non-blocking connection is opened.
+     * @param ioThreads the amount of threads
+     */
+    public ViHttpClient setIoThreads(int ioThreads) {
+        if (ioThreads < 1) throw new IllegalArgumentException("ioThreads must be at least 1");
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    /**
+     * Set the resolver used to look up hosts when opening connections.
+     * By default this is the JVM's resolver with a {@link CachingResolver} in front of it.
+     * @param resolver the resolver
+     */
+    public ViHttpClient setResolver(Resolver resolver) {
+        if (resolver == null) throw new IllegalArgumentException("resolver can't be null");
+        this.resolver = resolver;
+        return this;
+    }
+
+    /**
+     * Get the TLS context connections are opened with.
+     * Unless one was set, every client has its own context with the default trust store,
+     * so its session cache isn't shared with other clients.
+     * @return the context
+     */
+    public synchronized SSLContext getSSLContext() throws IOException {
+        if (this.sslContext == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                this.sslContext = context;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to create a TLS context.", e);
+            }
+            this.configureSessionCache();
+        }
+        return this.sslContext;
+    }
+
+    /**
+     * Set the TLS context connections are opened with, for example to trust other certificates.
+     * The session cache settings of this client are applied to it.
+     * @param sslContext the context, or {@code null} to use the default
+     */
+    public synchronized ViHttpClient setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        if (sslContext != null) this.configureSessionCache();
+        return this;
+    }
+
+    /**
+     * Set how many TLS sessions are cached for resumption.
+     * Resuming a session skips the key exchange and certificate checks of a full handshake when a new connection is opened.
+     * @param tlsSessionCacheSize the maximum amount of sessions, or 0 for no limit
+     */
+    public synchronized ViHttpClient setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        if (tlsSessionCacheSize < 0) throw new IllegalArgumentException("tlsSessionCacheSize can't be negative");
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+        if (this.sslContext != null) this.configureSessionCache();
+        return this;
+    }
+
+    /**
+     * Set how long cached TLS sessions may be resumed.
+     * @param tlsSessionTimeout the timeout in seconds, or 0 for no limit
+     */
+    public synchronized ViHttpClient setTlsSessionTimeout(int tlsSessionTimeout) {
+        if (tlsSessionTimeout < 0) throw new IllegalArgumentException("tlsSessionTimeout can't be negative");
+        this.tlsSessionTimeout = tlsSessionTimeout;
+        if (this.sslContext != null) this.configureSessionCache();
+        return this;
+    }
+
+    private void configureSessionCache() {
+        SSLSessionContext sessions = this.sslContext.getClientSessionContext();
+        if (sessions == null) return;
+        sessions.setSessionCacheSize(this.tlsSessionCacheSize);
+        sessions.setSessionTimeout(this.tlsSessionTimeout);
+    }
+
+    /**
+     * Get the executor used by {@link ViHttpRequest#sendAsync()}.
+     * Unless one was set, this is a cached pool of daemon threads created on first use.
+     * @return the executor
+     */
+    public synchronized Executor getExecutor() {
+        if (this.executor != null) return this.executor;
+        if (this.defaultExecutor == null) {
+            this.defaultExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "ViHttp Async Thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.defaultExecutor;
+    }
+
+    /**
+     * Set the executor used by {@link ViHttpRequest#sendAsync()}.
+     * Use {@code null} to use the default executor.
+     * @param executor the executor
+     */
+    public synchronized ViHttpClient setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
     public void shutdown() {
-        this.connectionManager.getConnections().values().forEach(ViHttpConnection::close);
+        this.connectionManager.shutdown();
+        synchronized (this) {
+            if (this.defaultExecutor != null) this.defaultExecutor.shutdown();
+        }
     }
 }
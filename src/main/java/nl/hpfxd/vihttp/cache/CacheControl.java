@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.cache;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The directives of a Cache-Control header.
+ */
+class CacheControl {
+    static final CacheControl EMPTY = new CacheControl(new HashMap<>());
+
+    private final Map<String, String> directives;
+
+    private CacheControl(Map<String, String> directives) {
+        this.directives = directives;
+    }
+
+    /**
+     * Parse a Cache-Control header, such as {@code max-age=60, no-cache="Set-Cookie"}.
+     * @param header the header value, or {@code null}
+     * @return the directives, with lower case names
+     */
+    static CacheControl parse(String header) {
+        if (header == null || header.isEmpty()) return EMPTY;
+        Map<String, String> directives = new HashMap<>();
+        int i = 0;
+        while (i < header.length()) {
+            int end = i;
+            while (end < header.length() && header.charAt(end) != ',' && header.charAt(end) != '=') end++;
+            String name = header.substring(i, end).trim().toLowerCase(Locale.ROOT);
+            String value = null;
+            if (end < header.length() && header.charAt(end) == '=') {
+                int start = end + 1;
+                if (start < header.length() && header.charAt(start) == '"') {
+                    end = header.indexOf('"', start + 1);
+                    if (end == -1) end = header.length();
+                    value = header.substring(start + 1, end);
+                    while (end < header.length() && header.charAt(end) != ',') end++;
+                } else {
+                    end = start;
+                    while (end < header.length() && header.charAt(end) != ',') end++;
+                    value = header.substring(start, end).trim();
+                }
+            }
+            if (!name.isEmpty()) directives.putIfAbsent(name, value);
+            i = end + 1;
+        }
+        return new CacheControl(directives);
+    }
+
+    boolean has(String directive) {
+        return this.directives.containsKey(directive);
+    }
+
+    /**
+     * Get a directive with a delta-seconds value, such as max-age.
+     * @param directive the directive
+     * @param valueless the value to use if the directive has no value
+     * @return the value in milliseconds, or -1 if the directive is missing or invalid
+     */
+    long seconds(String directive, long valueless) {
+        if (!this.directives.containsKey(directive)) return -1;
+        String value = this.directives.get(directive);
+        if (value == null) return valueless;
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : Math.min(seconds, Long.MAX_VALUE / 1000) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse an HTTP date, such as {@code Sun, 06 Nov 1994 08:49:37 GMT}.
+     * @param date the date, or {@code null}
+     * @return the date in milliseconds since the epoch, or -1 if it's missing or invalid
+     */
+    static long parseDate(String date) {
+        if (date == null) return -1;
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.cache;
+
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A stored response, with what's needed to calculate its age and freshness (RFC 7234 section 4.2).
+ */
+class CacheEntry {
+    private static final long HEADER_OVERHEAD = 64;
+    /**
+     * Headers of a 304 response that describe the message rather than the stored representation.
+     */
+    private static final Set<String> UNMERGED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "transfer-encoding", "content-length", "content-encoding", "content-range"));
+
+    final String key;
+    final int statusCode;
+    final Map<String, String> headers;
+    final String body;
+    /**
+     * The body as stored by a {@link DiskCache}, instead of {@link #body}.
+     */
+    final ByteBuffer bodyBuffer;
+    final Map<String, String> trailers;
+    /**
+     * The values of the request headers the response varies on, by lower case name, {@code null} if it wasn't sent.
+     */
+    final Map<String, String> varyValues;
+    final long requestTime;
+    final long responseTime;
+    final CacheControl cacheControl;
+    final long size;
+
+    CacheEntry(String key, ViHttpResponse response, Map<String, String> varyValues, long requestTime, long responseTime) {
+        this.key = key;
+        this.statusCode = response.getStatusCode();
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.headers.putAll(response.getHeaders());
+        this.body = response.getBody();
+        this.bodyBuffer = null;
+        Map<String, String> trailers = response.getTrailers();
+        if (trailers == null || trailers.isEmpty()) {
+            this.trailers = Collections.emptyMap();
+        } else {
+            this.trailers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            this.trailers.putAll(trailers);
+        }
+        this.varyValues = varyValues;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.cacheControl = CacheControl.parse(this.headers.get("Cache-Control"));
+        this.size = this.estimateSize();
+    }
+
+    /**
+     * Create the entry for a stored response that was revalidated by a 304 Not Modified response,
+     * with its headers updated by those of the 304 response (RFC 7234 section 4.3.4).
+     */
+    CacheEntry(CacheEntry stored, Map<String, String> notModifiedHeaders, long requestTime, long responseTime) {
+        this.key = stored.key;
+        this.statusCode = stored.statusCode;
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.headers.putAll(stored.headers);
+        for (Map.Entry<String, String> header : notModifiedHeaders.entrySet()) {
+            if (!UNMERGED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) this.headers.put(header.getKey(), header.getValue());
+        }
+        this.body = stored.body;
+        this.bodyBuffer = stored.bodyBuffer;
+        this.trailers = stored.trailers;
+        this.varyValues = stored.varyValues;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.cacheControl = CacheControl.parse(this.headers.get("Cache-Control"));
+        this.size = this.estimateSize();
+    }
+
+    /**
+     * Create an entry read from a {@link DiskCache}.
+     */
+    CacheEntry(String key, int statusCode, Map<String, String> headers, ByteBuffer bodyBuffer, Map<String, String> trailers,
+               Map<String, String> varyValues, long requestTime, long responseTime) {
+        this.key = key;
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = null;
+        this.bodyBuffer = bodyBuffer;
+        this.trailers = trailers;
+        this.varyValues = varyValues;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.cacheControl = CacheControl.parse(this.headers.get("Cache-Control"));
+        this.size = this.estimateSize();
+    }
+
+    /**
+     * Whether the response can be revalidated with a conditional request.
+     * @return if it has an ETag or Last-Modified header
+     */
+    boolean hasValidator() {
+        return this.headers.containsKey("ETag") || this.headers.containsKey("Last-Modified");
+    }
+
+    /**
+     * Get the headers of a conditional request that revalidates the response.
+     * @return If-None-Match for its ETag and If-Modified-Since for its Last-Modified date
+     */
+    Map<String, String> validators() {
+        Map<String, String> validators = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (this.headers.containsKey("ETag")) validators.put("If-None-Match", this.headers.get("ETag"));
+        if (this.headers.containsKey("Last-Modified")) validators.put("If-Modified-Since", this.headers.get("Last-Modified"));
+        return validators;
+    }
+
+    /**
+     * Get how long the response is fresh after it was generated.
+     * @return the freshness lifetime in milliseconds
+     */
+    long freshnessLifetime() {
+        long maxAge = this.cacheControl.seconds("max-age", -1);
+        if (maxAge >= 0) return maxAge;
+
+        long date = this.date();
+        String expires = this.headers.get("Expires");
+        if (expires != null) {
+            long expiresAt = CacheControl.parseDate(expires);
+            return expiresAt == -1 ? 0 : Math.max(0, expiresAt - date); // invalid dates, like "0", are in the past
+        }
+
+        long lastModified = CacheControl.parseDate(this.headers.get("Last-Modified"));
+        if (lastModified != -1 && lastModified < date && ResponseCache.isHeuristicallyCacheable(this.statusCode)) {
+            return (date - lastModified) / 10; // a tenth of the time since the last change, as RFC 7234 section 4.2.2 suggests
+        }
+        return 0;
+    }
+
+    /**
+     * Get the age of the response.
+     * @param now the current time in milliseconds since the epoch
+     * @return the current age in milliseconds
+     */
+    long currentAge(long now) {
+        long apparentAge = Math.max(0, this.responseTime - this.date());
+        long ageValue = 0;
+        String age = this.headers.get("Age");
+        if (age != null) {
+            try {
+                ageValue = Math.max(0, Long.parseLong(age.trim())) * 1000;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        long correctedAge = ageValue + (this.responseTime - this.requestTime);
+        return Math.max(apparentAge, correctedAge) + (now - this.responseTime);
+    }
+
+    /**
+     * Create a response from this entry, with an Age header.
+     * @param now the current time in milliseconds since the epoch
+     * @return the response
+     */
+    ViHttpResponse toResponse(long now) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(this.headers);
+        headers.put("Age", Long.toString(this.currentAge(now) / 1000));
+        if (this.bodyBuffer != null) return new ViHttpResponse(this.statusCode, headers, this.bodyBuffer.duplicate(), this.trailers);
+        return new ViHttpResponse(this.statusCode, headers, this.body, this.trailers);
+    }
+
+    private long date() {
+        long date = CacheControl.parseDate(this.headers.get("Date"));
+        return date == -1 ? this.responseTime : date;
+    }
+
+    /**
+     * Estimate the memory used by this entry, counting two bytes per character. Bodies on disk aren't counted.
+     */
+    private long estimateSize() {
+        long size = HEADER_OVERHEAD + 2L * this.key.length() + (this.body != null ? 2L * this.body.length() : 0);
+        for (Map.Entry<String, String> header : this.headers.entrySet()) {
+            size += HEADER_OVERHEAD + 2L * (header.getKey().length() + header.getValue().length());
+        }
+        for (Map.Entry<String, String> header : this.varyValues.entrySet()) {
+            size += HEADER_OVERHEAD + 2L * (header.getKey().length() + (header.getValue() != null ? header.getValue().length() : 0));
+        }
+        return size;
+    }
+}
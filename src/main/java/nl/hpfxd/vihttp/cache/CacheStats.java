@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.cache;
+
+import lombok.Data;
+
+/**
+ * A snapshot of the state of a {@link ResponseCache}.
+ */
+@Data
+public class CacheStats {
+    /**
+     * The amount of requests that were answered from the cache.
+     */
+    private final long hits;
+    /**
+     * The amount of cacheable requests that had to be sent to the server.
+     */
+    private final long misses;
+    /**
+     * The amount of misses the server answered with 304 Not Modified, so the stored response was used.
+     */
+    private final long revalidations;
+    /**
+     * The amount of entries removed to make room for new ones.
+     */
+    private final long evictions;
+    /**
+     * The amount of cached responses.
+     */
+    private final int entries;
+    /**
+     * The estimated memory used by the cached responses in bytes.
+     */
+    private final long size;
+    private final long maxSize;
+
+    /**
+     * Get the share of cacheable requests that were answered from the cache.
+     * @return the hit ratio between 0 and 1
+     */
+    public double getHitRatio() {
+        long requests = this.hits + this.misses;
+        return requests == 0 ? 0 : (double) this.hits / requests;
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.cache;
+
+import lombok.Getter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Stores responses on disk beneath a {@link ResponseCache}, so they survive restarts.
+ *
+ * Bodies are appended to segment files of a fixed size, which are memory-mapped, so stored bodies are served
+ * straight from the page cache without being copied onto the heap. Every stored response is recorded in an
+ * append-only journal with a checksum. Opening the cache replays the journal to rebuild its index, stopping at a
+ * record that was torn by a crash and skipping entries whose segment is gone, and then compacts it.
+ * Bodies are checked against their checksum the first time they're read.
+ *
+ * Once the segments take more than the maximum size, the oldest segment is dropped. Entries in it that were read
+ * since they were stored get a second chance and are moved to the newest segment first.
+ */
+public class DiskCache implements Closeable {
+    private static final int MAGIC = 0x56694443; // "ViDC"
+    private static final int VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MIN_SEGMENT_SIZE = 4096;
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final Path directory;
+    @Getter private final long maxSize;
+    @Getter private final int segmentSize;
+    private final Map<String, DiskEntry> index = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private FileChannel journal;
+    private int journalRecords = 0;
+    private int nextSegmentId = 0;
+    private Segment active = null;
+
+    /**
+     * Open a disk cache, recovering the responses stored in the directory.
+     * @param directory the directory to store responses in, created if it doesn't exist
+     * @param maxSize the maximum size of the stored bodies in bytes, at least two segments
+     * @see #DiskCache(Path, long, int)
+     */
+    public DiskCache(Path directory, long maxSize) throws IOException {
+        this(directory, maxSize, (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSize / 8)));
+    }
+
+    /**
+     * Open a disk cache, recovering the responses stored in the directory.
+     * @param directory the directory to store responses in, created if it doesn't exist
+     * @param maxSize the maximum size of the stored bodies in bytes, at least two segments
+     * @param segmentSize the size of the segment files in bytes, which is also the largest body that's stored
+     */
+    public DiskCache(Path directory, long maxSize, int segmentSize) throws IOException {
+        if (segmentSize < 1) throw new IllegalArgumentException("segmentSize must be at least 1");
+        if (maxSize < 2L * segmentSize) throw new IllegalArgumentException("maxSize must hold at least two segments");
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        this.recover();
+    }
+
+    /**
+     * Get the amount of stored responses.
+     * @return the amount of entries
+     */
+    public synchronized int getEntryCount() {
+        return this.index.size();
+    }
+
+    /**
+     * Get the space taken by the segment files.
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return (long) this.segments.size() * this.segmentSize;
+    }
+
+    synchronized CacheEntry get(String key) {
+        DiskEntry entry = this.index.get(key);
+        if (entry == null) return null;
+        ByteBuffer body = entry.length == 0 ? ByteBuffer.allocate(0) : null;
+        if (entry.length > 0) {
+            ByteBuffer mapped = this.segments.get(entry.segment).buffer.duplicate();
+            mapped.limit(entry.offset + entry.length).position(entry.offset);
+            body = mapped.slice();
+            if (!entry.verified) {
+                if (checksum(body) != entry.checksum) {
+                    this.remove(key);
+                    return null;
+                }
+                entry.verified = true;
+            }
+        }
+        entry.accessed = true;
+        return new CacheEntry(key, entry.statusCode, entry.headers, body, entry.trailers, entry.varyValues, entry.requestTime, entry.responseTime);
+    }
+
+    /**
+     * Store an entry. Entries that can't be stored, like ones with a body larger than a segment, are dropped.
+     */
+    synchronized void put(CacheEntry entry) {
+        ByteBuffer body = entry.bodyBuffer != null ? entry.bodyBuffer.duplicate()
+                : entry.body != null ? ByteBuffer.wrap(entry.body.getBytes(StandardCharsets.UTF_8)) : null;
+        try {
+            if (this.journal == null || (body != null && body.remaining() > this.segmentSize)) {
+                this.remove(entry.key);
+                return;
+            }
+            DiskEntry stored = new DiskEntry(entry.key, entry.statusCode, entry.headers, entry.trailers, entry.varyValues,
+                    entry.requestTime, entry.responseTime);
+            this.write(stored, body);
+        } catch (IOException e) {
+            this.index.remove(entry.key); // the journal may be behind, which recovery tolerates
+        }
+    }
+
+    /**
+     * Remove the stored response for a key.
+     */
+    synchronized void remove(String key) {
+        DiskEntry entry = this.index.remove(key);
+        if (entry == null) return;
+        this.release(entry);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(REMOVE);
+            out.writeUTF(key);
+            this.append(bytes.toByteArray());
+        } catch (IOException ignored) {
+            // the entry comes back after a restart, where it's still revalidated or expired as usual
+        }
+    }
+
+    /**
+     * Remove all stored responses.
+     */
+    public synchronized void clear() throws IOException {
+        this.index.clear();
+        for (Segment segment : this.segments.values()) Files.deleteIfExists(segment.path);
+        this.segments.clear();
+        this.active = null;
+        this.compactJournal();
+    }
+
+    /**
+     * Write the stored responses and the journal through to the disk.
+     */
+    public synchronized void flush() throws IOException {
+        for (Segment segment : this.segments.values()) segment.buffer.force();
+        if (this.journal != null) this.journal.force(true);
+    }
+
+    /**
+     * Flush and close the cache. Responses are no longer stored, but the ones that were handed out stay readable.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.journal == null) return;
+        this.flush();
+        this.journal.close();
+        this.journal = null;
+    }
+
+    /**
+     * Copy a body into the active segment and record it in the journal.
+     */
+    private void write(DiskEntry entry, ByteBuffer body) throws IOException {
+        int length = body != null ? body.remaining() : -1;
+        while (length > 0 && (this.active == null || this.active.position + length > this.segmentSize)) {
+            this.rollSegment(); // which may fill the new segment with entries that get a second chance
+        }
+        entry.segment = length > 0 ? this.active.id : -1;
+        entry.offset = length > 0 ? this.active.position : 0;
+        entry.length = length;
+        entry.checksum = body != null ? checksum(body) : 0;
+        entry.verified = true;
+        byte[] record = entry.toRecord(); // before writing anything, as headers may be too large to record
+
+        if (length > 0) {
+            ByteBuffer target = this.active.buffer.duplicate();
+            target.position(entry.offset);
+            target.put(body.duplicate());
+            this.active.position += length;
+            this.active.live++;
+        }
+        DiskEntry previous = this.index.put(entry.key, entry);
+        if (previous != null) this.release(previous);
+        this.append(record);
+    }
+
+    /**
+     * Start a new active segment, dropping the oldest segments if the cache grew too large.
+     */
+    private void rollSegment() throws IOException {
+        Segment previous = this.active;
+        this.active = this.openSegment(this.nextSegmentId++);
+        if (previous != null && previous.live == 0) {
+            this.segments.remove(previous.id);
+            Files.deleteIfExists(previous.path);
+        }
+        this.segments.put(this.active.id, this.active);
+        while (this.getSize() > this.maxSize && this.segments.size() > 1) {
+            Segment oldest = this.segments.firstEntry().getValue();
+            List<DiskEntry> entries = new ArrayList<>();
+            for (DiskEntry entry : this.index.values()) {
+                if (entry.segment == oldest.id) entries.add(entry);
+            }
+            for (DiskEntry entry : entries) {
+                boolean fits = this.active.position + entry.length <= this.segmentSize;
+                if (entry.accessed && fits) { // second chance, moved before the segment is gone
+                    ByteBuffer body = oldest.buffer.duplicate();
+                    body.limit(entry.offset + entry.length).position(entry.offset);
+                    entry.accessed = false;
+                    this.write(entry.copy(), body.slice());
+                } else {
+                    this.index.remove(entry.key); // the journal is compacted once its records outnumber the entries
+                }
+            }
+            this.segments.remove(oldest.id);
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    /**
+     * Note that an entry is no longer stored, deleting its segment once nothing in it is used.
+     */
+    private void release(DiskEntry entry) {
+        Segment segment = this.segments.get(entry.segment);
+        if (segment == null || --segment.live > 0 || segment == this.active) return;
+        this.segments.remove(segment.id);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException ignored) {
+            // deleted on the next start, when nothing in the journal refers to it
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = this.directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize)); // stays mapped after closing
+        }
+    }
+
+    private void append(byte[] payload) throws IOException {
+        if (this.journal == null) return;
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt(checksum(ByteBuffer.wrap(payload))).put(payload).flip();
+        while (record.hasRemaining()) this.journal.write(record);
+        if (++this.journalRecords > 2 * this.index.size() + 1024) this.compactJournal();
+    }
+
+    /**
+     * Rebuild the index from the segments and the journal.
+     */
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (Files.size(path) != this.segmentSize) { // from a cache with another segment size
+                    Files.delete(path);
+                    continue;
+                }
+                this.segments.put(id, this.openSegment(id));
+                this.nextSegmentId = Math.max(this.nextSegmentId, id + 1);
+            }
+        }
+
+        Path journalPath = this.directory.resolve("journal");
+        if (Files.exists(journalPath)) this.replay(ByteBuffer.wrap(Files.readAllBytes(journalPath)));
+        this.compactJournal();
+
+        Iterator<Segment> iterator = this.segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.live > 0) continue;
+            iterator.remove();
+            Files.delete(segment.path);
+        }
+    }
+
+    private void replay(ByteBuffer journal) {
+        if (journal.remaining() < 8 || journal.getInt() != MAGIC || journal.getInt() != VERSION) return;
+        while (journal.remaining() >= 8) {
+            int length = journal.getInt();
+            int checksum = journal.getInt();
+            if (length < 0 || length > journal.remaining()) return; // torn by a crash while it was written
+            ByteBuffer payload = journal.slice();
+            payload.limit(length);
+            if (checksum(payload) != checksum) return;
+            journal.position(journal.position() + length);
+
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(), payload.arrayOffset(), length));
+                byte type = in.readByte();
+                if (type == PUT) {
+                    DiskEntry entry = DiskEntry.fromRecord(in);
+                    Segment segment = this.segments.get(entry.segment);
+                    if (entry.length > 0 && (segment == null || entry.offset + entry.length > this.segmentSize)) {
+                        this.forget(this.index.remove(entry.key)); // its body was dropped with the segment
+                        continue;
+                    }
+                    if (segment != null) segment.live++;
+                    this.forget(this.index.put(entry.key, entry));
+                } else if (type == REMOVE) {
+                    this.forget(this.index.remove(in.readUTF()));
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void forget(DiskEntry entry) {
+        Segment segment = entry != null ? this.segments.get(entry.segment) : null;
+        if (segment != null) segment.live--;
+    }
+
+    /**
+     * Rewrite the journal with a record for every stored entry, replacing the old journal atomically.
+     */
+    private void compactJournal() throws IOException {
+        if (this.journal != null) this.journal.close();
+        Path temp = this.directory.resolve("journal.tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            this.journal = out;
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            out.write(header);
+            this.journalRecords = 0;
+            for (DiskEntry entry : new ArrayList<>(this.index.values())) this.append(entry.toRecord());
+            out.force(true);
+        } finally {
+            this.journal = null;
+        }
+        Files.move(temp, this.directory.resolve("journal"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.journal = FileChannel.open(this.directory.resolve("journal"), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.journalRecords = this.index.size();
+    }
+
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int position = 0;
+        private int live = 0;
+
+        private Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The index entry of a stored response, which is what a journal record holds.
+     */
+    private static class DiskEntry {
+        private final String key;
+        private final int statusCode;
+        private final Map<String, String> headers;
+        private final Map<String, String> trailers;
+        private final Map<String, String> varyValues;
+        private final long requestTime;
+        private final long responseTime;
+        private int segment;
+        private int offset;
+        private int length; // -1 without a body
+        private int checksum;
+        private boolean verified = false;
+        private boolean accessed = false;
+
+        private DiskEntry(String key, int statusCode, Map<String, String> headers, Map<String, String> trailers,
+                          Map<String, String> varyValues, long requestTime, long responseTime) {
+            this.key = key;
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.trailers = trailers;
+            this.varyValues = varyValues;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+
+        private DiskEntry copy() {
+            return new DiskEntry(this.key, this.statusCode, this.headers, this.trailers, this.varyValues, this.requestTime, this.responseTime);
+        }
+
+        private byte[] toRecord() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PUT);
+            out.writeUTF(this.key);
+            out.writeInt(this.segment);
+            out.writeInt(this.offset);
+            out.writeInt(this.length);
+            out.writeInt(this.checksum);
+            out.writeLong(this.requestTime);
+            out.writeLong(this.responseTime);
+            out.writeInt(this.statusCode);
+            writeMap(out, this.headers);
+            writeMap(out, this.trailers);
+            writeMap(out, this.varyValues);
+            return bytes.toByteArray();
+        }
+
+        private static DiskEntry fromRecord(DataInputStream in) throws IOException {
+            String key = in.readUTF();
+            int segment = in.readInt();
+            int offset = in.readInt();
+            int length = in.readInt();
+            int checksum = in.readInt();
+            long requestTime = in.readLong();
+            long responseTime = in.readLong();
+            int statusCode = in.readInt();
+            Map<String, String> headers = readMap(in, new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+            Map<String, String> trailers = readMap(in, new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+            Map<String, String> varyValues = readMap(in, new HashMap<>());
+            DiskEntry entry = new DiskEntry(key, statusCode, headers, trailers.isEmpty() ? Collections.emptyMap() : trailers,
+                    varyValues, requestTime, responseTime);
+            entry.segment = segment;
+            entry.offset = offset;
+            entry.length = length;
+            entry.checksum = checksum;
+            return entry;
+        }
+
+        private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+            out.writeInt(map.size());
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue() != null);
+                if (entry.getValue() != null) out.writeUTF(entry.getValue());
+            }
+        }
+
+        private static Map<String, String> readMap(DataInputStream in, Map<String, String> map) throws IOException {
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                map.put(name, in.readBoolean() ? in.readUTF() : null);
+            }
+            return map;
+        }
+    }
+}
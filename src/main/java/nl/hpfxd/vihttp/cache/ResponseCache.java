@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.cache;
+
+import lombok.Getter;
+import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.HttpRequestMethod;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A private HTTP cache in memory, following the caching rules of RFC 7234.
+ *
+ * Responses to GET requests are stored when they're fresh for some time, either explicitly through Cache-Control
+ * or Expires, or heuristically from Last-Modified, or when they can be revalidated. Stored responses are served
+ * while they're fresh and the request headers named by their Vary header match. Once they're stale, requests
+ * ask the server whether they changed with If-None-Match and If-Modified-Since, and a 304 Not Modified response
+ * updates the stored response and serves it. Requests can ask for fresher or allow staler responses
+ * with their own Cache-Control header. Successful unsafe requests, like POST, remove the responses for their URL.
+ *
+ * The cache is bounded by the estimated memory of its responses, evicting the least recently used ones first.
+ * With a {@link DiskCache}, responses are also stored on disk, where they're found after they were evicted
+ * from memory or the application restarted. Streaming responses aren't stored.
+ */
+public class ResponseCache {
+    private final Map<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    @Getter private final long maxSize;
+    private long size = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    @Getter private volatile DiskCache diskCache = null;
+
+    /**
+     * @param maxSize the maximum estimated memory used by cached responses in bytes
+     */
+    public ResponseCache(long maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Also store responses on disk. Responses read from disk aren't kept in memory,
+     * as their bodies are mapped from the disk cache instead.
+     * @param diskCache the disk cache, or {@code null} to only store responses in memory
+     * @return this
+     */
+    public ResponseCache setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+        return this;
+    }
+
+    /**
+     * Get a fresh cached response for a request.
+     * @param request the request
+     * @return the response, or {@code null} if the request has to be sent to the server
+     */
+    public ViHttpResponse get(ViHttpRequest request) {
+        if (request.getRequestMethod() != HttpRequestMethod.GET || isConditional(request)) return null;
+        CacheControl requestCacheControl = CacheControl.parse(requestHeader(request, "Cache-Control"));
+        boolean onlyIfCached = requestCacheControl.has("only-if-cached");
+        if (requestCacheControl.has("no-store") || requestCacheControl.has("no-cache")
+                || "no-cache".equalsIgnoreCase(requestHeader(request, "Pragma"))) {
+            this.misses.increment();
+            return onlyIfCached ? gatewayTimeout() : null;
+        }
+
+        CacheEntry entry = this.lookup(request);
+        long now = System.currentTimeMillis();
+        if (entry == null || !isFresh(entry, requestCacheControl, now)) {
+            this.misses.increment();
+            return onlyIfCached ? gatewayTimeout() : null;
+        }
+        this.hits.increment();
+        return entry.toResponse(now);
+    }
+
+    /**
+     * Get the headers that make a request conditional on the stored response for it having changed,
+     * so the server can answer with 304 Not Modified instead of sending it again.
+     * Requests that are already conditional are left alone.
+     * @param request the request
+     * @return the If-None-Match and If-Modified-Since headers to send, empty if there is nothing to revalidate
+     * @see #revalidate(ViHttpRequest, long, ViHttpResponse)
+     */
+    public Map<String, String> getValidators(ViHttpRequest request) {
+        if (request.getRequestMethod() != HttpRequestMethod.GET || isConditional(request)
+                || CacheControl.parse(requestHeader(request, "Cache-Control")).has("no-store")) {
+            return Collections.emptyMap();
+        }
+        CacheEntry entry = this.lookup(request);
+        return entry != null && entry.hasValidator() ? entry.validators() : Collections.emptyMap();
+    }
+
+    /**
+     * Handle the response to a request sent with the headers from {@link #getValidators(ViHttpRequest)}.
+     * A 304 Not Modified response updates the stored response, which is returned instead.
+     * Other responses are handled like {@link #update(ViHttpRequest, long, ViHttpResponse)} does.
+     * @param request the request
+     * @param requestTime when the request was sent in milliseconds since the epoch
+     * @param response the response
+     * @return the response to give to the caller
+     */
+    public ViHttpResponse revalidate(ViHttpRequest request, long requestTime, ViHttpResponse response) {
+        if (response.getStatusCode() != 304) return this.update(request, requestTime, response);
+        CacheEntry stored = this.lookup(request);
+        if (stored == null) return response; // evicted in the meantime
+        long now = System.currentTimeMillis();
+        CacheEntry entry = new CacheEntry(stored, response.getHeaders(), requestTime, now);
+        this.put(entry);
+        this.revalidations.increment();
+        return entry.toResponse(now);
+    }
+
+    /**
+     * Store the response to a request sent to the server if it may be cached,
+     * or remove the responses a successful unsafe request made stale.
+     * @param request the request
+     * @param requestTime when the request was sent in milliseconds since the epoch
+     * @param response the response
+     * @return the response to give to the caller
+     */
+    public ViHttpResponse update(ViHttpRequest request, long requestTime, ViHttpResponse response) {
+        HttpRequestMethod method = request.getRequestMethod();
+        if (method != HttpRequestMethod.GET && method != HttpRequestMethod.HEAD
+                && method != HttpRequestMethod.OPTIONS && method != HttpRequestMethod.TRACE) {
+            if (response.getStatusCode() >= 200 && response.getStatusCode() < 400) this.invalidate(request, response);
+            return response;
+        }
+        if (method != HttpRequestMethod.GET || response.isStreaming()
+                || response.getStatusCode() == 206 || response.getStatusCode() == 304) {
+            return response;
+        }
+
+        CacheControl requestCacheControl = CacheControl.parse(requestHeader(request, "Cache-Control"));
+        CacheControl responseCacheControl = CacheControl.parse(response.getHeader("Cache-Control"));
+        String vary = response.getHeader("Vary");
+        if (requestCacheControl.has("no-store") || responseCacheControl.has("no-store") || (vary != null && vary.contains("*"))) {
+            return response;
+        }
+        boolean explicit = responseCacheControl.has("max-age") || responseCacheControl.has("public") || response.hasHeader("Expires");
+        if (!explicit && !isHeuristicallyCacheable(response.getStatusCode())) return response;
+
+        String key = key(request);
+        CacheEntry entry = new CacheEntry(key, response, varyValues(vary, request), requestTime, System.currentTimeMillis());
+        if (entry.freshnessLifetime() <= 0 && !entry.hasValidator()) return response;
+        this.put(entry);
+        return response;
+    }
+
+    /**
+     * Remove the cached response for a URL.
+     * @param url the URL
+     */
+    public void remove(String url) {
+        try {
+            this.removeKey(key(new URL(url)));
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid URL \"" + url + "\"", e);
+        }
+    }
+
+    /**
+     * Remove all cached responses.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.size = 0;
+        if (this.diskCache != null) {
+            try {
+                this.diskCache.clear();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Get the statistics of the cache.
+     * @return a snapshot of the cache
+     */
+    public synchronized CacheStats getStats() {
+        return new CacheStats(this.hits.sum(), this.misses.sum(), this.revalidations.sum(), this.evictions.sum(), this.entries.size(), this.size, this.maxSize);
+    }
+
+    /**
+     * Get the stored response for a request, if the request headers it varies on match.
+     */
+    private CacheEntry lookup(ViHttpRequest request) {
+        String key = key(request);
+        CacheEntry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+        DiskCache diskCache = this.diskCache;
+        if (entry == null && diskCache != null) entry = diskCache.get(key);
+        return entry != null && matchesVary(entry, request) ? entry : null;
+    }
+
+    private void put(CacheEntry entry) {
+        if (entry.bodyBuffer == null && entry.size <= this.maxSize) {
+            this.putInMemory(entry);
+        } else {
+            this.removeFromMemory(entry.key); // don't serve an older response from memory
+        }
+        DiskCache diskCache = this.diskCache;
+        if (diskCache != null) diskCache.put(entry);
+    }
+
+    private synchronized void putInMemory(CacheEntry entry) {
+        CacheEntry previous = this.entries.put(entry.key, entry);
+        if (previous != null) this.size -= previous.size;
+        this.size += entry.size;
+
+        Iterator<CacheEntry> iterator = this.entries.values().iterator();
+        while (this.size > this.maxSize && iterator.hasNext()) {
+            CacheEntry eldest = iterator.next();
+            if (eldest == entry) continue;
+            iterator.remove();
+            this.size -= eldest.size;
+            this.evictions.increment();
+        }
+    }
+
+    private void removeKey(String key) {
+        this.removeFromMemory(key);
+        DiskCache diskCache = this.diskCache;
+        if (diskCache != null) diskCache.remove(key);
+    }
+
+    private synchronized void removeFromMemory(String key) {
+        CacheEntry entry = this.entries.remove(key);
+        if (entry != null) this.size -= entry.size;
+    }
+
+    /**
+     * Remove the responses for the URL of an unsafe request, and for the URLs in its Location and
+     * Content-Location headers if they're on the same host (RFC 7234 section 4.4).
+     */
+    private void invalidate(ViHttpRequest request, ViHttpResponse response) {
+        String key = key(request);
+        this.removeKey(key);
+        for (String header : new String[] {"Location", "Content-Location"}) {
+            String location = response.getHeader(header);
+            if (location == null) continue;
+            try {
+                URL url = new URL(new URL(key), location);
+                if (url.getHost().equalsIgnoreCase(request.getHost())) this.removeKey(key(url));
+            } catch (MalformedURLException ignored) {
+            }
+        }
+    }
+
+    private static boolean isFresh(CacheEntry entry, CacheControl requestCacheControl, long now) {
+        if (entry.cacheControl.has("no-cache")) return false; // must be revalidated every time
+        long age = entry.currentAge(now);
+        long lifetime = entry.freshnessLifetime();
+        long maxAge = requestCacheControl.seconds("max-age", -1);
+        if (maxAge >= 0 && age > maxAge) return false;
+
+        long minFresh = Math.max(0, requestCacheControl.seconds("min-fresh", -1));
+        if (lifetime - age > minFresh) return true;
+        long maxStale = requestCacheControl.seconds("max-stale", Long.MAX_VALUE);
+        return maxStale >= 0 && !entry.cacheControl.has("must-revalidate") && age - lifetime <= maxStale;
+    }
+
+    /**
+     * Whether the caller made a request conditional itself, expecting to see a 304 or 412 response.
+     */
+    private static boolean isConditional(ViHttpRequest request) {
+        for (String name : request.getHeaders().keySet()) {
+            if (name.regionMatches(true, 0, "If-", 0, 3)) return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesVary(CacheEntry entry, ViHttpRequest request) {
+        for (Map.Entry<String, String> header : entry.varyValues.entrySet()) {
+            String value = requestHeader(request, header.getKey());
+            if (value == null ? header.getValue() != null : !value.equals(header.getValue())) return false;
+        }
+        return true;
+    }
+
+    private static Map<String, String> varyValues(String vary, ViHttpRequest request) {
+        if (vary == null || vary.trim().isEmpty()) return Collections.emptyMap();
+        Map<String, String> values = new HashMap<>();
+        for (String name : vary.split(",")) {
+            name = name.trim().toLowerCase(Locale.ROOT);
+            if (!name.isEmpty()) values.put(name, requestHeader(request, name));
+        }
+        return values;
+    }
+
+    /**
+     * Get a request header by its name in any case, as it will be sent.
+     */
+    private static String requestHeader(ViHttpRequest request, String name) {
+        List<HttpCompressionScheme> compressionSchemes = request.getCompressionSchemes();
+        if (name.equalsIgnoreCase("Accept-Encoding") && !compressionSchemes.isEmpty()) {
+            StringBuilder value = new StringBuilder();
+            for (HttpCompressionScheme scheme : compressionSchemes) {
+                if (value.length() > 0) value.append(", ");
+                value.append(scheme.getToken());
+            }
+            return value.toString();
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) return header.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Whether responses with a status code may be cached without explicit freshness (RFC 7231 section 6.1).
+     */
+    static boolean isHeuristicallyCacheable(int statusCode) {
+        switch (statusCode) {
+            case 200: case 203: case 204: case 300: case 301: case 404: case 405: case 410: case 414: case 501:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static ViHttpResponse gatewayTimeout() {
+        return new ViHttpResponse(504, new TreeMap<>(String.CASE_INSENSITIVE_ORDER), "");
+    }
+
+    private static String key(ViHttpRequest request) {
+        return (request.isSsl() ? "https" : "http") + "://" + request.getHost().toLowerCase(Locale.ROOT) + ":" + request.getPort() + request.getPathAndQuery();
+    }
+
+    private static String key(URL url) {
+        boolean ssl = url.getProtocol().equals("https");
+        int port = url.getPort() != -1 ? url.getPort() : (ssl ? 443 : 80);
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.ROOT) + ":" + port + path + (url.getQuery() != null ? "?" + url.getQuery() : "");
+    }
+}
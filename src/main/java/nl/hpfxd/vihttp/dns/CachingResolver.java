@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.dns;
+
+import lombok.Getter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the results of another resolver in memory.
+ *
+ * Addresses are cached for the TTL and failed lookups for the negative TTL, which default to the JVM's
+ * {@code networkaddress.cache.ttl} and {@code networkaddress.cache.negative.ttl} security properties.
+ * Once three quarters of the TTL passed, using an entry refreshes it in the background,
+ * so hosts that are in use are never looked up while a request waits. Concurrent lookups of the same host
+ * share a single lookup.
+ */
+public class CachingResolver implements Resolver {
+    private static final long DEFAULT_TTL = 30000;
+    private static final long DEFAULT_NEGATIVE_TTL = 10000;
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ViHttp DNS Refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Resolver delegate;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+    @Getter private long ttl = securityProperty("networkaddress.cache.ttl", DEFAULT_TTL);
+    @Getter private long negativeTtl = securityProperty("networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL);
+    @Getter private int maxEntries = 4096;
+
+    /**
+     * @param delegate the resolver to cache
+     */
+    public CachingResolver(Resolver delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Set how long addresses are cached.
+     * @param ttl the TTL in milliseconds
+     */
+    public CachingResolver setTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * Set how long failed lookups are cached. Use 0 to not cache them.
+     * @param negativeTtl the TTL in milliseconds
+     */
+    public CachingResolver setNegativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of hosts to cache.
+     * @param maxEntries the maximum amount of hosts
+     */
+    public CachingResolver setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    @Override
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.ROOT);
+        long now = System.currentTimeMillis();
+        Entry entry = this.entries.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            if (now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true)) this.refresh(key, host, entry);
+            return entry.get();
+        }
+        return this.lookup(key, host).get();
+    }
+
+    /**
+     * Forget the cached result for a host.
+     * @param host the host
+     */
+    public void invalidate(String host) {
+        this.entries.remove(host.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Forget all cached results.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    private Entry lookup(String key, String host) throws UnknownHostException {
+        CompletableFuture<Entry> lookup = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = this.lookups.putIfAbsent(key, lookup);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (RuntimeException e) {
+                throw new UnknownHostException(host);
+            }
+        }
+
+        try {
+            Entry entry = this.load(host);
+            this.store(key, entry);
+            lookup.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.lookups.remove(key, lookup);
+        }
+    }
+
+    private void refresh(String key, String host, Entry stale) {
+        REFRESH_EXECUTOR.execute(() -> {
+            try {
+                Entry entry = this.load(host);
+                // keep serving the old addresses if the refresh failed, until they expire
+                if (entry.failure == null) this.store(key, entry);
+            } finally {
+                stale.refreshing.set(false);
+            }
+        });
+    }
+
+    private Entry load(String host) {
+        long now = System.currentTimeMillis();
+        try {
+            List<InetAddress> addresses = this.delegate.resolve(host);
+            if (addresses.isEmpty()) throw new UnknownHostException(host);
+            return new Entry(addresses, null, expiry(now, this.ttl), expiry(now, this.ttl - this.ttl / 4));
+        } catch (UnknownHostException e) {
+            return new Entry(null, e, expiry(now, this.negativeTtl), Long.MAX_VALUE);
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        if (entry.expiresAt <= System.currentTimeMillis()) { // not cached at all
+            this.entries.remove(key);
+            return;
+        }
+        if (this.entries.size() >= this.maxEntries && !this.entries.containsKey(key)) {
+            long now = System.currentTimeMillis();
+            this.entries.values().removeIf(e -> e.expiresAt <= now);
+            Iterator<String> keys = this.entries.keySet().iterator();
+            while (this.entries.size() >= this.maxEntries && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        this.entries.put(key, entry);
+    }
+
+    private static long expiry(long now, long ttl) {
+        if (ttl < 0) return Long.MAX_VALUE; // cached forever
+        return now + ttl < now ? Long.MAX_VALUE : now + ttl;
+    }
+
+    private static long securityProperty(String name, long defaultValue) {
+        try {
+            String value = Security.getProperty(name);
+            if (value == null) return defaultValue;
+            long seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException | SecurityException e) {
+            return defaultValue;
+        }
+    }
+
+    private static class Entry {
+        private final List<InetAddress> addresses;
+        private final UnknownHostException failure;
+        private final long expiresAt;
+        private final long refreshAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(List<InetAddress> addresses, UnknownHostException failure, long expiresAt, long refreshAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        private List<InetAddress> get() throws UnknownHostException {
+            if (this.failure != null) {
+                UnknownHostException e = new UnknownHostException(this.failure.getMessage());
+                e.initCause(this.failure);
+                throw e;
+            }
+            return this.addresses;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Resolves host names to the addresses connections are opened to.
+ * Hosts are only resolved when a new connection is opened, not for every request.
+ */
+public interface Resolver {
+    /**
+     * The JVM's resolver, {@link InetAddress#getAllByName(String)}.
+     */
+    Resolver SYSTEM = new SystemResolver();
+
+    /**
+     * Resolve a host.
+     * @param host the host name or IP address literal
+     * @return the addresses of the host, in order of preference, never empty
+     * @throws UnknownHostException if the host has no addresses
+     */
+    List<InetAddress> resolve(String host) throws UnknownHostException;
+
+    /**
+     * Parse an IP address literal, such as {@code 127.0.0.1} or {@code [::1]}, without looking anything up.
+     * @param host the IP address literal
+     * @return the address, 4 bytes for IPv4 and 16 for IPv6
+     * @throws UnknownHostException if the host is a host name or not a valid literal
+     */
+    static byte[] parseLiteral(String host) throws UnknownHostException {
+        String address = host.startsWith("[") && host.endsWith("]") ? host.substring(1, host.length() - 1) : host;
+        if (address.indexOf(':') == -1 && !address.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+            throw new UnknownHostException(host); // a host name, which getByName would look up
+        }
+        return InetAddress.getByName(address).getAddress();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves hosts from a fixed table, like a hosts file. Useful to point a client at a test server.
+ * Hosts that aren't in the table are passed to a fallback resolver, if there is one.
+ */
+public class StaticResolver implements Resolver {
+    private final Map<String, List<InetAddress>> hosts = new ConcurrentHashMap<>();
+    private final Resolver fallback;
+
+    /**
+     * Create a resolver that only knows the hosts added to it.
+     */
+    public StaticResolver() {
+        this(null);
+    }
+
+    /**
+     * @param fallback the resolver for hosts that aren't in the table, or {@code null} to fail them
+     */
+    public StaticResolver(Resolver fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Parse a hosts file, with an IP address followed by host names on every line and comments starting with {@code #}.
+     * @param path the path of the file
+     * @param fallback the resolver for hosts that aren't in the file, or {@code null} to fail them
+     * @return the resolver
+     */
+    public static StaticResolver fromHostsFile(Path path, Resolver fallback) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return parseHosts(reader, fallback);
+        }
+    }
+
+    /**
+     * Parse hosts in the format of a hosts file.
+     * @param reader the reader to read the hosts from
+     * @param fallback the resolver for hosts that aren't listed, or {@code null} to fail them
+     * @return the resolver
+     * @see #fromHostsFile(Path, Resolver)
+     */
+    public static StaticResolver parseHosts(Reader reader, Resolver fallback) throws IOException {
+        StaticResolver resolver = new StaticResolver(fallback);
+        BufferedReader in = new BufferedReader(reader);
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            int comment = line.indexOf('#');
+            if (comment != -1) line = line.substring(0, comment);
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 2) continue;
+            for (int i = 1; i < fields.length; i++) resolver.add(fields[i], fields[0]);
+        }
+        return resolver;
+    }
+
+    /**
+     * Add addresses for a host, after any it already has.
+     * @param host the host name
+     * @param addresses the IP address literals
+     * @throws IllegalArgumentException if an address is not an IP address literal
+     */
+    public StaticResolver add(String host, String... addresses) {
+        List<InetAddress> resolved = new ArrayList<>();
+        for (String address : addresses) {
+            try {
+                resolved.add(InetAddress.getByAddress(host, Resolver.parseLiteral(address)));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid IP address \"" + address + "\"", e);
+            }
+        }
+        this.hosts.merge(host.toLowerCase(Locale.ROOT), resolved, (a, b) -> {
+            List<InetAddress> merged = new ArrayList<>(a);
+            merged.addAll(b);
+            return merged;
+        });
+        return this;
+    }
+
+    /**
+     * Remove a host from the table.
+     * @param host the host name
+     */
+    public StaticResolver remove(String host) {
+        this.hosts.remove(host.toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    @Override
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        List<InetAddress> addresses = this.hosts.get(host.toLowerCase(Locale.ROOT));
+        if (addresses != null && !addresses.isEmpty()) return Collections.unmodifiableList(addresses);
+        if (this.fallback != null) return this.fallback.resolve(host);
+        try {
+            return Collections.singletonList(InetAddress.getByAddress(Resolver.parseLiteral(host))); // IP literals resolve to themselves
+        } catch (UnknownHostException e) {
+            throw new UnknownHostException(host);
+        }
+    }
+}
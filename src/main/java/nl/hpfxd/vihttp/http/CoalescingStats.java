@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http;
+
+import lombok.Data;
+
+@Data
+public class CoalescingStats {
+    /**
+     * The amount of requests that were sent to the server, sharing their response with identical requests.
+     */
+    private final long exchanges;
+    /**
+     * The amount of requests that got the response of an identical request that was already in flight.
+     */
+    private final long coalesced;
+    /**
+     * The amount of exchanges that are in flight.
+     */
+    private final int inFlight;
+
+    /**
+     * Get the share of requests that were coalesced.
+     * @return the ratio between 0 and 1
+     */
+    public double getCoalescedRatio() {
+        long total = this.exchanges + this.coalesced;
+        return total == 0 ? 0 : (double) this.coalesced / total;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+import nl.hpfxd.vihttp.exception.HttpException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Sends extra copies of slow requests, answering with whichever response arrives first.
+ *
+ * When an idempotent request wasn't answered after the hedging delay, a copy of it is sent as a new exchange.
+ * Over HTTP/1.1 that takes another connection, but over HTTP/2 the copy may be multiplexed on the same connection,
+ * and a proxy pool picks the proxy for it again, so with {@code LATENCY_WEIGHTED} or {@code LEAST_IN_FLIGHT}
+ * selection it may go through the same proxy. The delay is either fixed, or a percentile of the latency of recent
+ * responses, so only the slowest requests are hedged. The first response wins and the other exchanges are aborted,
+ * which resets their HTTP/2 stream, or closes their HTTP/1.1 connection instead of returning it mid-exchange.
+ * A request fails once all of its copies that were sent failed.
+ *
+ * Hedging multiplies the load on the server for slow requests, so share one policy between the requests to a
+ * service, keep the percentile high and use it for requests where latency matters most.
+ */
+public class HedgingPolicy {
+    private static final int SAMPLES = 1000;
+    private static final int MIN_SAMPLES = 20;
+    private static final int UPDATE_INTERVAL = 50; // samples between recalculating the percentile
+
+    @Getter private long delay = 100;
+    @Getter private double percentile = 0;
+    @Getter private int maxHedges = 1;
+    private final long[] latencies = new long[SAMPLES];
+    private int sampleCount = 0;
+    private int nextSample = 0;
+    private int samplesSinceUpdate = UPDATE_INTERVAL;
+    private volatile long percentileDelay = -1;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /**
+     * Set a fixed delay before a copy of a request is sent. With a percentile, this is used until enough
+     * responses were seen.
+     * @param delay the delay in milliseconds, 100 by default
+     * @return this
+     */
+    public HedgingPolicy setDelay(long delay) {
+        if (delay < 0) throw new IllegalArgumentException("delay can't be negative");
+        this.delay = delay;
+        return this;
+    }
+
+    /**
+     * Send a copy of a request once it took longer than a percentile of the latency of recent responses.
+     * @param percentile the percentile between 0 and 1, like 0.95, or 0 to always use the fixed delay
+     * @return this
+     */
+    public synchronized HedgingPolicy setPercentile(double percentile) {
+        if (percentile < 0 || percentile >= 1) throw new IllegalArgumentException("percentile must be at least 0 and below 1");
+        this.percentile = percentile;
+        this.samplesSinceUpdate = UPDATE_INTERVAL; // recalculate on the next response
+        return this;
+    }
+
+    /**
+     * Set how many copies of a request may be sent besides the request itself, each one delay after the previous one.
+     * @param maxHedges the maximum amount of copies, 1 by default
+     * @return this
+     */
+    public HedgingPolicy setMaxHedges(int maxHedges) {
+        if (maxHedges < 1) throw new IllegalArgumentException("maxHedges must be at least 1");
+        this.maxHedges = maxHedges;
+        return this;
+    }
+
+    /**
+     * Get the delay before a copy of a request is sent right now.
+     * @return the delay in milliseconds
+     */
+    public long getCurrentDelay() {
+        long percentileDelay = this.percentileDelay;
+        return this.percentile > 0 && percentileDelay != -1 ? percentileDelay : this.delay;
+    }
+
+    /**
+     * Get the statistics of the policy.
+     * @return a snapshot of the policy
+     */
+    public HedgingStats getStats() {
+        return new HedgingStats(this.requests.sum(), this.hedges.sum(), this.hedgeWins.sum(), this.getCurrentDelay());
+    }
+
+    /**
+     * Send a request and its copies, blocking until the first response.
+     * @param request the request
+     * @param sender sends a request once without blocking
+     * @return the first response
+     */
+    @SneakyThrows
+    ViHttpResponse send(ViHttpRequest request, Function<ViHttpRequest, CompletableFuture<ViHttpResponse>> sender) {
+        CompletableFuture<ViHttpResponse> future = this.sendAsync(request, sender);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new HttpException("Interrupted while waiting for the response.", e);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Send a request and its copies without blocking.
+     * Cancelling the returned future aborts all of them.
+     * @param request the request
+     * @param sender sends a request once without blocking
+     * @return a future completed with the first response
+     */
+    CompletableFuture<ViHttpResponse> sendAsync(ViHttpRequest request, Function<ViHttpRequest, CompletableFuture<ViHttpResponse>> sender) {
+        if (!request.isIdempotent() || request.getBodyStream() != null) return sender.apply(request);
+        this.requests.increment();
+        long start = System.currentTimeMillis();
+        CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+        List<CompletableFuture<ViHttpResponse>> attempts = new CopyOnWriteArrayList<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        TimerTask[] hedgeTasks = new TimerTask[this.maxHedges];
+
+        this.attempt(request, 0, sender, future, attempts, inFlight);
+        long delay = this.getCurrentDelay();
+        for (int i = 0; i < hedgeTasks.length; i++) {
+            int hedge = i + 1;
+            hedgeTasks[i] = request.getClient().getConnectionManager().schedule(() -> {
+                if (future.isDone()) return;
+                ViHttpRequest copy = request.copy();
+                if (copy.sentAt == 0) copy.sentAt = start; // its deadline counts from the request
+                this.hedges.increment();
+                this.attempt(copy, hedge, sender, future, attempts, inFlight);
+            }, delay * hedge);
+        }
+        future.whenComplete((response, error) -> {
+            Arrays.stream(hedgeTasks).forEach(TimerTask::cancel);
+            for (CompletableFuture<ViHttpResponse> attempt : attempts) attempt.cancel(true);
+        });
+        return future;
+    }
+
+    private void attempt(ViHttpRequest request, int hedge, Function<ViHttpRequest, CompletableFuture<ViHttpResponse>> sender,
+                         CompletableFuture<ViHttpResponse> future, List<CompletableFuture<ViHttpResponse>> attempts, AtomicInteger inFlight) {
+        long start = System.currentTimeMillis();
+        inFlight.incrementAndGet();
+        CompletableFuture<ViHttpResponse> attempt = sender.apply(request);
+        attempts.add(attempt);
+        if (future.isDone()) attempt.cancel(true); // answered while this copy was being sent
+        attempt.whenComplete((response, error) -> {
+            if (error == null) {
+                this.record(System.currentTimeMillis() - start);
+                if (future.complete(response)) {
+                    if (hedge > 0) this.hedgeWins.increment();
+                } else {
+                    try {
+                        response.close(); // lost the race, which only matters for a streaming response
+                    } catch (IOException ignored) {
+                    }
+                }
+            } else if (inFlight.decrementAndGet() == 0) { // remaining copies aren't sent once this completes
+                future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            }
+        });
+    }
+
+    private synchronized void record(long latency) {
+        this.latencies[this.nextSample] = latency;
+        this.nextSample = (this.nextSample + 1) % SAMPLES;
+        this.sampleCount = Math.min(this.sampleCount + 1, SAMPLES);
+        if (this.percentile <= 0 || this.sampleCount < MIN_SAMPLES || ++this.samplesSinceUpdate < UPDATE_INTERVAL) return;
+        this.samplesSinceUpdate = 0;
+        long[] sorted = Arrays.copyOf(this.latencies, this.sampleCount);
+        Arrays.sort(sorted);
+        this.percentileDelay = sorted[(int) Math.max(0, Math.min(sorted.length - 1, Math.ceil(this.percentile * sorted.length) - 1))];
+    }
+}
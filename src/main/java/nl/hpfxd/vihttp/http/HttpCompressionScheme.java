@@ -22,6 +22,9 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.SneakyThrows;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
@@ -64,4 +67,18 @@ public enum HttpCompressionScheme {
         }
         return in;
     }
+
+    /**
+     * Decompress a complete body.
+     * @param body the encoded body
+     * @param contentEncoding the value of the Content-Encoding header
+     * @return the decoded body
+     */
+    public static byte[] decode(byte[] body, String contentEncoding) throws IOException {
+        InputStream in = wrapInputStream(new ByteArrayInputStream(body), parseSchemeList(contentEncoding), 8192);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
 }
@@ -24,16 +24,21 @@ import lombok.Getter;
 @Getter
 @AllArgsConstructor
 public enum HttpRequestMethod {
-    GET(false),
-    HEAD(false),
-    POST(true),
-    PUT(true),
-    DELETE(false),
-    CONNECT(false),
-    OPTIONS(false),
-    TRACE(false),
-    PATCH(true)
+    GET(false, true),
+    HEAD(false, true),
+    POST(true, false),
+    PUT(true, true),
+    DELETE(false, true),
+    CONNECT(false, false),
+    OPTIONS(false, true),
+    TRACE(false, true),
+    PATCH(true, false)
     ;
     
     private final boolean bodyValid;
+    /**
+     * Whether sending a request with this method more than once has the same effect as sending it once
+     * (RFC 7231 section 4.2.2), so it may be sent again after a failure.
+     */
+    private final boolean idempotent;
 }
@@ -21,13 +21,19 @@ package nl.hpfxd.vihttp.http;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import nl.hpfxd.vihttp.http.impl.Http1Impl;
+import nl.hpfxd.vihttp.http.impl.Http2Impl;
 import nl.hpfxd.vihttp.http.impl.HttpImpl;
 
 @AllArgsConstructor
 @Getter
 public enum HttpVersion {
     HTTP_1(new Http1Impl()),
-    HTTP_2(null),
+    HTTP_2(new Http2Impl()),
+    /**
+     * HTTP/2 without negotiation, also over cleartext connections (h2c).
+     * Only use this for servers known to speak HTTP/2.
+     */
+    HTTP_2_PRIOR_KNOWLEDGE(new Http2Impl()),
     HTTP_3(null)
     ;
 
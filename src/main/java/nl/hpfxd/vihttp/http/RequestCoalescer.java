@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http;
+
+import lombok.SneakyThrows;
+import nl.hpfxd.vihttp.exception.HttpException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Lets identical requests that are sent at the same time share one exchange with the server.
+ *
+ * When a GET or HEAD request is sent while an identical one is in flight, it waits for that response instead
+ * of sending its own, and both get the same {@link ViHttpResponse}. Requests are identical when their method, URL,
+ * proxy and the headers that select a representation match, like Accept and Authorization.
+ * Requests with a body and streaming requests are always sent.
+ *
+ * Waiting requests keep their own deadline. Cancelling an asynchronous request only stops it from waiting,
+ * the shared exchange is aborted once every request waiting for it was cancelled.
+ */
+public class RequestCoalescer {
+    private final Map<List<Object>, Flight> flights = new ConcurrentHashMap<>();
+    private final Set<String> keyHeaders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    private final LongAdder exchanges = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public RequestCoalescer() {
+        this.keyHeaders.addAll(Arrays.asList("Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie", "Range"));
+    }
+
+    /**
+     * Set the request headers that have to match for requests to be identical.
+     * Accept, Accept-Encoding, Accept-Language, Authorization, Cookie and Range by default.
+     * Other headers are sent as they're set on the request that was sent first.
+     * @param names the header names
+     * @return this
+     */
+    public synchronized RequestCoalescer setKeyHeaders(String... names) {
+        this.keyHeaders.clear();
+        this.keyHeaders.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * Get the statistics of the coalescer.
+     * @return a snapshot of the coalescer
+     */
+    public CoalescingStats getStats() {
+        return new CoalescingStats(this.exchanges.sum(), this.coalesced.sum(), this.flights.size());
+    }
+
+    /**
+     * Send a request, or wait for the response of an identical request in flight.
+     * @param request the request
+     * @param sender sends the request to the server
+     * @return the response
+     */
+    @SneakyThrows
+    ViHttpResponse send(ViHttpRequest request, Supplier<ViHttpResponse> sender) {
+        List<Object> key = this.key(request);
+        if (key == null) return sender.get();
+        Flight flight = new Flight();
+        Flight existing = this.flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            this.coalesced.increment();
+            CompletableFuture<ViHttpResponse> future = this.attach(existing, request);
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new HttpException("Interrupted while waiting for the response.", e);
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+
+        this.exchanges.increment();
+        flight.waiters.incrementAndGet(); // never cancelled, as a blocking sender can't be
+        try {
+            ViHttpResponse response = sender.get();
+            this.flights.remove(key, flight);
+            flight.response.complete(response);
+            return response;
+        } catch (Throwable e) {
+            this.flights.remove(key, flight);
+            flight.response.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Send a request without blocking, or wait for the response of an identical request in flight.
+     * @param request the request
+     * @param sender sends the request to the server
+     * @return a future completed with the response
+     */
+    CompletableFuture<ViHttpResponse> sendAsync(ViHttpRequest request, Supplier<CompletableFuture<ViHttpResponse>> sender) {
+        List<Object> key = this.key(request);
+        if (key == null) return sender.get();
+        Flight flight = new Flight();
+        Flight existing = this.flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            this.coalesced.increment();
+            return this.attach(existing, request);
+        }
+
+        this.exchanges.increment();
+        CompletableFuture<ViHttpResponse> future = this.attach(flight, request);
+        flight.sent = sender.get();
+        flight.sent.whenComplete((response, error) -> {
+            this.flights.remove(key, flight);
+            if (error != null) {
+                flight.response.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            } else {
+                flight.response.complete(response);
+            }
+        });
+        if (flight.waiters.get() == 0) flight.sent.cancel(true); // cancelled before the exchange started
+        return future;
+    }
+
+    /**
+     * Get a future of the shared response for one request, bounded by its deadline.
+     */
+    private CompletableFuture<ViHttpResponse> attach(Flight flight, ViHttpRequest request) {
+        flight.waiters.incrementAndGet();
+        CompletableFuture<ViHttpResponse> future = flight.response.thenApply(response -> response);
+        if (request.getDeadline() > 0) {
+            TimerTask deadlineTask = request.getClient().getConnectionManager()
+                    .schedule(() -> future.completeExceptionally(request.deadlineException(null)), request.getDeadline());
+            future.whenComplete((response, error) -> deadlineTask.cancel());
+        }
+        future.whenComplete((response, error) -> {
+            if (flight.response.isDone() || !future.isCompletedExceptionally()) return;
+            if (flight.waiters.decrementAndGet() == 0 && flight.sent != null) flight.sent.cancel(true);
+        });
+        return future;
+    }
+
+    /**
+     * Get what identifies a request, or {@code null} if it can't share its response.
+     */
+    private List<Object> key(ViHttpRequest request) {
+        HttpRequestMethod method = request.getRequestMethod();
+        if ((method != HttpRequestMethod.GET && method != HttpRequestMethod.HEAD) || request.isStreaming()
+                || request.getBody() != null || request.getBodyStream() != null) {
+            return null;
+        }
+        List<Object> key = new ArrayList<>(Arrays.asList(method, request.isSsl(), request.getHost().toLowerCase(Locale.ROOT),
+                request.getPort(), request.getPathAndQuery(), request.getProxy(), request.getProxyPool(), request.getCompressionSchemes()));
+        synchronized (this) {
+            for (String name : this.keyHeaders) {
+                String value = null;
+                for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                    if (header.getKey().equalsIgnoreCase(name)) value = header.getValue();
+                }
+                key.add(value);
+            }
+        }
+        return key;
+    }
+
+    private static class Flight {
+        private final CompletableFuture<ViHttpResponse> response = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile CompletableFuture<ViHttpResponse> sent;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A response body read straight from its connection, before decompression.
+ * The connection stays leased until the body was read to its end or closed.
+ */
+public abstract class ResponseBodyStream extends InputStream {
+    private final List<Consumer<Boolean>> listeners = new ArrayList<>();
+    private Boolean result = null;
+
+    /**
+     * Run a listener once the body ended.
+     * Listeners run in the order they were added, or right away if the body already ended.
+     * @param listener called with true if the whole body was read, or false if it was closed early or failed
+     */
+    public void onEnd(Consumer<Boolean> listener) {
+        Boolean result;
+        synchronized (this.listeners) {
+            result = this.result;
+            if (result == null) {
+                this.listeners.add(listener);
+                return;
+            }
+        }
+        listener.accept(result);
+    }
+
+    /**
+     * Whether the body ended, so reading it no longer holds the connection.
+     * @return if the body ended
+     */
+    public boolean isEnded() {
+        synchronized (this.listeners) {
+            return this.result != null;
+        }
+    }
+
+    /**
+     * Get the trailers sent after the body, which are only complete once the body ended.
+     * @return an unmodifiable map of trailers
+     */
+    public Map<String, String> getTrailers() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Mark the body as ended and run the listeners, if it didn't end before.
+     * @param complete whether the whole body was read
+     */
+    protected void end(boolean complete) {
+        List<Consumer<Boolean>> listeners;
+        synchronized (this.listeners) {
+            if (this.result != null) return;
+            this.result = complete;
+            listeners = new ArrayList<>(this.listeners);
+            this.listeners.clear();
+        }
+        listeners.forEach(listener -> listener.accept(complete));
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        do {
+            n = this.read(b, 0, 1);
+        } while (n == 0);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public abstract int read(byte[] b, int off, int len) throws IOException;
+}
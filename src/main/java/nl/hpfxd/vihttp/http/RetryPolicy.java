@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+import nl.hpfxd.vihttp.exception.CircuitOpenException;
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.exception.ProxyException;
+import nl.hpfxd.vihttp.exception.UnprocessedRequestException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether and when a failed request is sent again.
+ *
+ * Idempotent requests (see {@link ViHttpRequest#isIdempotent()}) are retried after an I/O error or a response
+ * with a retryable status code, 429, 502, 503 and 504 by default. Other requests are only retried when they
+ * never reached the server, because the connection couldn't be opened or failed before the request was processed.
+ * Requests with a body stream are never retried, as it can't be sent again.
+ *
+ * Retries wait for an exponential backoff with full jitter, or as long as the Retry-After header of the response
+ * asks, and are given up once that would pass the deadline of the request. Attempts share that deadline.
+ *
+ * A retry budget keeps retries from amplifying an outage: over the last ten seconds, retries may only add
+ * a fraction of the requests that were sent, besides a few retries per second that are always allowed.
+ * Share one policy between the requests to a service, so its budget sees all of their traffic.
+ */
+public class RetryPolicy {
+    private static final int WINDOW = 10; // seconds the budget looks back
+
+    @Getter private int maxRetries = 2;
+    @Getter private long initialBackoff = 100;
+    @Getter private long maxBackoff = 10000;
+    @Getter private double budgetRatio = 0.2;
+    @Getter private int minRetriesPerSecond = 10;
+    private volatile Set<Integer> retryStatuses = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(429, 502, 503, 504)));
+    private final long[] windowSeconds = new long[WINDOW];
+    private final long[] windowRequests = new long[WINDOW];
+    private final long[] windowRetries = new long[WINDOW];
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    /**
+     * Set how many times a request may be retried.
+     * @param maxRetries the maximum amount of retries, 2 by default
+     * @return this
+     */
+    public RetryPolicy setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) throw new IllegalArgumentException("maxRetries can't be negative");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Set the backoff between attempts. The nth retry waits a random time up to {@code initialBackoff * 2^(n-1)},
+     * capped at the maximum backoff. Responses asking to wait longer than the maximum backoff aren't retried.
+     * @param initialBackoff the backoff before the first retry in milliseconds, 100 by default
+     * @param maxBackoff the maximum backoff in milliseconds, 10000 by default
+     * @return this
+     */
+    public RetryPolicy setBackoff(long initialBackoff, long maxBackoff) {
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) throw new IllegalArgumentException("Invalid backoff");
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    /**
+     * Set the retry budget.
+     * @param budgetRatio the share of retries allowed on top of the requests sent, 0.2 by default
+     * @param minRetriesPerSecond the retries per second allowed regardless of the traffic, 10 by default
+     * @return this
+     */
+    public RetryPolicy setBudget(double budgetRatio, int minRetriesPerSecond) {
+        if (budgetRatio < 0 || minRetriesPerSecond < 0) throw new IllegalArgumentException("The budget can't be negative");
+        this.budgetRatio = budgetRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        return this;
+    }
+
+    /**
+     * Set the status codes of responses that are retried.
+     * @param statusCodes the status codes, 429, 502, 503 and 504 by default
+     * @return this
+     */
+    public RetryPolicy setRetryStatuses(int... statusCodes) {
+        Set<Integer> retryStatuses = new HashSet<>();
+        for (int statusCode : statusCodes) retryStatuses.add(statusCode);
+        this.retryStatuses = Collections.unmodifiableSet(retryStatuses);
+        return this;
+    }
+
+    public Set<Integer> getRetryStatuses() {
+        return this.retryStatuses;
+    }
+
+    /**
+     * Get the statistics of the policy.
+     * @return a snapshot of the policy
+     */
+    public RetryStats getStats() {
+        return new RetryStats(this.requests.sum(), this.retries.sum(), this.budgetExhausted.sum());
+    }
+
+    /**
+     * Send a request, sending it again while it fails with something the policy retries.
+     * @param request the request
+     * @param sender sends the request once
+     * @return the last response
+     */
+    @SneakyThrows
+    ViHttpResponse send(ViHttpRequest request, Supplier<ViHttpResponse> sender) {
+        long start = this.start(request);
+        try {
+            for (int retries = 0; ; retries++) {
+                ViHttpResponse response = null;
+                Throwable error = null;
+                try {
+                    response = sender.get();
+                } catch (Throwable e) {
+                    error = e;
+                }
+                long delay = this.retryDelay(request, retries, start, response, error);
+                if (delay == -1) {
+                    if (error != null) throw error;
+                    return response;
+                }
+                if (response != null) response.close();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HttpException("Interrupted while waiting to retry the request.", e);
+                }
+            }
+        } finally {
+            request.sentAt = 0;
+        }
+    }
+
+    /**
+     * Send a request without blocking, sending it again while it fails with something the policy retries.
+     * Cancelling the returned future cancels the attempt in progress.
+     * @param request the request
+     * @param executor the executor to start retries on
+     * @param sender sends the request once
+     * @return a future completed with the last response
+     */
+    CompletableFuture<ViHttpResponse> sendAsync(ViHttpRequest request, Executor executor, Supplier<CompletableFuture<ViHttpResponse>> sender) {
+        long start = this.start(request);
+        CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+        future.whenComplete((response, error) -> request.sentAt = 0);
+        this.attempt(request, executor, sender, future, 0, start);
+        return future;
+    }
+
+    private void attempt(ViHttpRequest request, Executor executor, Supplier<CompletableFuture<ViHttpResponse>> sender,
+                         CompletableFuture<ViHttpResponse> future, int retries, long start) {
+        if (future.isDone()) return; // cancelled while waiting to retry
+        CompletableFuture<ViHttpResponse> attempt = sender.get();
+        future.whenComplete((response, error) -> {
+            if (future.isCancelled()) attempt.cancel(true);
+        });
+        attempt.whenComplete((response, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            long delay = future.isDone() ? -1 : this.retryDelay(request, retries, start, response, cause);
+            if (delay == -1) {
+                if (cause != null) {
+                    future.completeExceptionally(cause);
+                } else {
+                    future.complete(response);
+                }
+                return;
+            }
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException ignored) {
+                }
+            }
+            request.getClient().getConnectionManager().schedule(() -> {
+                try {
+                    executor.execute(() -> this.attempt(request, executor, sender, future, retries + 1, start));
+                } catch (RejectedExecutionException e) {
+                    future.completeExceptionally(e);
+                }
+            }, delay);
+        });
+    }
+
+    private long start(ViHttpRequest request) {
+        long now = System.currentTimeMillis();
+        request.sentAt = now;
+        this.requests.increment();
+        synchronized (this) {
+            this.windowRequests[this.bucket(now / 1000)]++;
+        }
+        return now;
+    }
+
+    /**
+     * Get how long to wait before retrying an attempt, taking a retry from the budget.
+     * @return the delay in milliseconds, or -1 if the attempt isn't retried
+     */
+    private long retryDelay(ViHttpRequest request, int retries, long start, ViHttpResponse response, Throwable error) {
+        if (retries >= this.maxRetries || request.getBodyStream() != null) return -1;
+        long delay;
+        if (error instanceof CircuitOpenException && request.getProxyPool() == null) return -1; // retrying can only fail again
+        if (error != null) {
+            boolean unsent = error instanceof UnprocessedRequestException || error instanceof ConnectException
+                    || ((error instanceof ProxyException || error instanceof CircuitOpenException)
+                    && request.getProxyPool() != null); // another proxy is picked
+            if (!unsent && !(error instanceof IOException && request.isIdempotent())) return -1;
+            delay = this.backoff(retries);
+        } else {
+            if (!this.retryStatuses.contains(response.getStatusCode()) || !request.isIdempotent()) return -1;
+            delay = this.backoff(retries);
+            long retryAfter = retryAfter(response.getHeader("Retry-After"));
+            if (retryAfter > this.maxBackoff) return -1;
+            delay = Math.max(delay, retryAfter);
+        }
+        if (request.getDeadline() > 0 && System.currentTimeMillis() + delay - start >= request.getDeadline()) return -1;
+
+        if (!this.withdraw()) {
+            this.budgetExhausted.increment();
+            return -1;
+        }
+        this.retries.increment();
+        return delay;
+    }
+
+    private long backoff(int retries) {
+        long cap = Math.min(this.maxBackoff, this.initialBackoff << Math.min(retries, 30));
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Take a retry from the budget, if there is one left.
+     */
+    private synchronized boolean withdraw() {
+        long second = System.currentTimeMillis() / 1000;
+        long requests = 0;
+        long retries = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            if (this.windowSeconds[i] > second - WINDOW) {
+                requests += this.windowRequests[i];
+                retries += this.windowRetries[i];
+            }
+        }
+        if (retries >= (long) this.minRetriesPerSecond * WINDOW + this.budgetRatio * requests) return false;
+        this.windowRetries[this.bucket(second)]++;
+        return true;
+    }
+
+    /**
+     * Get the index of the bucket for a second, clearing it if it held an older second.
+     */
+    private int bucket(long second) {
+        int index = (int) (second % WINDOW);
+        if (this.windowSeconds[index] != second) {
+            this.windowSeconds[index] = second;
+            this.windowRequests[index] = 0;
+            this.windowRetries[index] = 0;
+        }
+        return index;
+    }
+
+    /**
+     * Parse a Retry-After header, which is either an amount of seconds or an HTTP date.
+     * @return the delay it asks for in milliseconds, 0 if there is none
+     */
+    private static long retryAfter(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            return Math.max(0, ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
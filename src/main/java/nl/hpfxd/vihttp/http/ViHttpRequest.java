@@ -21,13 +21,36 @@ package nl.hpfxd.vihttp.http;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import nl.hpfxd.vihttp.ViHttpClient;
-import nl.hpfxd.vihttp.http.impl.HttpImpl;
+import nl.hpfxd.vihttp.cache.ResponseCache;
+import nl.hpfxd.vihttp.exception.CircuitOpenException;
+import nl.hpfxd.vihttp.exception.ConnectionClosedException;
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.exception.ProxyException;
+import nl.hpfxd.vihttp.exception.UnprocessedRequestException;
+import nl.hpfxd.vihttp.network.CircuitBreaker;
+import nl.hpfxd.vihttp.network.ConnectionManager;
+import nl.hpfxd.vihttp.network.RouteLimiter;
 import nl.hpfxd.vihttp.network.ViHttpConnection;
+import nl.hpfxd.vihttp.network.nio.NioConnection;
 import nl.hpfxd.vihttp.proxy.ViProxy;
+import nl.hpfxd.vihttp.proxy.ViProxyPool;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 public class ViHttpRequest {
@@ -37,15 +60,28 @@ public class ViHttpRequest {
     @Getter private final String host;
     @Getter private final int port;
     @Getter private final boolean ssl;
-    @Getter private final InetSocketAddress address;
     @Getter private final String path;
     @Getter private String body = null;
+    @Getter private InputStream bodyStream = null;
+    @Getter private long bodyLength = -1;
     private final Map<String, String> headers = new HashMap<>();
     private final Map<String, String> queryParams = new HashMap<>();
     private final List<HttpCompressionScheme> compressionSchemes = new ArrayList<>();
 
     @Getter private ViProxy proxy;
+    @Getter private ViProxyPool proxyPool;
+    @Getter private ResponseCache cache;
+    @Getter private RequestCoalescer coalescer;
+    @Getter private RetryPolicy retryPolicy;
+    @Getter private HedgingPolicy hedgingPolicy;
     @Getter private long timeout;
+    @Getter private long connectTimeout;
+    @Getter private long deadline = 0;
+    @Getter private boolean streaming = false;
+    /**
+     * When the first attempt of a request that is retried was sent, as its deadline counts from there, or 0.
+     */
+    volatile long sentAt = 0;
 
     public ViHttpRequest(ViHttpClient client, HttpRequestMethod requestMethod, String host, int port, boolean ssl, String path, String queryString) {
         this.client = client;
@@ -53,10 +89,15 @@ public class ViHttpRequest {
         this.host = host;
         this.port = port;
         this.ssl = ssl;
-        this.address = new InetSocketAddress(host, port);
         this.httpVersion = this.client.getHttpVersion();
         this.proxy = this.client.getProxy();
+        this.proxyPool = this.client.getProxyPool();
+        this.cache = this.client.getCache();
+        this.coalescer = this.client.getCoalescer();
+        this.retryPolicy = this.client.getRetryPolicy();
+        this.hedgingPolicy = this.client.getHedgingPolicy();
         this.timeout = this.client.getTimeout();
+        this.connectTimeout = this.client.getConnectTimeout();
         this.path = path.isEmpty() ? "/" : path;
         this.compressionSchemes.addAll(client.getCompressionSchemes());
         if (queryString != null && !queryString.isEmpty()) {
@@ -72,35 +113,550 @@ public class ViHttpRequest {
 
     /**
      * Send the request to the server.
+     * If a cache is set and holds a fresh response to the request, that is returned instead.
+     * If a coalescer is set and an identical request is in flight, its response is returned instead.
      * @return the response
      */
-    @SneakyThrows(IOException.class)
     public ViHttpResponse send() {
-        ViHttpConnection connection = null;
+        if (this.coalescer != null) return this.coalescer.send(this, this::sendThroughCache);
+        return this.sendThroughCache();
+    }
+
+    /**
+     * Send the request to the server, unless the cache holds a fresh response to it.
+     */
+    private ViHttpResponse sendThroughCache() {
+        if (this.cache == null) return this.sendWithRetries();
+        ViHttpResponse cached = this.cache.get(this);
+        if (cached != null) return cached;
+        Map<String, String> validators = this.cache.getValidators(this);
+        long requestTime = System.currentTimeMillis();
+        if (validators.isEmpty()) return this.cache.update(this, requestTime, this.sendWithRetries());
+
+        this.headers.putAll(validators);
+        try {
+            return this.cache.revalidate(this, requestTime, this.sendWithRetries());
+        } finally {
+            validators.keySet().forEach(this.headers::remove);
+        }
+    }
+
+    /**
+     * Send the request to the server, again after failures the retry policy retries.
+     */
+    private ViHttpResponse sendWithRetries() {
+        if (this.retryPolicy == null) return this.sendHedged();
+        return this.retryPolicy.send(this, this::sendHedged);
+    }
+
+    /**
+     * Send the request to the server, along with copies of it if it's slow and the hedging policy allows them.
+     */
+    private ViHttpResponse sendHedged() {
+        if (this.hedgingPolicy == null) return this.sendToServer();
+        Executor executor = this.client.getExecutor();
+        return this.hedgingPolicy.send(this, request -> request.sendAsyncToServer(executor));
+    }
+
+    /**
+     * Send the request to the server, through a proxy picked from the proxy pool if there is one.
+     */
+    @SneakyThrows(IOException.class)
+    private ViHttpResponse sendToServer() {
+        if (this.proxyPool == null) return this.sendThroughLimiter();
+        ViProxyPool proxyPool = this.proxyPool;
+        ViProxy proxy = this.proxy = proxyPool.acquire();
+        long start = System.currentTimeMillis();
+        Throwable error = null;
+        try {
+            return this.sendThroughLimiter();
+        } catch (Throwable e) {
+            error = e;
+            throw e;
+        } finally {
+            proxyPool.release(proxy, System.currentTimeMillis() - start, error);
+        }
+    }
+
+    /**
+     * Send the request once the limiter of its route allows it.
+     */
+    @SneakyThrows(IOException.class)
+    private ViHttpResponse sendThroughLimiter() {
+        RouteLimiter limiter = this.client.getConnectionManager().getRouteLimiter(this);
+        if (limiter == null) return this.sendThroughCircuitBreaker();
+        long sentAt = this.sentAt;
+        if (sentAt == 0) this.sentAt = System.currentTimeMillis(); // the wait counts towards the deadline
+        try {
+            this.awaitPermit(limiter);
+            long start = System.currentTimeMillis();
+            ViHttpResponse response = null;
+            Throwable error = null;
+            try {
+                return response = this.sendThroughCircuitBreaker();
+            } catch (Throwable e) {
+                error = e;
+                throw e;
+            } finally {
+                limiter.release(System.currentTimeMillis() - start, response, error);
+            }
+        } finally {
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * Wait for a permit of the limiter, within the request's deadline.
+     */
+    private void awaitPermit(RouteLimiter limiter) throws IOException {
+        CompletableFuture<Void> permit = limiter.acquire();
+        try {
+            if (this.deadline > 0) {
+                permit.get(Math.max(0, this.deadline - (System.currentTimeMillis() - this.sentAt)), TimeUnit.MILLISECONDS);
+            } else {
+                permit.get();
+            }
+        } catch (InterruptedException e) {
+            if (!permit.cancel(true) && !permit.isCompletedExceptionally()) limiter.release();
+            Thread.currentThread().interrupt();
+            throw new HttpException("Interrupted while waiting for the rate limit.", e);
+        } catch (TimeoutException e) {
+            if (permit.cancel(true)) throw this.deadlineException(e);
+            this.awaitPermit(permit); // completed in the meantime
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new HttpException(e.getCause());
+        }
+    }
+
+    private void awaitPermit(CompletableFuture<Void> permit) throws IOException {
+        try {
+            permit.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new HttpException(e.getCause());
+        }
+    }
+
+    /**
+     * Send the request, unless the circuit breaker of its route is open.
+     */
+    @SneakyThrows(IOException.class)
+    private ViHttpResponse sendThroughCircuitBreaker() {
+        CircuitBreaker circuitBreaker = this.client.getConnectionManager().getCircuitBreaker(this);
+        if (circuitBreaker == null) return this.sendOnRoute();
+        long permit = circuitBreaker.acquire();
+        long start = System.currentTimeMillis();
+        try {
+            ViHttpResponse response = this.sendOnRoute();
+            circuitBreaker.record(permit, System.currentTimeMillis() - start, response, null);
+            return response;
+        } catch (Throwable e) {
+            circuitBreaker.record(permit, System.currentTimeMillis() - start, null, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Send the request on a connection of its route, within its deadline.
+     */
+    @SneakyThrows(IOException.class)
+    private ViHttpResponse sendOnRoute() {
+        long start = this.sentAt != 0 ? this.sentAt : System.currentTimeMillis();
+        ConnectionManager connectionManager = this.client.getConnectionManager();
+        AtomicReference<ViHttpConnection> holder = new AtomicReference<>(connectionManager.getConnection(this));
+        TimerTask deadlineTask = null;
+        if (this.deadline > 0) deadlineTask = connectionManager.schedule(() -> this.abort(holder), this.deadline - (System.currentTimeMillis() - start));
         try {
-            connection = this.client.getConnectionManager().getConnection(this);
-            if (this.client.isConnectionReuseEnabled()) connection.getLock().lock();
-            HttpImpl impl = this.httpVersion.getImpl();
-            impl.sendRequest(this, connection.getSocket().getOutputStream());
-            if (this.client.isPipeliningEnabled()) {
-                connection.getLock().unlock();
-                connection.getReadLock().lock();
+            if (holder.get() instanceof NioConnection) {
+                try {
+                    return this.exchangeAsync(holder).get();
+                } catch (InterruptedException e) {
+                    this.abort(holder);
+                    Thread.currentThread().interrupt();
+                    throw new HttpException("Interrupted while waiting for the response.", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new HttpException(e.getCause());
+                }
             }
-            return impl.getResponse(connection.getSocket().getInputStream());
+            return this.exchange(holder, () -> this.deadline > 0 && System.currentTimeMillis() - start >= this.deadline);
+        } catch (IOException e) {
+            if (this.deadline > 0 && System.currentTimeMillis() - start >= this.deadline) throw this.deadlineException(e);
+            throw e;
         } finally {
-            if (connection != null) {
-                if (this.client.isConnectionReuseEnabled()) {
-                    if (this.client.isPipeliningEnabled()) {
-                        connection.getReadLock().unlock();
-                    } else {
-                        connection.getLock().unlock();
+            if (deadlineTask != null) deadlineTask.cancel();
+        }
+    }
+
+    /**
+     * Send the request to the server without blocking, using the client's executor.
+     * @return a future completed with the response
+     * @see #sendAsync(Executor)
+     */
+    public CompletableFuture<ViHttpResponse> sendAsync() {
+        return this.sendAsync(this.client.getExecutor());
+    }
+
+    /**
+     * Send the request to the server without blocking.
+     * The returned future can be cancelled, which aborts the exchange and closes its connection.
+     * If a cache is set and holds a fresh response to the request, the future is completed with it right away.
+     * If a coalescer is set and an identical request is in flight, the future is completed with its response.
+     *
+     * With NIO enabled the response is read by an I/O thread and the executor is only used to open new
+     * connections and to complete the future. Otherwise a blocking exchange runs on the executor.
+     * @param executor the executor to run blocking work and callbacks on
+     * @return a future completed with the response
+     */
+    public CompletableFuture<ViHttpResponse> sendAsync(Executor executor) {
+        if (this.coalescer != null) return this.coalescer.sendAsync(this, () -> this.sendAsyncThroughCache(executor));
+        return this.sendAsyncThroughCache(executor);
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncThroughCache(Executor executor) {
+        if (this.cache == null) return this.sendAsyncWithRetries(executor);
+        ViHttpResponse cached = this.cache.get(this);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        Map<String, String> validators = this.cache.getValidators(this);
+        long requestTime = System.currentTimeMillis();
+        this.headers.putAll(validators);
+        CompletableFuture<ViHttpResponse> sent = this.sendAsyncWithRetries(executor);
+        CompletableFuture<ViHttpResponse> future = sent.whenComplete((response, error) -> validators.keySet().forEach(this.headers::remove))
+                .thenApply(response -> validators.isEmpty()
+                        ? this.cache.update(this, requestTime, response)
+                        : this.cache.revalidate(this, requestTime, response));
+        future.whenComplete((response, error) -> {
+            if (future.isCancelled()) sent.cancel(true);
+        });
+        return future;
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncWithRetries(Executor executor) {
+        if (this.retryPolicy == null) return this.sendAsyncHedged(executor);
+        return this.retryPolicy.sendAsync(this, executor, () -> this.sendAsyncHedged(executor));
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncHedged(Executor executor) {
+        if (this.hedgingPolicy == null) return this.sendAsyncToServer(executor);
+        return this.hedgingPolicy.sendAsync(this, request -> request.sendAsyncToServer(executor));
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncToServer(Executor executor) {
+        if (this.proxyPool == null) return this.sendAsyncThroughLimiter(executor);
+        ViProxyPool proxyPool = this.proxyPool;
+        ViProxy proxy;
+        try {
+            proxy = this.proxy = proxyPool.acquire();
+        } catch (ProxyException e) {
+            CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        long start = System.currentTimeMillis();
+        CompletableFuture<ViHttpResponse> future = this.sendAsyncThroughLimiter(executor);
+        future.whenComplete((response, error) -> proxyPool.release(proxy, System.currentTimeMillis() - start, error));
+        return future;
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncThroughLimiter(Executor executor) {
+        RouteLimiter limiter = this.client.getConnectionManager().getRouteLimiter(this);
+        if (limiter == null) return this.sendAsyncThroughCircuitBreaker(executor);
+        CompletableFuture<Void> permit = limiter.acquire();
+        if (permit.isDone() && !permit.isCompletedExceptionally()) return this.sendAsyncWithPermit(limiter, executor);
+
+        CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+        if (this.deadline > 0) { // the wait counts towards the deadline; callbacks run on the executor, not the shared timer
+            TimerTask deadlineTask = this.client.getConnectionManager().schedule(() -> executor.execute(() -> future.completeExceptionally(this.deadlineException(null))),
+                    this.deadline - (this.sentAt != 0 ? System.currentTimeMillis() - this.sentAt : 0));
+            future.whenComplete((response, error) -> deadlineTask.cancel());
+        }
+        future.whenComplete((response, error) -> {
+            if (error != null) permit.cancel(true); // stop waiting, a permit handed out in the meantime is given back
+        });
+        permit.whenComplete((granted, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            if (future.isDone()) {
+                limiter.release();
+                return;
+            }
+            CompletableFuture<ViHttpResponse> sent = this.sendAsyncWithPermit(limiter, executor);
+            sent.whenComplete((response, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                } else if (!future.complete(response)) {
+                    try {
+                        response.close(); // only matters for a streaming response
+                    } catch (IOException ignored) {
                     }
                 }
-                if (!this.client.isConnectionReuseEnabled()) connection.close();
+            });
+            future.whenComplete((response, e) -> {
+                if (e != null) sent.cancel(true);
+            });
+        });
+        return future;
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncWithPermit(RouteLimiter limiter, Executor executor) {
+        long start = System.currentTimeMillis();
+        CompletableFuture<ViHttpResponse> sent = this.sendAsyncThroughCircuitBreaker(executor);
+        CompletableFuture<ViHttpResponse> future = sent.whenComplete((response, error) ->
+                limiter.release(System.currentTimeMillis() - start, response, error));
+        future.whenComplete((response, error) -> {
+            if (future.isCancelled()) sent.cancel(true);
+        });
+        return future;
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncThroughCircuitBreaker(Executor executor) {
+        CircuitBreaker circuitBreaker = this.client.getConnectionManager().getCircuitBreaker(this);
+        if (circuitBreaker == null) return this.sendAsyncOnRoute(executor);
+        long permit;
+        try {
+            permit = circuitBreaker.acquire();
+        } catch (CircuitOpenException e) {
+            CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        long start = System.currentTimeMillis();
+        CompletableFuture<ViHttpResponse> sent = this.sendAsyncOnRoute(executor);
+        CompletableFuture<ViHttpResponse> future = sent.whenComplete((response, error) ->
+                circuitBreaker.record(permit, System.currentTimeMillis() - start, response, error)); // recorded before callers see the response
+        future.whenComplete((response, error) -> {
+            if (future.isCancelled()) sent.cancel(true);
+        });
+        return future;
+    }
+
+    private CompletableFuture<ViHttpResponse> sendAsyncOnRoute(Executor executor) {
+        CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+        AtomicReference<ViHttpConnection> holder = new AtomicReference<>();
+        if (this.deadline > 0) { // completed on the executor, like the responses, so callbacks don't hold up the timer
+            TimerTask deadlineTask = this.client.getConnectionManager().schedule(() -> executor.execute(() -> future.completeExceptionally(this.deadlineException(null))),
+                    this.deadline - (this.sentAt != 0 ? System.currentTimeMillis() - this.sentAt : 0));
+            future.whenComplete((response, error) -> deadlineTask.cancel());
+        }
+        future.whenComplete((response, error) -> {
+            if (error != null) this.abort(holder); // cancelled or deadline exceeded
+        });
+
+        this.client.getConnectionManager().getConnectionAsync(this, executor).whenComplete((connection, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            holder.set(connection);
+            if (future.isDone()) { // cancelled while waiting for the connection
+                if (holder.compareAndSet(connection, null)) connection.release();
+                return;
+            }
+
+            try {
+                if (connection instanceof NioConnection) {
+                    this.exchangeAsync(holder).whenCompleteAsync((response, e) -> {
+                        if (e != null) {
+                            future.completeExceptionally(e);
+                        } else {
+                            future.complete(response);
+                        }
+                    }, executor);
+                } else {
+                    executor.execute(() -> {
+                        try {
+                            future.complete(this.exchange(holder, future::isDone));
+                        } catch (Throwable e) {
+                            future.completeExceptionally(e);
+                        }
+                    });
+                }
+            } catch (RejectedExecutionException e) {
+                this.abort(holder);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Perform a blocking exchange, sending the request again on another connection once if the connection
+     * failed before the request was answered.
+     * Idempotent requests are also sent again when a connection from the pool turns out to be closed by the server,
+     * after closing the connections that were idle for at least as long, as they're likely closed as well.
+     * A connection shared with other exchanges wasn't idle, so a failure there is not treated as a stale connection.
+     */
+    private ViHttpResponse exchange(AtomicReference<ViHttpConnection> holder, BooleanSupplier aborted) throws IOException {
+        while (true) {
+            ViHttpConnection connection = holder.get();
+            long idle = connection != null && connection.isPooled() && connection.getLeases() == 1
+                    ? System.currentTimeMillis() - connection.getLastUsed() : -1;
+            try {
+                return this.exchange(holder);
+            } catch (UnprocessedRequestException e) {
+                if (aborted.getAsBoolean() || this.bodyStream != null) throw e; // a body stream can't be sent again
+                holder.set(this.client.getConnectionManager().getConnection(this));
+                return this.exchange(holder);
+            } catch (ConnectionClosedException e) {
+                if (idle == -1 || aborted.getAsBoolean() || this.bodyStream != null || !this.isIdempotent()) throw e;
+                connection.getPool().evictIdle(idle - 1);
+                holder.set(this.client.getConnectionManager().getConnection(this));
+            }
+        }
+    }
+
+    /**
+     * Perform a blocking exchange on the leased connection in the holder, then release or close the connection.
+     * The connection is only released if it is still in the holder, so an abort can't close a connection
+     * that was already handed to another request.
+     * For a streaming response this happens once its body ended instead.
+     */
+    private ViHttpResponse exchange(AtomicReference<ViHttpConnection> holder) throws IOException {
+        ViHttpConnection connection = holder.get();
+        if (connection == null) throw new HttpException("Request was aborted.");
+        boolean reusable = false;
+        ViHttpResponse response = null;
+        try {
+            response = this.httpVersion.getImpl().exchange(this, connection);
+            reusable = this.isReusable(response);
+            return response;
+        } finally {
+            if (response != null && response.isStreaming()) {
+                boolean reusableConnection = reusable;
+                response.getRawBodyStream().onEnd(complete -> this.finish(holder, connection, complete && reusableConnection));
+            } else {
+                this.finish(holder, connection, reusable);
             }
         }
     }
 
+    /**
+     * Release the connection if it is still in the holder, or abort the exchange on it if it can't be reused.
+     */
+    private void finish(AtomicReference<ViHttpConnection> holder, ViHttpConnection connection, boolean reusable) {
+        if (!holder.compareAndSet(connection, null)) return;
+        if (reusable) {
+            connection.release();
+        } else {
+            connection.abort(this);
+        }
+    }
+
+    private CompletableFuture<ViHttpResponse> exchangeAsync(AtomicReference<ViHttpConnection> holder) {
+        NioConnection connection = (NioConnection) holder.get();
+        return connection.exchange(this).whenComplete((response, error) -> {
+            if (!holder.compareAndSet(connection, null)) return;
+            if (error == null && this.isReusable(response)) {
+                connection.release();
+            } else {
+                connection.close();
+            }
+        });
+    }
+
+    private boolean isReusable(ViHttpResponse response) {
+        return this.client.isConnectionReuseEnabled() && !"close".equalsIgnoreCase(response.getHeader("Connection"));
+    }
+
+    HttpException deadlineException(Throwable cause) {
+        return new HttpException("Request deadline of " + this.deadline + "ms exceeded.", cause);
+    }
+
+    /**
+     * Abort the exchange on the connection in the holder, if it hasn't finished yet.
+     */
+    private void abort(AtomicReference<ViHttpConnection> holder) {
+        ViHttpConnection connection = holder.getAndSet(null);
+        if (connection != null) connection.abort(this);
+    }
+
+    /**
+     * Open connections for this request's route ahead of time, without sending it.
+     * Later requests to the same host, port and proxy use them without waiting for a connect, proxy tunnel or TLS handshake.
+     * With a proxy pool, the connections are opened through a single proxy picked from it.
+     * @param connections the amount of connections the pool should hold, bounded by the maximum per route
+     * @return a future completed with the amount of connections opened
+     */
+    @SneakyThrows(ProxyException.class)
+    public CompletableFuture<Integer> prewarm(int connections) {
+        if (this.proxyPool != null) this.proxy = this.proxyPool.select();
+        return this.client.getConnectionManager().prewarm(this, connections);
+    }
+
+    /**
+     * Copy this request, so the copy can be sent while this request is in flight.
+     * The body stream isn't copied, as it can only be read once.
+     */
+    ViHttpRequest copy() {
+        ViHttpRequest copy = new ViHttpRequest(this.client, this.requestMethod, this.host, this.port, this.ssl, this.path, null);
+        copy.body = this.body;
+        copy.headers.clear();
+        copy.headers.putAll(this.headers);
+        copy.queryParams.putAll(this.queryParams);
+        copy.compressionSchemes.clear();
+        copy.compressionSchemes.addAll(this.compressionSchemes);
+        copy.proxy = this.proxy;
+        copy.proxyPool = this.proxyPool;
+        copy.cache = this.cache;
+        copy.coalescer = this.coalescer;
+        copy.retryPolicy = this.retryPolicy;
+        copy.hedgingPolicy = this.hedgingPolicy;
+        copy.timeout = this.timeout;
+        copy.connectTimeout = this.connectTimeout;
+        copy.deadline = this.deadline;
+        copy.streaming = this.streaming;
+        copy.sentAt = this.sentAt;
+        return copy;
+    }
+
+    /**
+     * Whether the request may be sent again after a failure, because its method is idempotent
+     * or it has an Idempotency-Key header.
+     * @return if the request is idempotent
+     */
+    public boolean isIdempotent() {
+        if (this.requestMethod.isIdempotent()) return true;
+        for (String name : this.headers.keySet()) {
+            if (name.equalsIgnoreCase("Idempotency-Key")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Resolve the address of the host with the client's resolver.
+     * Connections resolve their host when they're opened, so requests don't need this to be sent.
+     * @return the address of the host
+     */
+    @SneakyThrows(UnknownHostException.class)
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(this.client.getResolver().resolve(this.host).get(0), this.port);
+    }
+
+    /**
+     * Get the path with the query string appended, as sent in the request line.
+     * @return the path and query
+     */
+    public String getPathAndQuery() {
+        if (this.queryParams.isEmpty()) return this.path;
+        StringBuilder pathAndQuery = new StringBuilder(this.path).append('?');
+        for (Map.Entry<String, String> param : this.queryParams.entrySet()) {
+            if (pathAndQuery.length() > this.path.length() + 1) pathAndQuery.append('&');
+            pathAndQuery.append(urlEncodeUTF8(param.getKey())).append('=').append(urlEncodeUTF8(param.getValue()));
+        }
+        return pathAndQuery.toString();
+    }
+
+    private static String urlEncodeUTF8(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
     /*
      * Headers
      */
@@ -244,6 +800,28 @@ public class ViHttpRequest {
      */
     public ViHttpRequest setProxy(ViProxy proxy) {
         this.proxy = proxy;
+        this.proxyPool = null;
+        return this;
+    }
+
+    /**
+     * Set the pool of proxies to pick the proxy for this request from when it's sent.
+     * Use {@code null} to not proxy this request.
+     * @param proxyPool the proxy pool
+     */
+    public ViHttpRequest setProxy(ViProxyPool proxyPool) {
+        this.proxy = null;
+        this.proxyPool = proxyPool;
+        return this;
+    }
+
+    /**
+     * Set the cache to answer this request from and store its response in.
+     * Use {@code null} to bypass the cache.
+     * @param cache the cache
+     */
+    public ViHttpRequest setCache(ResponseCache cache) {
+        this.cache = cache;
         return this;
     }
 
@@ -256,6 +834,76 @@ public class ViHttpRequest {
         return this;
     }
 
+    /**
+     * Set how long opening a connection for this request may take, if a new one is needed.
+     * @param connectTimeout the timeout in milliseconds, or 0 to wait for the operating system to give up
+     */
+    public ViHttpRequest setConnectTimeout(long connectTimeout) {
+        if (connectTimeout < 0) throw new IllegalArgumentException("connectTimeout can't be negative");
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Set the coalescer that lets this request share its exchange with identical requests in flight.
+     * Use {@code null} to always send it.
+     * @param coalescer the coalescer
+     */
+    public ViHttpRequest setCoalescer(RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+        return this;
+    }
+
+    /**
+     * Set the policy that decides whether this request is sent again after it failed.
+     * Use {@code null} to not retry it.
+     * @param retryPolicy the retry policy
+     */
+    public ViHttpRequest setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Set the policy that sends copies of this request when it's slow, answering with the first response.
+     * Use {@code null} to not hedge it.
+     * @param hedgingPolicy the hedging policy
+     */
+    public ViHttpRequest setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * Set the deadline for this request.
+     * This limits the total time the request may take, including waiting for a connection,
+     * unlike the timeout which only applies to each read.
+     * @param deadline the deadline in milliseconds after sending, or 0 for no deadline
+     */
+    public ViHttpRequest setDeadline(long deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Stream the response body from the connection instead of reading it into memory.
+     * The body is read through {@link ViHttpResponse#getBodyStream()}, and the connection is only released
+     * once the body was read to its end or the response was closed, so streaming responses must always be closed.
+     * Responses on NIO connections are always read into memory.
+     */
+    public ViHttpRequest enableStreaming() {
+        this.streaming = true;
+        return this;
+    }
+
+    /**
+     * Read the response body into memory before the response is returned.
+     */
+    public ViHttpRequest disableStreaming() {
+        this.streaming = false;
+        return this;
+    }
+
     /**
      * Set the proxy to be used for this request.
      * Use {@code null} to not send a user agent.
@@ -273,6 +921,32 @@ public class ViHttpRequest {
     public ViHttpRequest setBody(String body) {
         if (!this.requestMethod.isBodyValid()) throw new IllegalStateException("A body cannot be set on a request with the method " + this.requestMethod.name());
         this.body = body;
+        this.bodyStream = null;
+        this.bodyLength = -1;
+        return this;
+    }
+
+    /**
+     * Set a request body of unknown length, which is streamed instead of being buffered.
+     * Over HTTP/1.1 it is sent with the chunked transfer coding.
+     * The stream is read once, so the request isn't retried if its connection fails.
+     * @param body the request body
+     */
+    public ViHttpRequest setBodyStream(InputStream body) {
+        return this.setBodyStream(body, -1);
+    }
+
+    /**
+     * Set a request body that is streamed instead of being buffered.
+     * The stream is read once, so the request isn't retried if its connection fails.
+     * @param body the request body
+     * @param length the amount of bytes to send from the stream, or -1 to send it until it ends
+     */
+    public ViHttpRequest setBodyStream(InputStream body, long length) {
+        if (!this.requestMethod.isBodyValid()) throw new IllegalStateException("A body cannot be set on a request with the method " + this.requestMethod.name());
+        this.body = null;
+        this.bodyStream = body;
+        this.bodyLength = length;
         return this;
     }
 }
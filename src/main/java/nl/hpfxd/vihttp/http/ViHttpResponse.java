@@ -18,15 +18,82 @@
 
 package nl.hpfxd.vihttp.http;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Map;
 
 @Data
-public class ViHttpResponse {
+public class ViHttpResponse implements Closeable {
     private final int statusCode;
     private final Map<String, String> headers;
-    private final String body;
+    @Getter(AccessLevel.NONE) private final Map<String, String> trailers;
+    private final ResponseBodyStream rawBodyStream;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE) private String body;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE) private final ByteBuffer bodyBuffer;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE) private InputStream bodyStream = null;
+
+    public ViHttpResponse(int statusCode, Map<String, String> headers, String body) {
+        this(statusCode, headers, body, Collections.emptyMap());
+    }
+
+    public ViHttpResponse(int statusCode, Map<String, String> headers, String body, Map<String, String> trailers) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+        this.bodyBuffer = null;
+        this.trailers = trailers;
+        this.rawBodyStream = null;
+    }
+
+    /**
+     * Create a response with a body that's held in a buffer, such as a memory-mapped file.
+     * @param statusCode the status code
+     * @param headers the headers
+     * @param body the decompressed body, or {@code null} if the response has none
+     * @param trailers the trailers
+     */
+    public ViHttpResponse(int statusCode, Map<String, String> headers, ByteBuffer body, Map<String, String> trailers) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = null;
+        this.bodyBuffer = body != null ? body.asReadOnlyBuffer() : null;
+        this.trailers = trailers;
+        this.rawBodyStream = null;
+    }
+
+    private ViHttpResponse(int statusCode, Map<String, String> headers, ResponseBodyStream rawBodyStream) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.bodyBuffer = null;
+        this.trailers = null;
+        this.rawBodyStream = rawBodyStream;
+    }
+
+    /**
+     * Create a response whose body is still being read from its connection.
+     * @param statusCode the status code
+     * @param headers the headers
+     * @param bodyStream the body, before decompression
+     * @return the response
+     */
+    public static ViHttpResponse streaming(int statusCode, Map<String, String> headers, ResponseBodyStream bodyStream) {
+        return new ViHttpResponse(statusCode, headers, bodyStream);
+    }
 
     /**
      * Get a header value.
@@ -45,4 +112,178 @@ public class ViHttpResponse {
     public boolean hasHeader(String header) {
         return this.headers.containsKey(header);
     }
+
+    /**
+     * Get the trailers sent after the body.
+     * For a streaming response they are only complete once the body was read to its end.
+     * @return an unmodifiable map of trailers
+     */
+    public Map<String, String> getTrailers() {
+        return this.rawBodyStream != null ? this.rawBodyStream.getTrailers() : this.trailers;
+    }
+
+    /**
+     * Get the body as a string.
+     * For a streaming response, this reads the rest of the body into memory.
+     * @return the body, or {@code null} if the response has none
+     */
+    @SneakyThrows(IOException.class)
+    public synchronized String getBody() {
+        if (this.body == null && this.bodyBuffer != null) {
+            this.body = StandardCharsets.UTF_8.decode(this.bodyBuffer.duplicate()).toString();
+        } else if (this.body == null && this.rawBodyStream != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = this.getBodyStream()) {
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n != -1; n = in.read(buffer)) out.write(buffer, 0, n);
+            }
+            this.body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+        return this.body;
+    }
+
+    /**
+     * Get the decompressed body as a stream.
+     * For a streaming response the connection is only released once this stream was read to its end or closed.
+     * @return the body stream
+     */
+    @SneakyThrows(IOException.class)
+    public synchronized InputStream getBodyStream() {
+        if (this.bodyBuffer != null) return new ByteBufferInputStream(this.bodyBuffer.duplicate());
+        if (this.rawBodyStream == null) {
+            return new ByteArrayInputStream(this.body != null ? this.body.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        }
+        if (this.bodyStream == null) {
+            InputStream in = this.rawBodyStream;
+            if (this.headers.containsKey("Content-Encoding")) {
+                try {
+                    in = new EndOfStreamCloser(HttpCompressionScheme.wrapInputStream(in, HttpCompressionScheme.parseSchemeList(this.headers.get("Content-Encoding")), 8192), this.rawBodyStream);
+                } catch (RuntimeException e) {
+                    this.rawBodyStream.close();
+                    throw e;
+                }
+            }
+            this.bodyStream = in;
+        }
+        return this.bodyStream;
+    }
+
+    /**
+     * Get the decompressed body as a read-only buffer.
+     * For a response served from a disk cache this is a view of the memory-mapped file, so the body isn't
+     * copied onto the heap. For a streaming response, this reads the rest of the body into memory.
+     * @return the body buffer, empty if the response has no body
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (this.bodyBuffer != null) return this.bodyBuffer.duplicate();
+        String body = this.getBody();
+        return ByteBuffer.wrap(body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0]).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the decompressed body as a channel.
+     * @return the body channel
+     * @see #getBodyStream()
+     */
+    public ReadableByteChannel getBodyChannel() {
+        return Channels.newChannel(this.getBodyStream());
+    }
+
+    /**
+     * Whether the body is read from the connection as it's consumed, instead of being read into memory up front.
+     * @return if the response is streaming
+     */
+    public boolean isStreaming() {
+        return this.rawBodyStream != null;
+    }
+
+    /**
+     * Get the body as it's read from the connection, before decompression.
+     * @return the raw body stream, or {@code null} if the response isn't streaming
+     */
+    public ResponseBodyStream getRawBodyStream() {
+        return this.rawBodyStream;
+    }
+
+    /**
+     * Stop reading the body of a streaming response.
+     * If the body wasn't read to its end, the connection is closed instead of being reused.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.rawBodyStream != null) this.rawBodyStream.close();
+    }
+
+    /**
+     * Reads a buffer, without copying it.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!this.buffer.hasRemaining()) return -1;
+            int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
+    /**
+     * Ends the raw body once the decompressed stream ended. The decompressor stops at the end of its data,
+     * which can be before the end of the raw body, like the last chunk of a chunked body, so the rest of
+     * the raw body is read first. Otherwise the body would end incomplete and the connection couldn't be reused.
+     */
+    private static class EndOfStreamCloser extends FilterInputStream {
+        private final ResponseBodyStream raw;
+
+        EndOfStreamCloser(InputStream in, ResponseBodyStream raw) {
+            super(in);
+            this.raw = raw;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) this.end();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) this.end();
+            return n;
+        }
+
+        private void end() throws IOException {
+            byte[] buffer = new byte[512];
+            while (this.raw.read(buffer, 0, buffer.length) != -1) {
+                // only the framing after the compressed data should be left
+            }
+            this.close();
+        }
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decodes a body with the chunked transfer coding (RFC 7230 section 4.1) incrementally, including its trailers.
+ * The decoder never consumes bytes past the end of the body, so they are left for the next response.
+ */
+public class ChunkedDecoder {
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum State { SIZE, DATA, DATA_END, TRAILERS, DONE }
+
+    private State state = State.SIZE;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private long remaining = 0; // in the current chunk
+    private final Map<String, String> trailers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    /**
+     * The length of the decoded body so far.
+     */
+    @Getter private long length = 0;
+
+    /**
+     * Consume bytes from a buffer, copying the decoded body into another.
+     * Stops when the input is exhausted, the output is full, or the body ended.
+     * @param in the encoded bytes
+     * @param out the buffer to write decoded bytes to
+     */
+    public void decode(ByteBuffer in, ByteBuffer out) throws IOException {
+        while (in.hasRemaining() && this.state != State.DONE) {
+            if (this.state == State.DATA) {
+                if (!out.hasRemaining()) return;
+                int length = (int) Math.min(Math.min(in.remaining(), out.remaining()), this.remaining);
+                int limit = in.limit();
+                in.limit(in.position() + length);
+                out.put(in);
+                in.limit(limit);
+                this.remaining -= length;
+                this.length += length;
+                if (this.remaining == 0) this.state = State.DATA_END;
+                continue;
+            }
+
+            String line = this.readLine(in);
+            if (line == null) return;
+            switch (this.state) {
+                case SIZE: {
+                    int extension = line.indexOf(';');
+                    String size = (extension == -1 ? line : line.substring(0, extension)).trim();
+                    try {
+                        this.remaining = Long.parseLong(size, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed chunk size \"" + line + "\"");
+                    }
+                    if (this.remaining < 0) throw new IOException("Malformed chunk size \"" + line + "\"");
+                    this.state = this.remaining == 0 ? State.TRAILERS : State.DATA;
+                    break;
+                }
+                case DATA_END:
+                    if (!line.isEmpty()) throw new IOException("Expected CRLF after chunk data.");
+                    this.state = State.SIZE;
+                    break;
+                case TRAILERS:
+                    if (line.isEmpty()) {
+                        this.state = State.DONE;
+                    } else {
+                        int pos = line.indexOf(':');
+                        if (pos == -1) throw new IOException("Malformed trailer \"" + line + "\"");
+                        this.trailers.merge(line.substring(0, pos).trim(), line.substring(pos + 1).trim(), (a, b) -> a + ", " + b);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    /**
+     * Get the trailers, which are complete once the body ended.
+     * @return an unmodifiable map of trailers
+     */
+    public Map<String, String> getTrailers() {
+        return Collections.unmodifiableMap(this.trailers);
+    }
+
+    private String readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                String line = new String(this.line.toByteArray(), StandardCharsets.ISO_8859_1);
+                this.line.reset();
+                return line;
+            }
+            if (b != '\r') this.line.write(b);
+            if (this.line.size() > MAX_LINE_LENGTH) throw new IOException("Chunk size or trailer line too long.");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a request body with the chunked transfer coding (RFC 7230 section 4.1), one chunk per write.
+ * Chunks up to 8KB are framed in a buffer so each is written to the connection at once.
+ * {@link #finish()} writes the last chunk without closing the connection's stream.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final int MAX_FRAMED_LENGTH = 8192;
+    private final byte[] frame = new byte[MAX_FRAMED_LENGTH + 16]; // size line, data and CRLF
+    private boolean finished = false;
+
+    public ChunkedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return; // an empty chunk would end the body
+        byte[] size = Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII);
+        if (len > MAX_FRAMED_LENGTH) {
+            this.out.write(size);
+            this.out.write(CRLF);
+            this.out.write(b, off, len);
+            this.out.write(CRLF);
+            return;
+        }
+
+        int length = 0;
+        System.arraycopy(size, 0, this.frame, length, size.length);
+        length += size.length;
+        this.frame[length++] = '\r';
+        this.frame[length++] = '\n';
+        System.arraycopy(b, off, this.frame, length, len);
+        length += len;
+        this.frame[length++] = '\r';
+        this.frame[length++] = '\n';
+        this.out.write(this.frame, 0, length);
+    }
+
+    /**
+     * Write the last chunk and flush.
+     */
+    public void finish() throws IOException {
+        if (this.finished) return;
+        this.finished = true;
+        this.out.write(LAST_CHUNK);
+        this.out.flush();
+    }
+
+    /**
+     * Finish the body without closing the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        this.finish();
+    }
+}
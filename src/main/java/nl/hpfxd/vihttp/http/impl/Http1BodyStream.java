@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import nl.hpfxd.vihttp.http.ResponseBodyStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An HTTP/1.1 response body delimited by its length, or by the connection closing.
+ */
+public class Http1BodyStream extends ResponseBodyStream {
+    private final InputStream in;
+    private volatile long remaining;
+
+    /**
+     * @param in the connection's input stream
+     * @param length the length of the body, or -1 to read until the connection closes
+     */
+    public Http1BodyStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (this.isEnded()) return -1;
+        if (this.remaining == 0) {
+            this.end(true);
+            return -1;
+        }
+        if (len == 0) return 0;
+
+        int n;
+        try {
+            n = this.in.read(b, off, this.remaining == -1 ? len : (int) Math.min(len, this.remaining));
+        } catch (IOException e) {
+            this.end(false);
+            throw e;
+        }
+        if (n == -1) {
+            if (this.remaining == -1) {
+                this.end(true);
+                return -1;
+            }
+            this.end(false);
+            throw new EOFException("Connection closed with " + this.remaining + " bytes of the body left.");
+        }
+        if (this.remaining != -1) this.remaining -= n;
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (this.isEnded() || this.remaining == 0) return 0;
+        int available = this.in.available();
+        return this.remaining == -1 ? available : (int) Math.min(available, this.remaining);
+    }
+
+    /**
+     * Stop reading the body. The connection can only be reused if the body was read to its end.
+     */
+    @Override
+    public void close() {
+        this.end(this.remaining == 0);
+    }
+}
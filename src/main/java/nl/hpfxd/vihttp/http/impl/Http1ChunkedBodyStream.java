@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import nl.hpfxd.vihttp.http.ResponseBodyStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * An HTTP/1.1 response body with the chunked transfer coding, decoded as it's read.
+ */
+public class Http1ChunkedBodyStream extends ResponseBodyStream {
+    private final Http1InputBuffer in;
+    private final ChunkedDecoder decoder = new ChunkedDecoder();
+
+    /**
+     * @param in the connection's read buffer
+     */
+    public Http1ChunkedBodyStream(Http1InputBuffer in) {
+        this.in = in;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (this.isEnded()) return -1;
+        if (len == 0) return 0;
+
+        ByteBuffer out = ByteBuffer.wrap(b, off, len);
+        try {
+            while (out.position() == off && !this.decoder.isDone()) {
+                if (!this.in.fill()) throw new EOFException("Connection closed before the chunked body ended.");
+                ByteBuffer in = this.in.buffered();
+                int start = in.position();
+                this.decoder.decode(in, out);
+                this.in.consume(in.position() - start);
+            }
+        } catch (IOException e) {
+            this.end(false);
+            throw e;
+        }
+
+        if (out.position() > off) return out.position() - off;
+        this.end(true);
+        return -1;
+    }
+
+    @Override
+    public Map<String, String> getTrailers() {
+        return this.decoder.getTrailers();
+    }
+
+    /**
+     * Stop reading the body. The connection can only be reused if the body was read to its end.
+     */
+    @Override
+    public void close() {
+        this.end(this.decoder.isDone());
+    }
+}
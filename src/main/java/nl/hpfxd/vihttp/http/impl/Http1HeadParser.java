@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Parses the status line and headers of an HTTP/1.1 response from byte ranges as they arrive.
+ *
+ * Lines are found by scanning each range for LF in bulk and are parsed in place, only lines split
+ * across two ranges are copied. Common header names are shared instead of allocated for every response.
+ */
+public class Http1HeadParser {
+    private static final int MAX_HEAD_SIZE = 65536;
+    private static final String[] COMMON_NAMES = {
+            "Age", "Cache-Control", "Connection", "Content-Encoding", "Content-Length", "Content-Type", "Date",
+            "ETag", "Expires", "Keep-Alive", "Last-Modified", "Location", "Server", "Set-Cookie",
+            "Transfer-Encoding", "Vary", "content-encoding", "content-length", "content-type", "date", "server",
+    };
+    private static final byte[][] COMMON_NAME_BYTES = Arrays.stream(COMMON_NAMES)
+            .map(name -> name.getBytes(StandardCharsets.ISO_8859_1))
+            .toArray(byte[][]::new);
+
+    private enum State { STATUS_LINE, HEADERS, DONE }
+
+    private State state = State.STATUS_LINE;
+    private byte[] partial = new byte[256]; // a line split across ranges
+    private int partialLength = 0;
+    private int headSize = 0;
+    private String lastName = null;
+    @Getter private int statusCode;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Consume bytes, stopping at the end of the head so the body is left unread.
+     * @param b the array
+     * @param off the offset of the range
+     * @param len the length of the range
+     * @return the amount of bytes consumed
+     */
+    public int parse(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int pos = off;
+        while (pos < end && this.state != State.DONE) {
+            int lf = indexOf(b, pos, end, (byte) '\n');
+            if (lf == -1) {
+                this.appendPartial(b, pos, end - pos);
+                pos = end;
+            } else if (this.partialLength > 0) {
+                this.appendPartial(b, pos, lf - pos);
+                this.parseLine(this.partial, 0, this.partialLength);
+                this.partialLength = 0;
+                pos = lf + 1;
+            } else {
+                this.parseLine(b, pos, lf - pos);
+                pos = lf + 1;
+            }
+        }
+
+        this.headSize += pos - off;
+        if (this.headSize > MAX_HEAD_SIZE) throw new IOException("Response head is larger than " + MAX_HEAD_SIZE + " bytes.");
+        return pos - off;
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    /**
+     * @return an unmodifiable, case-insensitive map of the headers
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(this.headers);
+    }
+
+    private void parseLine(byte[] b, int off, int len) throws IOException {
+        if (len > 0 && b[off + len - 1] == '\r') len--;
+
+        if (this.state == State.STATUS_LINE) {
+            int space = indexOf(b, off, off + len, (byte) ' ');
+            if (len < 5 || b[off] != 'H' || b[off + 1] != 'T' || b[off + 2] != 'T' || b[off + 3] != 'P' || b[off + 4] != '/'
+                    || space == -1 || off + len - space < 4) {
+                throw new IOException("Malformed status line \"" + new String(b, off, len, StandardCharsets.ISO_8859_1) + "\"");
+            }
+            int statusCode = 0;
+            for (int i = space + 1; i < space + 4; i++) {
+                if (b[i] < '0' || b[i] > '9') throw new IOException("Malformed status line \"" + new String(b, off, len, StandardCharsets.ISO_8859_1) + "\"");
+                statusCode = statusCode * 10 + (b[i] - '0');
+            }
+            this.statusCode = statusCode;
+            this.state = State.HEADERS;
+            return;
+        }
+
+        if (len == 0) {
+            this.state = State.DONE;
+            return;
+        }
+
+        if ((b[off] == ' ' || b[off] == '\t') && this.lastName != null) { // obsolete line folding, part of the previous value
+            this.headers.put(this.lastName, this.headers.get(this.lastName) + " " + trimmed(b, off, off + len));
+            return;
+        }
+
+        int colon = indexOf(b, off, off + len, (byte) ':');
+        if (colon <= off) throw new IOException("Malformed header \"" + new String(b, off, len, StandardCharsets.ISO_8859_1) + "\"");
+        String name = name(b, off, colon - off);
+        this.headers.put(name, trimmed(b, colon + 1, off + len));
+        this.lastName = name;
+    }
+
+    private void appendPartial(byte[] b, int off, int len) throws IOException {
+        if (this.partialLength + len > MAX_HEAD_SIZE) throw new IOException("Response head is larger than " + MAX_HEAD_SIZE + " bytes.");
+        if (this.partialLength + len > this.partial.length) {
+            this.partial = Arrays.copyOf(this.partial, Math.max(this.partial.length * 2, this.partialLength + len));
+        }
+        System.arraycopy(b, off, this.partial, this.partialLength, len);
+        this.partialLength += len;
+    }
+
+    private static String name(byte[] b, int off, int len) {
+        for (int i = 0; i < COMMON_NAME_BYTES.length; i++) {
+            byte[] name = COMMON_NAME_BYTES[i];
+            if (name.length != len) continue;
+            int j = 0;
+            while (j < len && b[off + j] == name[j]) j++;
+            if (j == len) return COMMON_NAMES[i];
+        }
+        return new String(b, off, len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String trimmed(byte[] b, int start, int end) {
+        while (start < end && (b[start] == ' ' || b[start] == '\t')) start++;
+        while (end > start && (b[end - 1] == ' ' || b[end - 1] == '\t')) end--;
+        return new String(b, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(byte[] b, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (b[i] == value) return i;
+        }
+        return -1;
+    }
+}
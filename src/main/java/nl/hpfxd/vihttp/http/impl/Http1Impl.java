@@ -18,104 +18,216 @@
 
 package nl.hpfxd.vihttp.http.impl;
 
+import nl.hpfxd.vihttp.exception.ConnectionClosedException;
+import nl.hpfxd.vihttp.exception.HttpException;
 import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.HttpRequestMethod;
+import nl.hpfxd.vihttp.http.ResponseBodyStream;
 import nl.hpfxd.vihttp.http.ViHttpRequest;
 import nl.hpfxd.vihttp.http.ViHttpResponse;
-import nl.hpfxd.vihttp.proxy.ViProxyType;
+import nl.hpfxd.vihttp.network.Pipeline;
+import nl.hpfxd.vihttp.network.ViHttpConnection;
 
 import java.io.*;
-import java.net.URLEncoder;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 public class Http1Impl implements HttpImpl {
+    private static final int COALESCE_LIMIT = 8192; // bodies up to this size are copied behind the head
+
     @Override
+    public ViHttpResponse exchange(ViHttpRequest request, ViHttpConnection connection) throws IOException {
+        Pipeline pipeline = connection.getPipeline();
+        return pipeline.read(pipeline.write(request));
+    }
+
+    /**
+     * Write a request. The head is encoded into a pooled buffer and small bodies are appended to it,
+     * so most requests are written to the connection at once.
+     * @param request the request
+     * @param outputStream the connection's output stream
+     */
     public void sendRequest(ViHttpRequest request, OutputStream outputStream) throws IOException {
-        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream)));
-
-        String path = request.getPath();
-        if (!request.getQueryParams().isEmpty()) {
-            path += request.getQueryParams().entrySet().stream()
-                    .map(p -> urlEncodeUTF8(p.getKey()) + "=" + urlEncodeUTF8(p.getValue()))
-                    .reduce((p1, p2) -> p1 + "&" + p2)
-                    .map(s -> "?" + s)
-                    .orElse("");
+        Http1RequestEncoder encoder = Http1RequestEncoder.get();
+        if (request.getBodyStream() != null) { // stream the body, chunked if its length is unknown
+            long length = request.getBodyLength();
+            encoder.encodeHead(request, length == -1 ? Http1RequestEncoder.CHUNKED : length);
+            encoder.writeTo(outputStream);
+            writeBody(request.getBodyStream(), length, outputStream);
+            return;
         }
 
-        if (request.getProxy() != null && request.getProxy().getType() == ViProxyType.HTTP_REQUEST) {
-            /*
-             * for http request proxies, we have to change the request a bit
-             * normal request example:
-             * GET /test HTTP/1.1
-             * http request proxy example:
-             * GET http://host:port/test HTTP/1.1
-             */
-            path = "http" + (request.isSsl() ? "s" : "") + "://" + request.getAddress().getAddress().getHostAddress() + ":" + request.getPort()
-                    + path;
+        byte[] body = request.getBody() != null ? request.getBody().getBytes(StandardCharsets.UTF_8) : null;
+        encoder.encodeHead(request, body != null ? body.length : Http1RequestEncoder.NO_BODY);
+        if (body != null && body.length <= COALESCE_LIMIT) {
+            encoder.write(body, 0, body.length);
+            body = null;
         }
+        encoder.writeTo(outputStream);
+        if (body != null) outputStream.write(body);
+        outputStream.flush();
+    }
 
-        if (request.getCompressionSchemes().size() > 0) {
-            request.setHeader("Accept-Encoding", request.getCompressionSchemes().stream()
-                    .map(HttpCompressionScheme::getToken)
-                    .collect(Collectors.joining(", "))); // set Accept-Encoding header to a list of our supported compression schemes
+    /**
+     * Encode a request for a gathering write, as the head followed by the body if there is one.
+     * Streamed bodies are read into memory and sent with their length.
+     * @param request the request
+     * @return the buffers to write, in order
+     */
+    public ByteBuffer[] encodeRequest(ViHttpRequest request) throws IOException {
+        byte[] body = null;
+        if (request.getBodyStream() != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (request.getBodyLength() == -1) {
+                byte[] buffer = new byte[8192];
+                for (int n = request.getBodyStream().read(buffer); n != -1; n = request.getBodyStream().read(buffer)) out.write(buffer, 0, n);
+            } else {
+                writeBody(request.getBodyStream(), request.getBodyLength(), out);
+            }
+            body = out.toByteArray();
+        } else if (request.getBody() != null) {
+            body = request.getBody().getBytes(StandardCharsets.UTF_8);
         }
 
-        out.println(request.getRequestMethod().name() + " " + path + " HTTP/1.1"); // write status line
-        request.getHeaders().forEach((name, value) -> out.println(name + ": " + value)); // write headers
+        Http1RequestEncoder encoder = Http1RequestEncoder.get();
+        encoder.encodeHead(request, body != null ? body.length : Http1RequestEncoder.NO_BODY);
+        ByteBuffer head = ByteBuffer.allocate(encoder.size()); // the encoder is reused before the write completes
+        head.put(encoder.toByteBuffer());
+        head.flip();
+        return body != null ? new ByteBuffer[] { head, ByteBuffer.wrap(body) } : new ByteBuffer[] { head };
+    }
 
-        if (request.getBody() != null) { // write body
-            byte[] body = request.getBody().getBytes(StandardCharsets.UTF_8);
-            out.println("Content-Length: " + body.length);
-            out.println();
-            outputStream.write(body);
+    private static void writeBody(InputStream in, long length, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        if (length == -1) {
+            ChunkedOutputStream out = new ChunkedOutputStream(outputStream);
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) out.write(buffer, 0, n);
+            out.finish();
+            return;
         }
 
-        out.println(); // finish request
-        out.flush();
+        for (long remaining = length; remaining > 0; ) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n == -1) throw new IOException("Request body ended after " + (length - remaining) + " of " + length + " bytes.");
+            outputStream.write(buffer, 0, n);
+            remaining -= n;
+        }
+        outputStream.flush();
     }
 
-    @Override
-    public ViHttpResponse getResponse(InputStream in) throws IOException {
-        int statusCode = Integer.parseInt(readLine(in).split(" ")[1]);
-        Map<String, String> headers = new HashMap<>();
-        for (String header = readLine(in); header.length() > 0; header = readLine(in)) {
-            int pos = header.indexOf(":");
-            String name = header.substring(0, pos);
-            String value = header.substring(pos + 2);
-            headers.put(name, value);
+    /**
+     * Read a response, skipping interim (1xx) responses before it.
+     * @param in the connection's read buffer
+     * @param method the method of the request, as responses to HEAD requests have no body
+     * @param streaming whether to leave the body on the connection, to be read through the response's body stream
+     * @return the response
+     */
+    public ViHttpResponse getResponse(Http1InputBuffer in, HttpRequestMethod method, boolean streaming) throws IOException {
+        try {
+            if (!in.fill()) throw new ConnectionClosedException("Connection was closed before the response was received.", null);
+        } catch (SocketException e) {
+            throw new ConnectionClosedException("Connection was reset before the response was received.", e);
         }
-
-        String body = null;
-        if (headers.containsKey("Content-Length")) {
-            int bodyLength = Integer.parseInt(headers.get("Content-Length"));
-            InputStream bodyIn = in;
-            if (headers.containsKey("Content-Encoding")) {
-                System.out.println("ya");
-                System.out.println(bodyIn.getClass().getSimpleName());
-                bodyIn = HttpCompressionScheme.wrapInputStream(bodyIn, HttpCompressionScheme.parseSchemeList(headers.get("Content-Encoding")), bodyLength);
+        Http1HeadParser head;
+        do {
+            head = new Http1HeadParser();
+            in.readHead(head);
+        } while (isInterim(head.getStatusCode()));
+        int statusCode = head.getStatusCode();
+        Map<String, String> headers = head.getHeaders();
+
+        ResponseBodyStream body;
+        if (!hasBody(method, statusCode)) {
+            return new ViHttpResponse(statusCode, headers, null);
+        } else if (isChunked(headers)) {
+            body = new Http1ChunkedBodyStream(in);
+        } else {
+            long length = 0;
+            if (headers.containsKey("Content-Length")) {
+                length = parseContentLength(headers.get("Content-Length"));
+            } else if ("close".equalsIgnoreCase(headers.get("Connection"))) {
+                length = -1; // read until the server closes the connection
             }
-            byte[] bodyBytes = new byte[bodyLength];
-            for (int i = 0; i < bodyBytes.length; i++) {
-                bodyBytes[i] = (byte) bodyIn.read();
-                if (bodyBytes[i] == -1) throw new IOException("EOF reached while reading body. Expected " + bodyBytes.length + " bytes but only got to " + i);
+            if (length == 0) return new ViHttpResponse(statusCode, headers, null);
+            if (!streaming && length != -1) { // the length is known, so read it straight into the body
+                if (length > Integer.MAX_VALUE - 8) throw new IOException("Response body of " + length + " bytes is too large to buffer.");
+                byte[] bodyBytes = new byte[(int) length];
+                in.readFully(bodyBytes, 0, bodyBytes.length);
+                return new ViHttpResponse(statusCode, headers, decodeBody(bodyBytes, headers));
             }
-            body = new String(bodyBytes, StandardCharsets.UTF_8);
+            body = new Http1BodyStream(in, length);
         }
+        if (streaming) return ViHttpResponse.streaming(statusCode, headers, body);
 
-        return new ViHttpResponse(statusCode, Collections.unmodifiableMap(headers), body);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = body.read(buffer); n != -1; n = body.read(buffer)) out.write(buffer, 0, n);
+        return new ViHttpResponse(statusCode, headers, decodeBody(out.toByteArray(), headers), body.getTrailers());
     }
 
-    private static String urlEncodeUTF8(String s) {
-        try {
-            return URLEncoder.encode(s, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new UnsupportedOperationException(e);
+    private static String decodeBody(byte[] body, Map<String, String> headers) throws IOException {
+        if (headers.containsKey("Content-Encoding")) {
+            body = HttpCompressionScheme.decode(body, headers.get("Content-Encoding"));
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether a response can have a body. Responses to HEAD requests and 1xx, 204 and 304 responses never do,
+     * whatever their headers say (RFC 7230 section 3.3.3).
+     * @param method the method of the request
+     * @param statusCode the status code of the response
+     * @return if the response has a body
+     */
+    static boolean hasBody(HttpRequestMethod method, int statusCode) {
+        return method != HttpRequestMethod.HEAD && statusCode >= 200 && statusCode != 204 && statusCode != 304;
+    }
+
+    /**
+     * Whether a response is an interim response, which is followed by the final response to the request.
+     * 101 Switching Protocols is final, the connection speaks another protocol after it.
+     * @param statusCode the status code of the response
+     * @return if the response is interim
+     */
+    static boolean isInterim(int statusCode) {
+        return statusCode >= 100 && statusCode < 200 && statusCode != 101;
+    }
+
+    /**
+     * Parse a Content-Length header, which the server controls, so it's checked rather than trusted.
+     * @param value the header value
+     * @return the length
+     * @throws HttpException if the value is not a non-negative number, or doesn't fit in a long
+     */
+    static long parseContentLength(String value) throws HttpException {
+        String trimmed = value.trim();
+        if (trimmed.isEmpty() || trimmed.length() > 18) throw new HttpException("Invalid Content-Length: " + value);
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c < '0' || c > '9') throw new HttpException("Invalid Content-Length: " + value);
         }
+        return Long.parseLong(trimmed);
+    }
+
+    /**
+     * Whether a response body uses the chunked transfer coding, which takes precedence over its Content-Length.
+     * @param headers the response headers
+     * @return if the body is chunked
+     */
+    public static boolean isChunked(Map<String, String> headers) {
+        String transferEncoding = headers.get("Transfer-Encoding");
+        if (transferEncoding == null) return false;
+        String[] codings = transferEncoding.split(",");
+        return codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
     }
 
+    /**
+     * Read a line a byte at a time, for when nothing past the line may be consumed, like the response to a proxy CONNECT.
+     * @param inputStream the input stream
+     * @return the line, without its line ending
+     */
     public static String readLine(InputStream inputStream) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         int c;
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A read buffer for a connection, kept for the life of the connection so bytes read past the end
+ * of one response are left for the next.
+ *
+ * Reads as much as the connection has available at once instead of a byte at a time, and copies
+ * large reads straight into the caller's array.
+ */
+public class Http1InputBuffer extends InputStream {
+    private static final int DEFAULT_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    /**
+     * @param in the connection's input stream
+     */
+    public Http1InputBuffer(InputStream in) {
+        this(in, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param in the connection's input stream
+     * @param size the size of the buffer
+     */
+    public Http1InputBuffer(InputStream in, int size) {
+        this.in = in;
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * Read a response head into a parser.
+     * @param parser the parser, which is done once this returns
+     */
+    public void readHead(Http1HeadParser parser) throws IOException {
+        while (!parser.isDone()) {
+            if (!this.fill()) throw new EOFException("Connection closed while reading the response head.");
+            this.position += parser.parse(this.buffer, this.position, this.limit - this.position);
+        }
+    }
+
+    /**
+     * Make sure there are buffered bytes, reading from the connection if there are none.
+     * @return false if the connection was closed
+     */
+    public boolean fill() throws IOException {
+        if (this.position < this.limit) return true;
+        int n = this.in.read(this.buffer, 0, this.buffer.length);
+        if (n == -1) return false;
+        this.position = 0;
+        this.limit = n;
+        return true;
+    }
+
+    /**
+     * Get a view of the buffered bytes. Moving its position doesn't consume them, see {@link #consume(int)}.
+     * @return the buffered bytes
+     */
+    public ByteBuffer buffered() {
+        return ByteBuffer.wrap(this.buffer, this.position, this.limit - this.position);
+    }
+
+    /**
+     * Discard buffered bytes.
+     * @param length the amount of bytes
+     */
+    public void consume(int length) {
+        if (length < 0 || length > this.limit - this.position) throw new IndexOutOfBoundsException();
+        this.position += length;
+    }
+
+    /**
+     * Read exactly {@code len} bytes.
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        for (int read = 0; read < len; ) {
+            int n = this.read(b, off + read, len - read);
+            if (n == -1) throw new EOFException("Connection closed with " + (len - read) + " of " + len + " bytes left.");
+            read += n;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!this.fill()) return -1;
+        return this.buffer[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+
+        int buffered = this.limit - this.position;
+        if (buffered == 0) {
+            if (len >= this.buffer.length) return this.in.read(b, off, len); // no point copying through the buffer
+            if (!this.fill()) return -1;
+            buffered = this.limit - this.position;
+        }
+        int n = Math.min(len, buffered);
+        System.arraycopy(this.buffer, this.position, b, off, n);
+        this.position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (this.limit - this.position) + this.in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.proxy.ViProxyType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes HTTP/1.1 requests into a byte buffer. Every thread reuses its own encoder,
+ * so encoding a request head doesn't allocate writers or intermediate strings.
+ */
+class Http1RequestEncoder {
+    /**
+     * The body length for requests without a body.
+     */
+    static final long NO_BODY = -2;
+    /**
+     * The body length for bodies sent with the chunked transfer coding.
+     */
+    static final long CHUNKED = -1;
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_POOLED_SIZE = 65536; // larger buffers are dropped after use
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[] HTTP_1_1 = " HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<Http1RequestEncoder> POOL = ThreadLocal.withInitial(Http1RequestEncoder::new);
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int length = 0;
+
+    /**
+     * Get this thread's encoder, emptied. Its contents are only valid until the next call on the same thread.
+     * @return the encoder
+     */
+    static Http1RequestEncoder get() {
+        Http1RequestEncoder encoder = POOL.get();
+        if (encoder.buffer.length > MAX_POOLED_SIZE) encoder.buffer = new byte[INITIAL_SIZE];
+        encoder.length = 0;
+        return encoder;
+    }
+
+    /**
+     * Encode the request line and headers, ending with the empty line.
+     * @param request the request
+     * @param bodyLength the length of the body, {@link #CHUNKED} or {@link #NO_BODY}
+     */
+    void encodeHead(ViHttpRequest request, long bodyLength) {
+        this.writeString(request.getRequestMethod().name());
+        this.write((byte) ' ');
+        if (request.getProxy() != null && request.getProxy().getType() == ViProxyType.HTTP_REQUEST) {
+            /*
+             * for http request proxies, we have to change the request a bit
+             * normal request example:
+             * GET /test HTTP/1.1
+             * http request proxy example:
+             * GET http://host:port/test HTTP/1.1
+             */
+            this.writeString(request.isSsl() ? "https://" : "http://");
+            this.writeString(request.getHost());
+            this.write((byte) ':');
+            this.writeString(Integer.toString(request.getPort()));
+        }
+        this.writeString(request.getPathAndQuery());
+        this.write(HTTP_1_1, 0, HTTP_1_1.length);
+
+        List<HttpCompressionScheme> compressionSchemes = request.getCompressionSchemes();
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            // our supported compression schemes replace any Accept-Encoding header
+            if (!compressionSchemes.isEmpty() && header.getKey().equalsIgnoreCase("Accept-Encoding")) continue;
+            this.writeHeader(header.getKey(), header.getValue());
+        }
+        if (request.getProxy() != null && request.getProxy().getType() == ViProxyType.HTTP_REQUEST
+                && request.getProxy().getAuthentication() != null) {
+            this.writeHeader("Proxy-Authorization", request.getProxy().getProxyAuthorization());
+        }
+        if (!compressionSchemes.isEmpty()) {
+            this.writeString("Accept-Encoding: ");
+            for (int i = 0; i < compressionSchemes.size(); i++) {
+                if (i > 0) this.writeString(", ");
+                this.writeString(compressionSchemes.get(i).getToken());
+            }
+            this.write(CRLF, 0, CRLF.length);
+        }
+
+        if (bodyLength == CHUNKED) {
+            this.writeHeader("Transfer-Encoding", "chunked");
+        } else if (bodyLength != NO_BODY) {
+            this.writeHeader("Content-Length", Long.toString(bodyLength));
+        }
+        this.write(CRLF, 0, CRLF.length);
+    }
+
+    void write(byte[] b, int off, int len) {
+        this.ensureCapacity(len);
+        System.arraycopy(b, off, this.buffer, this.length, len);
+        this.length += len;
+    }
+
+    int size() {
+        return this.length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(this.buffer, 0, this.length);
+    }
+
+    /**
+     * Get a view of the encoded bytes, which is only valid until the encoder is reused.
+     * @return the encoded bytes
+     */
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(this.buffer, 0, this.length);
+    }
+
+    private void writeHeader(String name, String value) {
+        this.writeString(name);
+        this.write(HEADER_SEPARATOR, 0, HEADER_SEPARATOR.length);
+        this.writeString(value);
+        this.write(CRLF, 0, CRLF.length);
+    }
+
+    private void write(byte b) {
+        this.ensureCapacity(1);
+        this.buffer[this.length++] = b;
+    }
+
+    /**
+     * Write a string, copying ASCII directly and encoding anything else as UTF-8.
+     */
+    private void writeString(String s) {
+        int length = s.length();
+        this.ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] rest = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                this.write(rest, 0, rest.length);
+                return;
+            }
+            this.buffer[this.length++] = (byte) c;
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (this.length + additional <= this.buffer.length) return;
+        byte[] buffer = new byte[Math.max(this.buffer.length * 2, this.length + additional)];
+        System.arraycopy(this.buffer, 0, buffer, 0, this.length);
+        this.buffer = buffer;
+    }
+}
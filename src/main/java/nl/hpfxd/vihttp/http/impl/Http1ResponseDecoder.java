@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.HttpRequestMethod;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Parses an HTTP/1.1 response incrementally from buffers as they arrive, for use with non-blocking connections.
+ * Bytes after the end of the response are left in the buffer.
+ */
+public class Http1ResponseDecoder {
+    private enum State { HEAD, BODY, CHUNKED_BODY, DONE }
+
+    private final HttpRequestMethod method;
+    private State state = State.HEAD;
+    private Http1HeadParser head = new Http1HeadParser();
+    private Map<String, String> headers;
+    private ByteArrayOutputStream body = null;
+    private long remaining = -1; // -1 reads until the connection is closed
+    private ChunkedDecoder chunkedDecoder = null;
+    private byte[] chunkBuffer = null;
+
+    /**
+     * @param method the method of the request, as responses to HEAD requests have no body
+     */
+    public Http1ResponseDecoder(HttpRequestMethod method) {
+        this.method = method;
+    }
+
+    /**
+     * Consume bytes from a buffer.
+     * @param in the buffer to read from
+     * @return the response if it is complete, otherwise {@code null}
+     */
+    public ViHttpResponse decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && this.state != State.DONE) {
+            switch (this.state) {
+                case HEAD: {
+                    in.position(in.position() + this.head.parse(in.array(), in.arrayOffset() + in.position(), in.remaining()));
+                    if (this.head.isDone()) {
+                        if (Http1Impl.isInterim(this.head.getStatusCode())) {
+                            this.head = new Http1HeadParser(); // the final response follows
+                            break;
+                        }
+                        this.headers = this.head.getHeaders();
+                        this.startBody();
+                    }
+                    break;
+                }
+                case BODY: {
+                    int length = this.remaining == -1 ? in.remaining() : (int) Math.min(in.remaining(), this.remaining);
+                    this.body.write(in.array(), in.arrayOffset() + in.position(), length);
+                    in.position(in.position() + length);
+                    if (this.remaining != -1) {
+                        this.remaining -= length;
+                        if (this.remaining == 0) this.state = State.DONE;
+                    }
+                    break;
+                }
+                case CHUNKED_BODY: {
+                    ByteBuffer out = ByteBuffer.wrap(this.chunkBuffer);
+                    this.chunkedDecoder.decode(in, out);
+                    this.body.write(this.chunkBuffer, 0, out.position());
+                    if (this.chunkedDecoder.isDone()) this.state = State.DONE;
+                    break;
+                }
+            }
+        }
+
+        return this.state == State.DONE ? this.createResponse() : null;
+    }
+
+    /**
+     * Signal that the connection was closed.
+     * @return the response if its body was delimited by the connection closing
+     */
+    public ViHttpResponse decodeEof() throws IOException {
+        if (this.state == State.BODY && this.remaining == -1) {
+            this.state = State.DONE;
+            return this.createResponse();
+        }
+        throw new IOException("Connection closed before the response was complete.");
+    }
+
+    private void startBody() throws HttpException {
+        if (!Http1Impl.hasBody(this.method, this.head.getStatusCode())) {
+            this.state = State.DONE;
+        } else if (Http1Impl.isChunked(this.headers)) {
+            this.chunkedDecoder = new ChunkedDecoder();
+            this.chunkBuffer = new byte[8192];
+            this.body = new ByteArrayOutputStream();
+            this.state = State.CHUNKED_BODY;
+        } else if (this.headers.containsKey("Content-Length")) {
+            this.remaining = Http1Impl.parseContentLength(this.headers.get("Content-Length"));
+            if (this.remaining > Integer.MAX_VALUE - 8) throw new HttpException("Response body of " + this.remaining + " bytes is too large to buffer.");
+            this.body = new ByteArrayOutputStream(); // grows with what actually arrives
+            this.state = this.remaining == 0 ? State.DONE : State.BODY;
+        } else if ("close".equalsIgnoreCase(this.headers.get("Connection"))) {
+            this.body = new ByteArrayOutputStream();
+            this.state = State.BODY;
+        } else {
+            this.state = State.DONE; // no body
+        }
+    }
+
+    private ViHttpResponse createResponse() throws IOException {
+        String body = null;
+        if (this.body != null) {
+            byte[] bodyBytes = this.body.toByteArray();
+            if (this.headers.containsKey("Content-Encoding")) {
+                bodyBytes = HttpCompressionScheme.decode(bodyBytes, this.headers.get("Content-Encoding"));
+            }
+            body = new String(bodyBytes, StandardCharsets.UTF_8);
+        }
+        Map<String, String> trailers = this.chunkedDecoder != null ? this.chunkedDecoder.getTrailers() : Collections.emptyMap();
+        return new ViHttpResponse(this.head.getStatusCode(), this.headers, body, trailers);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl;
+
+import nl.hpfxd.vihttp.http.HttpVersion;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.network.ViHttpConnection;
+
+import java.io.IOException;
+
+/**
+ * Exchanges requests over HTTP/2 when the connection negotiated it, and over HTTP/1.1 otherwise.
+ */
+public class Http2Impl implements HttpImpl {
+    @Override
+    public ViHttpResponse exchange(ViHttpRequest request, ViHttpConnection connection) throws IOException {
+        if (connection.getHttp2() == null) return HttpVersion.HTTP_1.getImpl().exchange(request, connection);
+        return connection.getHttp2().exchange(request);
+    }
+}
@@ -20,12 +20,16 @@ package nl.hpfxd.vihttp.http.impl;
 
 import nl.hpfxd.vihttp.http.ViHttpRequest;
 import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.network.ViHttpConnection;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 public interface HttpImpl {
-    void sendRequest(ViHttpRequest request, OutputStream outputStream) throws IOException;
-    ViHttpResponse getResponse(InputStream inputStream) throws IOException;
+    /**
+     * Send a request on a leased connection and read its response.
+     * @param request the request
+     * @param connection the connection
+     * @return the response
+     */
+    ViHttpResponse exchange(ViHttpRequest request, ViHttpConnection connection) throws IOException;
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl.http2;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The HPACK header table: the static table followed by a size-bounded dynamic table (RFC 7541 section 2.3).
+ */
+public class HeaderTable {
+    static final Header[] STATIC_TABLE = {
+            new Header(":authority", ""),
+            new Header(":method", "GET"),
+            new Header(":method", "POST"),
+            new Header(":path", "/"),
+            new Header(":path", "/index.html"),
+            new Header(":scheme", "http"),
+            new Header(":scheme", "https"),
+            new Header(":status", "200"),
+            new Header(":status", "204"),
+            new Header(":status", "206"),
+            new Header(":status", "304"),
+            new Header(":status", "400"),
+            new Header(":status", "404"),
+            new Header(":status", "500"),
+            new Header("accept-charset", ""),
+            new Header("accept-encoding", "gzip, deflate"),
+            new Header("accept-language", ""),
+            new Header("accept-ranges", ""),
+            new Header("accept", ""),
+            new Header("access-control-allow-origin", ""),
+            new Header("age", ""),
+            new Header("allow", ""),
+            new Header("authorization", ""),
+            new Header("cache-control", ""),
+            new Header("content-disposition", ""),
+            new Header("content-encoding", ""),
+            new Header("content-language", ""),
+            new Header("content-length", ""),
+            new Header("content-location", ""),
+            new Header("content-range", ""),
+            new Header("content-type", ""),
+            new Header("cookie", ""),
+            new Header("date", ""),
+            new Header("etag", ""),
+            new Header("expect", ""),
+            new Header("expires", ""),
+            new Header("from", ""),
+            new Header("host", ""),
+            new Header("if-match", ""),
+            new Header("if-modified-since", ""),
+            new Header("if-none-match", ""),
+            new Header("if-range", ""),
+            new Header("if-unmodified-since", ""),
+            new Header("last-modified", ""),
+            new Header("link", ""),
+            new Header("location", ""),
+            new Header("max-forwards", ""),
+            new Header("proxy-authenticate", ""),
+            new Header("proxy-authorization", ""),
+            new Header("range", ""),
+            new Header("referer", ""),
+            new Header("refresh", ""),
+            new Header("retry-after", ""),
+            new Header("server", ""),
+            new Header("set-cookie", ""),
+            new Header("strict-transport-security", ""),
+            new Header("transfer-encoding", ""),
+            new Header("user-agent", ""),
+            new Header("vary", ""),
+            new Header("via", ""),
+            new Header("www-authenticate", "")
+    };
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<Header, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) { // the lowest index wins for duplicate names
+            STATIC_NAMES.put(STATIC_TABLE[i].getName(), i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i], i + 1);
+        }
+    }
+
+    private final Deque<Header> dynamicTable = new ArrayDeque<>(); // newest first
+    @Getter private int size = 0;
+    @Getter private int maxSize;
+
+    public HeaderTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a field by its index.
+     * @param index the index, starting at 1
+     * @return the field
+     */
+    public Header get(int index) throws IOException {
+        if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+        int dynamicIndex = index - STATIC_TABLE.length - 1;
+        if (dynamicIndex < 0 || dynamicIndex >= this.dynamicTable.size()) throw new IOException("Invalid header table index " + index);
+        Iterator<Header> it = this.dynamicTable.iterator();
+        for (int i = 0; i < dynamicIndex; i++) it.next();
+        return it.next();
+    }
+
+    /**
+     * Find the index of a field.
+     * @param header the field
+     * @return the index of the field, the negated index of a field with the same name, or 0 if neither exists
+     */
+    public int indexOf(Header header) {
+        Integer index = STATIC_FIELDS.get(header);
+        if (index != null) return index;
+        int nameIndex = STATIC_NAMES.getOrDefault(header.getName(), 0);
+        int i = STATIC_TABLE.length + 1;
+        for (Header entry : this.dynamicTable) {
+            if (entry.equals(header)) return i;
+            if (nameIndex == 0 && entry.getName().equals(header.getName())) nameIndex = i;
+            i++;
+        }
+        return -nameIndex;
+    }
+
+    public void add(Header header) {
+        this.dynamicTable.addFirst(header);
+        this.size += header.size();
+        this.evict();
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        this.evict();
+    }
+
+    private void evict() {
+        while (this.size > this.maxSize) {
+            this.size -= this.dynamicTable.removeLast().size();
+        }
+    }
+}
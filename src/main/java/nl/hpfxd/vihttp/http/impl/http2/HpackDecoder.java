@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl.http2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541).
+ * Every header block received on a connection has to be decoded, in order, to keep the dynamic table in sync.
+ */
+public class HpackDecoder {
+    private final HeaderTable table;
+    private final int maxTableSize;
+    private byte[] data;
+    private int pos;
+
+    /**
+     * @param maxTableSize the header table size we advertised in our settings
+     */
+    public HpackDecoder(int maxTableSize) {
+        this.table = new HeaderTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+    }
+
+    public List<Header> decode(byte[] block) throws IOException {
+        this.data = block;
+        this.pos = 0;
+        List<Header> headers = new ArrayList<>();
+        try {
+            while (this.pos < block.length) {
+                int b = block[this.pos] & 0xFF;
+                if ((b & 0x80) != 0) { // indexed header field
+                    int index = this.readInt(7);
+                    if (index == 0) throw new IOException("Invalid header table index 0");
+                    headers.add(this.table.get(index));
+                } else if ((b & 0x40) != 0) { // literal with incremental indexing
+                    Header header = this.readLiteral(6);
+                    this.table.add(header);
+                    headers.add(header);
+                } else if ((b & 0x20) != 0) { // dynamic table size update
+                    int size = this.readInt(5);
+                    if (size > this.maxTableSize) throw new IOException("Header table size update of " + size + " exceeds the limit.");
+                    this.table.setMaxSize(size);
+                } else { // literal without indexing or never indexed
+                    headers.add(this.readLiteral(4));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated header block.");
+        }
+        return headers;
+    }
+
+    private Header readLiteral(int prefix) throws IOException {
+        int index = this.readInt(prefix);
+        String name = index == 0 ? this.readString() : this.table.get(index).getName();
+        return new Header(name, this.readString());
+    }
+
+    private int readInt(int prefix) throws IOException {
+        int mask = (1 << prefix) - 1;
+        int value = this.data[this.pos++] & mask;
+        if (value < mask) return value;
+
+        int shift = 0;
+        int b;
+        do {
+            b = this.data[this.pos++] & 0xFF;
+            if (shift > 28) throw new IOException("HPACK integer overflow.");
+            value += (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (value < 0) throw new IOException("HPACK integer overflow.");
+        return value;
+    }
+
+    private String readString() throws IOException {
+        boolean huffman = (this.data[this.pos] & 0x80) != 0;
+        int length = this.readInt(7);
+        if (this.pos + length > this.data.length) throw new IOException("Truncated header block.");
+        byte[] bytes = huffman ? Huffman.decode(this.data, this.pos, length) : null;
+        String value = huffman
+                ? new String(bytes, StandardCharsets.ISO_8859_1)
+                : new String(this.data, this.pos, length, StandardCharsets.ISO_8859_1);
+        this.pos += length;
+        return value;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Encodes HPACK header blocks (RFC 7541).
+ * Header blocks have to be sent in the order they were encoded.
+ */
+public class HpackEncoder {
+    private static final int DEFAULT_TABLE_SIZE = 4096;
+    /**
+     * Fields that are never added to a header table, so they can't be recovered through compression side channels.
+     */
+    private static final Set<String> SENSITIVE = new HashSet<>(Arrays.asList("authorization", "proxy-authorization", "cookie"));
+    /**
+     * Fields that change with almost every request, which would only churn the dynamic table.
+     */
+    private static final Set<String> UNINDEXED = new HashSet<>(Arrays.asList(":path", "content-length", "if-none-match", "if-modified-since"));
+
+    private final HeaderTable table = new HeaderTable(DEFAULT_TABLE_SIZE);
+    private int pendingTableSize = -1;
+    private int pendingMinTableSize = -1;
+
+    /**
+     * Apply the header table size the peer advertised.
+     * When it changes more than once between header blocks, the next block signals the smallest size as well,
+     * since the peer's table was evicted down to it (RFC 7541 section 4.2).
+     * @param size the peer's SETTINGS_HEADER_TABLE_SIZE
+     */
+    public void setMaxTableSize(int size) {
+        int max = Math.min(size, DEFAULT_TABLE_SIZE);
+        if (max == this.table.getMaxSize()) return;
+        this.table.setMaxSize(max);
+        this.pendingTableSize = max;
+        this.pendingMinTableSize = this.pendingMinTableSize == -1 ? max : Math.min(this.pendingMinTableSize, max);
+    }
+
+    public void encode(List<Header> headers, ByteArrayOutputStream out) {
+        if (this.pendingTableSize != -1) {
+            if (this.pendingMinTableSize < this.pendingTableSize) this.writeInt(out, 0x20, 5, this.pendingMinTableSize);
+            this.writeInt(out, 0x20, 5, this.pendingTableSize);
+            this.pendingTableSize = -1;
+            this.pendingMinTableSize = -1;
+        }
+
+        for (Header header : headers) {
+            boolean sensitive = SENSITIVE.contains(header.getName());
+            int index = sensitive ? -Math.abs(this.table.indexOf(header)) : this.table.indexOf(header);
+            if (index > 0) {
+                this.writeInt(out, 0x80, 7, index);
+                continue;
+            }
+
+            int nameIndex = -index;
+            if (sensitive) {
+                this.writeInt(out, 0x10, 4, nameIndex); // never indexed
+            } else if (UNINDEXED.contains(header.getName())) {
+                this.writeInt(out, 0x00, 4, nameIndex); // without indexing
+            } else {
+                this.writeInt(out, 0x40, 6, nameIndex); // incremental indexing
+                this.table.add(header);
+            }
+            if (nameIndex == 0) this.writeString(out, header.getName());
+            this.writeString(out, header.getValue());
+        }
+    }
+
+    private void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        int huffmanLength = Huffman.encodedLength(bytes);
+        if (huffmanLength < bytes.length) {
+            this.writeInt(out, 0x80, 7, huffmanLength);
+            Huffman.encode(bytes, out);
+        } else {
+            this.writeInt(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
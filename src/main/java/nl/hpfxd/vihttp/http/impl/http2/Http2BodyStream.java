@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl.http2;
+
+import nl.hpfxd.vihttp.http.ResponseBodyStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * The body of a streaming HTTP/2 response, fed with DATA frames by the reader thread.
+ * The stream's receive window is only opened again as the body is consumed, so a slow reader
+ * makes the server wait instead of buffering the body in memory.
+ */
+class Http2BodyStream extends ResponseBodyStream {
+    private final Http2Connection connection;
+    private final Http2Stream stream;
+    private final Deque<byte[]> chunks = new ArrayDeque<>(); // guarded by this
+    private int position = 0; // in the first chunk
+    private boolean finished = false; // all data was received
+    private IOException failure = null;
+    private int consumed = 0; // bytes read but not yet returned with a WINDOW_UPDATE
+
+    Http2BodyStream(Http2Connection connection, Http2Stream stream) {
+        this.connection = connection;
+        this.stream = stream;
+    }
+
+    synchronized void onData(byte[] data, int offset, int length) {
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+        this.chunks.add(chunk);
+        this.notifyAll();
+    }
+
+    synchronized void onFinished() {
+        this.finished = true;
+        this.notifyAll();
+    }
+
+    synchronized void onFailure(IOException cause) {
+        if (this.failure == null) this.failure = cause;
+        this.notifyAll();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n;
+        int update = 0;
+        synchronized (this) {
+            if (this.isEnded()) return -1;
+            long timeout = this.stream.getRequest().getTimeout();
+            long start = System.currentTimeMillis();
+            while (this.chunks.isEmpty() && !this.finished && this.failure == null) {
+                long remaining = timeout > 0 ? timeout - (System.currentTimeMillis() - start) : 0;
+                if (timeout > 0 && remaining <= 0) {
+                    this.failure = new SocketTimeoutException("Read timed out");
+                    break;
+                }
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.failure = new InterruptedIOException("Interrupted while reading the response body.");
+                }
+            }
+            if (this.chunks.isEmpty()) {
+                if (this.failure == null) {
+                    n = -1;
+                } else {
+                    IOException failure = this.failure;
+                    this.end(false);
+                    throw failure;
+                }
+            } else {
+                byte[] chunk = this.chunks.peek();
+                n = Math.min(len, chunk.length - this.position);
+                System.arraycopy(chunk, this.position, b, off, n);
+                this.position += n;
+                if (this.position == chunk.length) {
+                    this.chunks.poll();
+                    this.position = 0;
+                }
+                this.consumed += n;
+                if (this.consumed >= Http2Connection.WINDOW_SIZE / 2 && !this.finished) {
+                    update = this.consumed;
+                    this.consumed = 0;
+                }
+            }
+        }
+
+        if (n == -1) {
+            this.end(true);
+            return -1;
+        }
+        if (update > 0) this.connection.sendWindowUpdate(this.stream.getId(), update);
+        return n;
+    }
+
+    @Override
+    public Map<String, String> getTrailers() {
+        return Collections.unmodifiableMap(this.stream.getTrailers());
+    }
+
+    @Override
+    public synchronized int available() {
+        int available = -this.position;
+        for (byte[] chunk : this.chunks) available += chunk.length;
+        return available;
+    }
+
+    /**
+     * Stop reading the body. The stream is reset if it hasn't finished yet.
+     */
+    @Override
+    public void close() {
+        boolean complete;
+        synchronized (this) {
+            complete = this.finished && this.chunks.isEmpty();
+        }
+        this.end(complete);
+    }
+}
@@ -0,0 +1,754 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl.http2;
+
+import lombok.Getter;
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.exception.UnprocessedRequestException;
+import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.network.ViHttpConnection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * An HTTP/2 connection (RFC 7540), multiplexing concurrent exchanges as streams over one socket.
+ *
+ * Exchanges write their frames under a shared write lock and then wait for their stream to complete,
+ * while a reader thread reads all incoming frames and dispatches them to their streams.
+ */
+public class Http2Connection {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host"));
+
+    // frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    // error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    /**
+     * The receive window we advertise for the connection and each stream.
+     */
+    static final int WINDOW_SIZE = 16 * 1024 * 1024;
+    /**
+     * The most streams we open at once, even if the server allows more.
+     */
+    private static final int MAX_STREAMS = 256;
+
+    private final ViHttpConnection connection;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+
+    // guarded by writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final HpackEncoder encoder = new HpackEncoder();
+    private int nextStreamId = 1;
+
+    // guarded by flowLock
+    private final Object flowLock = new Object();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+
+    // only touched by the reader thread
+    private final HpackDecoder decoder = new HpackDecoder(4096);
+    private int connectionUnacknowledged = 0;
+    private ByteArrayOutputStream headerBlock = null;
+    private int headerBlockStream;
+    private boolean headerBlockEndStream;
+
+    private volatile int maxFrameSize = DEFAULT_FRAME_SIZE;
+    @Getter private volatile int maxConcurrentStreams = MAX_STREAMS;
+    private volatile int lastStreamId = Integer.MAX_VALUE;
+    /**
+     * Whether the connection stopped accepting new streams, after a GOAWAY or a failure.
+     */
+    @Getter private volatile boolean shutdown = false;
+    private volatile IOException failure = null;
+
+    public Http2Connection(ViHttpConnection connection) throws IOException {
+        this.connection = connection;
+        this.socket = connection.getSocket();
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), DEFAULT_FRAME_SIZE));
+        this.out = new BufferedOutputStream(this.socket.getOutputStream(), DEFAULT_FRAME_SIZE);
+    }
+
+    /**
+     * Exchange the connection preface and settings, then start reading frames on a background thread.
+     * The server's settings are read before this returns, using the socket's timeout.
+     */
+    public void start() throws IOException {
+        this.writeLock.lock();
+        try {
+            this.out.write(PREFACE);
+            this.writeFrame(SETTINGS, 0, 0, new byte[] {
+                    0, SETTINGS_ENABLE_PUSH, 0, 0, 0, 0,
+                    0, SETTINGS_INITIAL_WINDOW_SIZE, (byte) (WINDOW_SIZE >>> 24), (byte) (WINDOW_SIZE >>> 16), (byte) (WINDOW_SIZE >>> 8), (byte) WINDOW_SIZE
+            });
+            this.writeWindowUpdate(0, WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            this.out.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+
+        // the server's preface is a SETTINGS frame
+        if (!this.readFrame(SETTINGS)) throw new HttpException("Server did not start with a SETTINGS frame.");
+        this.socket.setSoTimeout(0); // streams time out individually
+
+        Thread reader = new Thread(this::readFrames, "ViHttp HTTP/2 Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a request on a new stream and wait for its response.
+     * @param request the request
+     * @return the response
+     */
+    public ViHttpResponse exchange(ViHttpRequest request) throws IOException {
+        byte[] body = request.getBody() != null ? request.getBody().getBytes(StandardCharsets.UTF_8) : null;
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Http2Stream stream;
+
+        this.writeLock.lock();
+        try {
+            if (this.shutdown) throw new UnprocessedRequestException("HTTP/2 connection is no longer accepting streams.", this.failure);
+            synchronized (this.flowLock) {
+                stream = new Http2Stream(this.nextStreamId, request, this.initialSendWindow);
+            }
+            this.nextStreamId += 2;
+            if (this.nextStreamId < 0) this.shutdown = true; // stream ids exhausted
+            this.streams.put(stream.getId(), stream);
+
+            this.encoder.encode(this.createHeaders(request, body), block);
+            this.writeHeaders(stream.getId(), block.toByteArray(), body == null && request.getBodyStream() == null);
+            this.out.flush();
+        } catch (IOException e) {
+            if (e instanceof UnprocessedRequestException) throw e;
+            this.fail(e);
+            throw e;
+        } finally {
+            this.writeLock.unlock();
+        }
+
+        if (body != null) {
+            this.writeData(stream, new ByteArrayInputStream(body), body.length);
+        } else if (request.getBodyStream() != null) {
+            this.writeData(stream, request.getBodyStream(), request.getBodyLength());
+        }
+        return this.await(stream);
+    }
+
+    /**
+     * Abandon the exchange of a request, resetting its stream.
+     * @param request the request
+     */
+    public void cancel(ViHttpRequest request) {
+        for (Http2Stream stream : this.streams.values()) {
+            if (stream.getRequest() == request) this.reset(stream, CANCEL, new HttpException("Request was aborted."));
+        }
+    }
+
+    /**
+     * Get the amount of streams that may be open at once.
+     * @return the server's concurrent stream limit, capped by our own
+     */
+    public int getMaxStreams() {
+        return Math.max(1, Math.min(this.maxConcurrentStreams, MAX_STREAMS));
+    }
+
+    /**
+     * Tell the server we're going away, if the connection is still usable.
+     * This doesn't close the socket.
+     */
+    public void close() {
+        this.shutdown = true;
+        if (this.failure != null || !this.writeLock.tryLock()) return;
+        try {
+            this.writeGoAway(NO_ERROR);
+            this.out.flush();
+        } catch (IOException ignored) {
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private List<Header> createHeaders(ViHttpRequest request, byte[] body) {
+        List<Header> headers = new ArrayList<>();
+        String authority = request.getHeader("Host");
+        if (authority == null) authority = request.getHost();
+        headers.add(new Header(":method", request.getRequestMethod().name()));
+        headers.add(new Header(":scheme", request.isSsl() ? "https" : "http"));
+        headers.add(new Header(":authority", authority));
+        headers.add(new Header(":path", request.getPathAndQuery()));
+
+        request.getHeaders().forEach((name, value) -> {
+            String lowerName = name.toLowerCase();
+            if (CONNECTION_HEADERS.contains(lowerName) || lowerName.equals("content-length")) return;
+            if (lowerName.equals("te") && !value.equalsIgnoreCase("trailers")) return;
+            if (lowerName.equals("accept-encoding") && !request.getCompressionSchemes().isEmpty()) return;
+            headers.add(new Header(lowerName, value));
+        });
+        if (!request.getCompressionSchemes().isEmpty()) {
+            headers.add(new Header("accept-encoding", request.getCompressionSchemes().stream()
+                    .map(HttpCompressionScheme::getToken)
+                    .collect(Collectors.joining(", "))));
+        }
+        if (body != null) {
+            headers.add(new Header("content-length", String.valueOf(body.length)));
+        } else if (request.getBodyStream() != null && request.getBodyLength() != -1) {
+            headers.add(new Header("content-length", String.valueOf(request.getBodyLength())));
+        }
+        return headers;
+    }
+
+    private ViHttpResponse await(Http2Stream stream) throws IOException {
+        long timeout = stream.getRequest().getTimeout();
+        try {
+            while (true) {
+                try {
+                    if (timeout <= 0) return stream.getFuture().get();
+                    long remaining = stream.getLastActivity() + timeout - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        SocketTimeoutException e = new SocketTimeoutException("Read timed out");
+                        this.reset(stream, CANCEL, e);
+                        throw e;
+                    }
+                    return stream.getFuture().get(remaining, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignored) {
+                    // check whether a frame arrived for the stream in the meantime
+                }
+            }
+        } catch (InterruptedException e) {
+            this.reset(stream, CANCEL, new HttpException("Request was aborted."));
+            Thread.currentThread().interrupt();
+            throw new HttpException("Interrupted while waiting for the response.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new HttpException(e.getCause());
+        }
+    }
+
+    /**
+     * Send a request body as DATA frames, as far as flow control allows.
+     * @param length the length of the body, or -1 if it's sent until the stream ends
+     */
+    private void writeData(Http2Stream stream, InputStream body, long length) throws IOException {
+        byte[] buffer = new byte[Math.min(this.maxFrameSize, 65536)];
+        long sent = 0;
+        boolean ended = false;
+        while (!ended) {
+            int credit;
+            synchronized (this.flowLock) {
+                while (this.connectionSendWindow <= 0 || stream.getSendWindow() <= 0) {
+                    if (stream.getFuture().isDone()) return; // answered or reset before the body was sent
+                    if (this.failure != null) throw this.failure;
+                    try {
+                        this.flowLock.wait(1000);
+                    } catch (InterruptedException e) {
+                        this.reset(stream, CANCEL, new HttpException("Request was aborted."));
+                        Thread.currentThread().interrupt();
+                        throw new HttpException("Interrupted while sending the request body.", e);
+                    }
+                    if (stream.getRequest().getTimeout() > 0
+                            && System.currentTimeMillis() - stream.getLastActivity() > stream.getRequest().getTimeout()) {
+                        SocketTimeoutException e = new SocketTimeoutException("Write timed out");
+                        this.reset(stream, CANCEL, e);
+                        throw e;
+                    }
+                }
+                credit = (int) Math.min(Math.min(this.connectionSendWindow, stream.getSendWindow()), buffer.length);
+                this.connectionSendWindow -= credit;
+                stream.setSendWindow(stream.getSendWindow() - credit);
+            }
+
+            int n = length == -1 || sent < length ? body.read(buffer, 0, length == -1 ? credit : (int) Math.min(credit, length - sent)) : -1;
+            if (n < credit) { // return the credit we didn't use
+                synchronized (this.flowLock) {
+                    this.connectionSendWindow += credit - Math.max(n, 0);
+                    stream.setSendWindow(stream.getSendWindow() + credit - Math.max(n, 0));
+                    this.flowLock.notifyAll();
+                }
+            }
+            if (n == -1) {
+                if (length != -1 && sent < length) {
+                    this.reset(stream, CANCEL, new HttpException("Request body ended before its length."));
+                    throw new HttpException("Request body ended after " + sent + " of " + length + " bytes.");
+                }
+                n = 0;
+            }
+            sent += n;
+            ended = n == 0 || sent == length;
+
+            this.writeLock.lock();
+            try {
+                if (stream.getFuture().isDone()) return;
+                this.writeFrame(DATA, ended ? FLAG_END_STREAM : 0, stream.getId(), buffer, 0, n);
+                this.out.flush();
+            } catch (IOException e) {
+                this.fail(e);
+                throw e;
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reset a stream and fail its exchange.
+     */
+    private void reset(Http2Stream stream, int errorCode, IOException cause) {
+        if (this.streams.remove(stream.getId()) == null) return;
+        stream.fail(cause);
+        this.writeLock.lock();
+        try {
+            this.writeFrame(RST_STREAM, 0, stream.getId(), intBytes(errorCode));
+            this.out.flush();
+        } catch (IOException e) {
+            this.fail(e);
+        } finally {
+            this.writeLock.unlock();
+        }
+        this.streamClosed();
+    }
+
+    private void streamClosed() {
+        if (this.shutdown && this.streams.isEmpty()) this.connection.close();
+    }
+
+    /**
+     * Fail the connection and all of its streams, then close it.
+     * Streams the server promised not to process fail with an {@link UnprocessedRequestException}.
+     */
+    private void fail(IOException cause) {
+        synchronized (this.flowLock) {
+            if (this.failure != null) return;
+            this.failure = cause;
+            this.shutdown = true;
+            this.flowLock.notifyAll();
+        }
+        for (Http2Stream stream : this.streams.values()) {
+            this.streams.remove(stream.getId());
+            if (stream.getId() > this.lastStreamId) {
+                stream.fail(new UnprocessedRequestException("Server did not process the stream.", cause));
+            } else {
+                stream.fail(cause);
+            }
+        }
+        this.connection.close();
+    }
+
+    /*
+     * Reading
+     */
+
+    private void readFrames() {
+        try {
+            //noinspection StatementWithEmptyBody
+            while (this.readFrame(-1));
+        } catch (ConnectionError e) {
+            this.writeLock.lock();
+            try {
+                this.writeGoAway(e.getErrorCode());
+                this.out.flush();
+            } catch (IOException ignored) {
+            } finally {
+                this.writeLock.unlock();
+            }
+            this.fail(e);
+        } catch (IOException e) {
+            this.fail(e);
+        } catch (RuntimeException e) {
+            this.fail(new HttpException(e));
+        }
+    }
+
+    /**
+     * Read and handle one frame.
+     * @param expectedType the type the frame must have, or -1 for any type
+     * @return false if the frame wasn't of the expected type
+     */
+    private boolean readFrame(int expectedType) throws IOException {
+        int length = (this.in.readUnsignedShort() << 8) | this.in.readUnsignedByte();
+        int type = this.in.readUnsignedByte();
+        int flags = this.in.readUnsignedByte();
+        int streamId = this.in.readInt() & 0x7FFFFFFF;
+        if (length > DEFAULT_FRAME_SIZE) throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds the maximum frame size.");
+        byte[] payload = new byte[length];
+        this.in.readFully(payload);
+
+        if (expectedType != -1 && type != expectedType) return false;
+        if (this.headerBlock != null && (type != CONTINUATION || streamId != this.headerBlockStream)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Expected a CONTINUATION frame for stream " + this.headerBlockStream);
+        }
+
+        switch (type) {
+            case DATA:
+                this.onData(streamId, flags, payload);
+                break;
+            case HEADERS:
+                if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame on stream 0.");
+                int offset = 0;
+                int end = length;
+                if ((flags & FLAG_PADDED) != 0) {
+                    offset++;
+                    end -= length > 0 ? payload[0] & 0xFF : 0;
+                }
+                if ((flags & FLAG_PRIORITY) != 0) offset += 5;
+                if (end < offset) throw new ConnectionError(PROTOCOL_ERROR, "Invalid HEADERS padding.");
+                this.headerBlock = new ByteArrayOutputStream();
+                this.headerBlock.write(payload, offset, end - offset);
+                this.headerBlockStream = streamId;
+                this.headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+                if ((flags & FLAG_END_HEADERS) != 0) this.onHeaderBlock();
+                break;
+            case CONTINUATION:
+                if (this.headerBlock == null) throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame.");
+                this.headerBlock.write(payload, 0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) this.onHeaderBlock();
+                break;
+            case RST_STREAM:
+                if (length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame length.");
+                this.onReset(streamId, readInt(payload, 0));
+                break;
+            case SETTINGS:
+                if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId);
+                if ((flags & FLAG_ACK) == 0) this.onSettings(payload);
+                break;
+            case PING:
+                if (length != 8) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid PING frame length.");
+                if ((flags & FLAG_ACK) == 0) {
+                    this.writeLock.lock();
+                    try {
+                        this.writeFrame(PING, FLAG_ACK, 0, payload);
+                        this.out.flush();
+                    } finally {
+                        this.writeLock.unlock();
+                    }
+                }
+                break;
+            case GOAWAY:
+                if (length < 8) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid GOAWAY frame length.");
+                this.onGoAway(readInt(payload, 0) & 0x7FFFFFFF, readInt(payload, 4));
+                break;
+            case WINDOW_UPDATE:
+                if (length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame length.");
+                this.onWindowUpdate(streamId, readInt(payload, 0) & 0x7FFFFFFF);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "Server push was disabled.");
+            case PRIORITY:
+            default:
+                break; // unknown frame types must be ignored
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on stream 0.");
+        int offset = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            offset++;
+            end -= payload.length > 0 ? payload[0] & 0xFF : 0;
+            if (end < offset) throw new ConnectionError(PROTOCOL_ERROR, "Invalid DATA padding.");
+        }
+
+        // the whole frame counts towards flow control, padding included
+        this.connectionUnacknowledged += payload.length;
+        if (this.connectionUnacknowledged >= WINDOW_SIZE / 2) {
+            this.sendWindowUpdate(0, this.connectionUnacknowledged);
+            this.connectionUnacknowledged = 0;
+        }
+
+        Http2Stream stream = this.streams.get(streamId);
+        if (stream == null) return; // reset by us, frames may still be in flight
+        stream.setLastActivity(System.currentTimeMillis());
+        if (!stream.hasStatus()) {
+            this.onStreamError(stream, PROTOCOL_ERROR, "DATA frame before the response headers.");
+            return;
+        }
+        stream.addData(payload, offset, end - offset);
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            this.complete(stream);
+        } else if (stream.getBodyStream() == null) { // streaming bodies open the window as they're read
+            stream.setUnacknowledged(stream.getUnacknowledged() + payload.length);
+            if (stream.getUnacknowledged() >= WINDOW_SIZE / 2) {
+                this.sendWindowUpdate(streamId, stream.getUnacknowledged());
+                stream.setUnacknowledged(0);
+            }
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        byte[] block = this.headerBlock.toByteArray();
+        int streamId = this.headerBlockStream;
+        this.headerBlock = null;
+
+        List<Header> headers;
+        try {
+            headers = this.decoder.decode(block); // always decode, to keep the header table in sync
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        Http2Stream stream = this.streams.get(streamId);
+        if (stream == null) return;
+        stream.setLastActivity(System.currentTimeMillis());
+
+        boolean trailers = stream.hasStatus();
+        try {
+            stream.addHeaders(headers);
+        } catch (IOException e) {
+            this.onStreamError(stream, PROTOCOL_ERROR, e.getMessage());
+            return;
+        }
+        if (!trailers && stream.getStatusCode() / 100 == 1) { // informational, the real response follows
+            stream.resetStatus();
+            return;
+        }
+        if (this.headerBlockEndStream) {
+            this.complete(stream);
+        } else if (trailers) {
+            this.onStreamError(stream, PROTOCOL_ERROR, "Trailers without END_STREAM.");
+        } else if (stream.getRequest().isStreaming()) {
+            stream.completeStreaming(this);
+        }
+    }
+
+    private void onReset(int streamId, int errorCode) throws IOException {
+        if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM frame on stream 0.");
+        Http2Stream stream = this.streams.remove(streamId);
+        if (stream == null) return;
+        if (errorCode == REFUSED_STREAM) {
+            stream.fail(new UnprocessedRequestException("Server refused the stream.", null));
+        } else {
+            stream.fail(new HttpException("Server reset the stream with error code " + errorCode + "."));
+        }
+        this.streamClosed();
+    }
+
+    private void onSettings(byte[] payload) throws IOException {
+        if (payload.length % 6 != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS frame length.");
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            long value = readInt(payload, i + 2) & 0xFFFFFFFFL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    this.writeLock.lock();
+                    try {
+                        this.encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    } finally {
+                        this.writeLock.unlock();
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    this.maxConcurrentStreams = (int) Math.min(value, Integer.MAX_VALUE);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window size " + value + " is too large.");
+                    synchronized (this.flowLock) {
+                        long delta = value - this.initialSendWindow;
+                        this.initialSendWindow = (int) value;
+                        for (Http2Stream stream : this.streams.values()) stream.setSendWindow(stream.getSendWindow() + delta);
+                        this.flowLock.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > 16777215) throw new ConnectionError(PROTOCOL_ERROR, "Invalid maximum frame size " + value);
+                    this.maxFrameSize = (int) value;
+                    break;
+                default:
+                    break; // unknown settings must be ignored
+            }
+        }
+
+        this.writeLock.lock();
+        try {
+            this.writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+            this.out.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void onGoAway(int lastStreamId, int errorCode) {
+        this.lastStreamId = lastStreamId;
+        this.shutdown = true;
+        HttpException cause = new HttpException("Server sent GOAWAY with error code " + errorCode + ".");
+        for (Http2Stream stream : this.streams.values()) {
+            if (stream.getId() > lastStreamId && this.streams.remove(stream.getId()) != null) {
+                stream.fail(new UnprocessedRequestException("Server did not process the stream.", cause));
+            }
+        }
+        this.streamClosed();
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        synchronized (this.flowLock) {
+            if (streamId == 0) {
+                if (increment == 0) throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE with an increment of 0.");
+                this.connectionSendWindow += increment;
+                if (this.connectionSendWindow > MAX_WINDOW_SIZE) throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow.");
+            } else {
+                Http2Stream stream = this.streams.get(streamId);
+                if (stream != null) stream.setSendWindow(stream.getSendWindow() + increment);
+            }
+            this.flowLock.notifyAll();
+        }
+    }
+
+    private void complete(Http2Stream stream) {
+        if (this.streams.remove(stream.getId()) == null) return;
+        stream.complete();
+        this.streamClosed();
+    }
+
+    private void onStreamError(Http2Stream stream, int errorCode, String message) {
+        this.reset(stream, errorCode, new HttpException("HTTP/2 stream error: " + message));
+    }
+
+    /*
+     * Writing, callers must hold the write lock
+     */
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int maxFrameSize = this.maxFrameSize;
+        int length = Math.min(block.length, maxFrameSize);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+        this.writeFrame(HEADERS, flags, streamId, block, 0, length);
+        for (int offset = length; offset < block.length; offset += length) {
+            length = Math.min(block.length - offset, maxFrameSize);
+            this.writeFrame(CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS : 0, streamId, block, offset, length);
+        }
+    }
+
+    void sendWindowUpdate(int streamId, int increment) throws IOException {
+        this.writeLock.lock();
+        try {
+            this.writeWindowUpdate(streamId, increment);
+            this.out.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        this.writeFrame(WINDOW_UPDATE, 0, streamId, intBytes(increment));
+    }
+
+    private void writeGoAway(int errorCode) throws IOException {
+        byte[] payload = new byte[8]; // the last stream id is 0, as we never accept streams from the server
+        System.arraycopy(intBytes(errorCode), 0, payload, 4, 4);
+        this.writeFrame(GOAWAY, 0, 0, payload);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        this.writeFrame(type, flags, streamId, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        this.out.write(length >>> 16);
+        this.out.write(length >>> 8);
+        this.out.write(length);
+        this.out.write(type);
+        this.out.write(flags);
+        this.out.write(intBytes(streamId));
+        this.out.write(payload, offset, length);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * An error that affects the whole connection, sent to the server in a GOAWAY frame.
+     */
+    @Getter
+    private static class ConnectionError extends HttpException {
+        private final int errorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super("HTTP/2 connection error: " + message);
+            this.errorCode = errorCode;
+        }
+    }
+}
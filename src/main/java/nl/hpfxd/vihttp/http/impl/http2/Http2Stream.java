@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.http.impl.http2;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The state of a single request/response exchange on an {@link Http2Connection}.
+ */
+@Getter(AccessLevel.PACKAGE)
+class Http2Stream {
+    private final int id;
+    private final ViHttpRequest request;
+    private final CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+
+    // only touched by the reader thread
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, String> trailers = Collections.synchronizedMap(new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+    private int statusCode = -1;
+    private ByteArrayOutputStream body = null;
+    @Setter(AccessLevel.PACKAGE) private int unacknowledged = 0; // bytes received but not yet returned with a WINDOW_UPDATE
+    private Http2BodyStream bodyStream = null; // set once a streaming response was handed out
+
+    @Setter(AccessLevel.PACKAGE) private long sendWindow; // guarded by the connection's flow lock
+    @Setter(AccessLevel.PACKAGE) private volatile long lastActivity = System.currentTimeMillis();
+
+    Http2Stream(int id, ViHttpRequest request, long sendWindow) {
+        this.id = id;
+        this.request = request;
+        this.sendWindow = sendWindow;
+    }
+
+    /**
+     * Discard an informational response.
+     */
+    void resetStatus() {
+        this.statusCode = -1;
+        this.headers.clear();
+    }
+
+    boolean hasStatus() {
+        return this.statusCode != -1;
+    }
+
+    /**
+     * Add a header block. The first one holds the status, any later one is the trailers.
+     */
+    void addHeaders(List<Header> block) throws IOException {
+        Map<String, String> target = this.hasStatus() ? this.trailers : this.headers;
+        for (Header header : block) {
+            if (header.getName().startsWith(":")) {
+                if (!header.getName().equals(":status") || this.hasStatus()) throw new IOException("Unexpected pseudo-header " + header.getName());
+                try {
+                    this.statusCode = Integer.parseInt(header.getValue());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid status " + header.getValue());
+                }
+            } else {
+                target.merge(header.getName(), header.getValue(), (a, b) -> a + ", " + b);
+            }
+        }
+        if (!this.hasStatus()) throw new IOException("Response is missing the :status pseudo-header.");
+    }
+
+    /**
+     * Fail the exchange, or the body of a streaming response that was already handed out.
+     */
+    void fail(IOException cause) {
+        this.future.completeExceptionally(cause);
+        if (this.bodyStream != null) this.bodyStream.onFailure(cause);
+    }
+
+    /**
+     * Hand out the response while its body is still being received.
+     */
+    void completeStreaming(Http2Connection connection) {
+        this.bodyStream = new Http2BodyStream(connection, this);
+        this.future.complete(ViHttpResponse.streaming(this.statusCode, Collections.unmodifiableMap(this.headers), this.bodyStream));
+    }
+
+    void addData(byte[] data, int offset, int length) {
+        if (this.bodyStream != null) {
+            this.bodyStream.onData(data, offset, length);
+            return;
+        }
+        if (this.body == null) this.body = new ByteArrayOutputStream();
+        this.body.write(data, offset, length);
+    }
+
+    /**
+     * Complete the exchange once all of the response was received.
+     */
+    void complete() {
+        if (this.bodyStream != null) {
+            this.bodyStream.onFinished();
+            return;
+        }
+        try {
+            this.future.complete(this.createResponse());
+        } catch (IOException e) {
+            this.future.completeExceptionally(e);
+        }
+    }
+
+    private ViHttpResponse createResponse() throws IOException {
+        String body = null;
+        if (this.body != null) {
+            byte[] bodyBytes = this.body.toByteArray();
+            if (this.headers.containsKey("Content-Encoding")) {
+                bodyBytes = HttpCompressionScheme.decode(bodyBytes, this.headers.get("Content-Encoding"));
+            }
+            body = new String(bodyBytes, StandardCharsets.UTF_8);
+        }
+        return new ViHttpResponse(this.statusCode, Collections.unmodifiableMap(this.headers), body, Collections.unmodifiableMap(this.trailers));
+    }
+}
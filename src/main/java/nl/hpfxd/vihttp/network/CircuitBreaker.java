@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Getter;
+import nl.hpfxd.vihttp.exception.CircuitOpenException;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Stops sending requests to a route that is failing, so callers fail fast instead of waiting for timeouts.
+ *
+ * While closed, the outcomes of the last requests are recorded. Once enough of them failed or were slow,
+ * the circuit opens and requests fail with a {@link CircuitOpenException} without opening a connection.
+ * After the open duration the circuit is half-open and lets a few trial requests through. If they all succeed
+ * the circuit closes again, otherwise it opens for another open duration.
+ *
+ * Every change of state starts a new generation, and permits carry the generation they were issued in.
+ * Outcomes of requests from an earlier generation, like a request sent while closed that finishes after
+ * the circuit opened, are ignored, so only the trial requests decide whether a half-open circuit closes.
+ */
+public class CircuitBreaker {
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    @Getter private final Route route;
+    @Getter private final CircuitBreakerPolicy policy;
+    private final byte[] outcomes;
+    private CircuitState state = CircuitState.CLOSED;
+    private long generation = 0;
+    private int calls = 0;
+    private int nextOutcome = 0;
+    private int failures = 0;
+    private int slowCalls = 0;
+    private long openedAt = 0;
+    private int trialsInFlight = 0;
+    private int trialSuccesses = 0;
+    private int callsInFlight = 0;
+    private long lastUsedAt = System.currentTimeMillis();
+    private long totalRejected = 0;
+    private long totalOpened = 0;
+
+    public CircuitBreaker(Route route, CircuitBreakerPolicy policy) {
+        this.route = route;
+        this.policy = policy;
+        this.outcomes = new byte[policy.getWindowSize()];
+    }
+
+    /**
+     * Get the state of the circuit.
+     * @return the state
+     */
+    public synchronized CircuitState getState() {
+        return this.state;
+    }
+
+    /**
+     * Get permission to send a request. The outcome of the request must be recorded afterwards.
+     * @return the permit to record the outcome with
+     * @throws CircuitOpenException if the circuit is open, or half-open with all trial requests in flight
+     */
+    public synchronized long acquire() throws CircuitOpenException {
+        long now = System.currentTimeMillis();
+        if (this.state == CircuitState.OPEN && now - this.openedAt >= this.policy.getOpenDuration()) {
+            this.state = CircuitState.HALF_OPEN;
+            this.generation++;
+            this.trialsInFlight = 0;
+            this.trialSuccesses = 0;
+        }
+        this.lastUsedAt = now;
+        if (this.state == CircuitState.CLOSED) {
+            this.callsInFlight++;
+            return this.generation;
+        }
+        if (this.state == CircuitState.HALF_OPEN && this.trialsInFlight + this.trialSuccesses < this.policy.getHalfOpenCalls()) {
+            this.trialsInFlight++;
+            this.callsInFlight++;
+            return this.generation;
+        }
+        this.totalRejected++;
+        long retryIn = Math.max(0, this.openedAt + this.policy.getOpenDuration() - now);
+        throw new CircuitOpenException("Circuit breaker for " + this.route.getHost() + ":" + this.route.getPort()
+                + " is " + (this.state == CircuitState.OPEN ? "open, retrying in " + retryIn + "ms." : "half-open with all trial requests in flight."));
+    }
+
+    /**
+     * Record the outcome of a request that got permission.
+     * Requests fail with an exception or a 5xx response. Cancelled requests aren't counted,
+     * neither are requests that got permission in an earlier generation.
+     * @param permit the permit the request got from {@link #acquire()}
+     * @param duration how long the request took in milliseconds
+     * @param response the response, or {@code null} if the request failed
+     * @param error the error the request failed with, or {@code null}
+     */
+    public synchronized void record(long permit, long duration, ViHttpResponse response, Throwable error) {
+        this.callsInFlight--;
+        this.lastUsedAt = System.currentTimeMillis();
+        if (permit != this.generation) return; // sent before the circuit last changed state
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        boolean cancelled = error instanceof CancellationException;
+        boolean failed = error != null || response.getStatusCode() >= 500;
+        boolean slow = duration >= this.policy.getSlowCallDuration();
+
+        if (this.state == CircuitState.HALF_OPEN) {
+            this.trialsInFlight--;
+            if (cancelled) return;
+            if (failed || slow) {
+                this.open();
+            } else if (++this.trialSuccesses >= this.policy.getHalfOpenCalls()) {
+                this.state = CircuitState.CLOSED;
+                this.generation++;
+                this.resetWindow();
+            }
+            return;
+        }
+        if (cancelled) return;
+
+        if (this.calls == this.outcomes.length) {
+            byte evicted = this.outcomes[this.nextOutcome];
+            if ((evicted & FAILED) != 0) this.failures--;
+            if ((evicted & SLOW) != 0) this.slowCalls--;
+        } else {
+            this.calls++;
+        }
+        this.outcomes[this.nextOutcome] = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+        this.nextOutcome = (this.nextOutcome + 1) % this.outcomes.length;
+        if (failed) this.failures++;
+        if (slow) this.slowCalls++;
+
+        if (this.calls >= this.policy.getMinimumCalls()
+                && ((double) this.failures / this.calls >= this.policy.getFailureRateThreshold()
+                || (double) this.slowCalls / this.calls >= this.policy.getSlowCallRateThreshold())) {
+            this.open();
+        }
+    }
+
+    /**
+     * Get the statistics of the circuit breaker.
+     * @return a snapshot of the circuit breaker
+     */
+    public synchronized CircuitBreakerStats getStats() {
+        return new CircuitBreakerStats(this.route, this.state, this.calls,
+                this.calls == 0 ? 0 : (double) this.failures / this.calls, this.calls == 0 ? 0 : (double) this.slowCalls / this.calls,
+                this.totalRejected, this.totalOpened);
+    }
+
+    /**
+     * Check whether the circuit is closed and wasn't used for a while, so it can be forgotten.
+     * A new circuit breaker for the route starts out the same, apart from the outcomes in its window.
+     * @param idleTimeout how long the circuit must not have been used, in milliseconds
+     * @return whether the circuit breaker is idle
+     */
+    synchronized boolean isIdle(long idleTimeout) {
+        return this.state == CircuitState.CLOSED && this.callsInFlight == 0
+                && System.currentTimeMillis() - this.lastUsedAt >= idleTimeout;
+    }
+
+    private void open() {
+        this.state = CircuitState.OPEN;
+        this.generation++;
+        this.openedAt = System.currentTimeMillis();
+        this.totalOpened++;
+        this.resetWindow();
+    }
+
+    private void resetWindow() {
+        this.calls = 0;
+        this.nextOutcome = 0;
+        this.failures = 0;
+        this.slowCalls = 0;
+    }
+}
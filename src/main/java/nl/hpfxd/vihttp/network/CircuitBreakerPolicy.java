@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Getter;
+
+/**
+ * Configures the circuit breakers a client keeps for every route, see {@link CircuitBreaker}.
+ */
+@Getter
+public class CircuitBreakerPolicy {
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 0.8;
+    private long slowCallDuration = 10000;
+    private int windowSize = 50;
+    private int minimumCalls = 10;
+    private long openDuration = 10000;
+    private int halfOpenCalls = 3;
+
+    /**
+     * Set the share of failed requests in the window that opens the circuit.
+     * Requests fail with an exception or a 5xx response.
+     * @param failureRateThreshold the rate between 0 and 1, 0.5 by default
+     * @return this
+     */
+    public CircuitBreakerPolicy setFailureRateThreshold(double failureRateThreshold) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) throw new IllegalArgumentException("failureRateThreshold must be above 0 and at most 1");
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    /**
+     * Set the share of slow requests in the window that opens the circuit.
+     * @param slowCallRateThreshold the rate between 0 and 1, 0.8 by default
+     * @param slowCallDuration how long a request takes to be slow in milliseconds, 10000 by default
+     * @return this
+     */
+    public CircuitBreakerPolicy setSlowCallThreshold(double slowCallRateThreshold, long slowCallDuration) {
+        if (slowCallRateThreshold <= 0 || slowCallRateThreshold > 1) throw new IllegalArgumentException("slowCallRateThreshold must be above 0 and at most 1");
+        if (slowCallDuration < 1) throw new IllegalArgumentException("slowCallDuration must be at least 1");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration;
+        return this;
+    }
+
+    /**
+     * Set the window of recent requests the rates are calculated over.
+     * @param windowSize the amount of requests in the window, 50 by default
+     * @param minimumCalls the amount of requests needed before the circuit can open, 10 by default
+     * @return this
+     */
+    public CircuitBreakerPolicy setWindow(int windowSize, int minimumCalls) {
+        if (minimumCalls < 1 || windowSize < minimumCalls) throw new IllegalArgumentException("Invalid window");
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * Set how long an open circuit fails requests right away before letting trial requests through.
+     * @param openDuration the duration in milliseconds, 10000 by default
+     * @return this
+     */
+    public CircuitBreakerPolicy setOpenDuration(long openDuration) {
+        if (openDuration < 0) throw new IllegalArgumentException("openDuration can't be negative");
+        this.openDuration = openDuration;
+        return this;
+    }
+
+    /**
+     * Set how many trial requests a half-open circuit sends. The circuit closes once they all succeeded,
+     * and opens again as soon as one fails or is slow.
+     * @param halfOpenCalls the amount of trial requests, 3 by default
+     * @return this
+     */
+    public CircuitBreakerPolicy setHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls < 1) throw new IllegalArgumentException("halfOpenCalls must be at least 1");
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+}
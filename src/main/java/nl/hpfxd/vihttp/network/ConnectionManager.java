@@ -19,62 +19,257 @@
 package nl.hpfxd.vihttp.network;
 
 import lombok.Getter;
-import net.jodah.expiringmap.ExpirationPolicy;
-import net.jodah.expiringmap.ExpiringMap;
+import nl.hpfxd.vihttp.ViHttpClient;
+import nl.hpfxd.vihttp.dns.Resolver;
 import nl.hpfxd.vihttp.exception.ProxyException;
+import nl.hpfxd.vihttp.http.HttpVersion;
 import nl.hpfxd.vihttp.http.ViHttpRequest;
 import nl.hpfxd.vihttp.http.impl.Http1Impl;
+import nl.hpfxd.vihttp.http.impl.http2.Http2Connection;
+import nl.hpfxd.vihttp.network.nio.NioConnection;
+import nl.hpfxd.vihttp.network.nio.NioEventLoopGroup;
+import nl.hpfxd.vihttp.network.nio.SslEngineWrapper;
 import nl.hpfxd.vihttp.proxy.ViProxy;
 import nl.hpfxd.vihttp.proxy.ViProxyType;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.IDN;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ConnectionManager {
-    private final SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    private static final long IDLE_SWEEP_INTERVAL = 5000;
+    private static final long CONNECTION_ATTEMPT_DELAY = 250; // recommended by RFC 8305
+    private static final String[] SOCKS5_STATUSES = {
+            "succeeded", "general failure", "connection not allowed by ruleset", "network unreachable",
+            "host unreachable", "connection refused", "TTL expired", "command not supported", "address type not supported"
+    };
+    private static final ExecutorService CONNECT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ViHttp Connect");
+        thread.setDaemon(true);
+        return thread;
+    });
     private static Timer timer = null;
-    @Getter private final ExpiringMap<String, ViHttpConnection> connections = ExpiringMap.builder()
-            .expiration(60, TimeUnit.SECONDS)
-            .expirationPolicy(ExpirationPolicy.ACCESSED)
-            .expirationListener((key, connection) -> {
-                ViHttpConnection conn = (ViHttpConnection) connection;
-                conn.close();
-            })
-            .build();
+    @Getter private final ViHttpClient client;
+    private final Map<Route, ConnectionPool> pools = new ConcurrentHashMap<>();
+    private final Map<Route, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final Map<Route, RouteLimiter> limiters = new ConcurrentHashMap<>();
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder fullHandshakeTime = new LongAdder();
+    private final LongAdder resumedHandshakeTime = new LongAdder();
+    private volatile NioEventLoopGroup eventLoopGroup = null;
+    private final TimerTask idleSweeper = new TimerTask() {
+        @Override
+        public void run() {
+            try {
+                ConnectionManager.this.evictIdle();
+            } catch (Throwable ignored) { // keep the shared timer thread alive
+            }
+        }
+    };
 
-    public ConnectionManager() {
+    public ConnectionManager(ViHttpClient client) {
+        this.client = client;
+        getTimer().schedule(this.idleSweeper, IDLE_SWEEP_INTERVAL, IDLE_SWEEP_INTERVAL);
     }
 
+    /**
+     * Lease a connection for a request from the pool of its route.
+     * The connection must be released with {@link ViHttpConnection#release()} or closed when the exchange is done.
+     * @param request the request
+     * @return the leased connection
+     */
     public ViHttpConnection getConnection(ViHttpRequest request) throws IOException {
-        if (request.getClient().isConnectionReuseEnabled()) {
-            ViHttpConnection connection = this.findConnection(request);
-
+        Route route = Route.of(request);
+        while (true) {
+            ViHttpConnection connection = this.getPool(route).lease(request);
             if (connection != null) return connection;
         }
-        if (request.getProxy() == null) {
-            Socket socket = new Socket(request.getAddress().getAddress(), request.getAddress().getPort());
-            socket.setTcpNoDelay(true);
-            socket.setSoTimeout((int) request.getTimeout());
-            return this.getConnection(request, this.getSSLSocket(socket, request));
+    }
+
+    /**
+     * Lease a connection for a request without blocking.
+     * @param request the request
+     * @param executor the executor to open new connections on
+     * @return a future completed with the leased connection
+     */
+    public CompletableFuture<ViHttpConnection> getConnectionAsync(ViHttpRequest request, Executor executor) {
+        Route route = Route.of(request);
+        while (true) {
+            CompletableFuture<ViHttpConnection> future = this.getPool(route).leaseAsync(request, executor);
+            if (future != null) return future;
         }
+    }
 
-        Socket socket = new Socket(request.getProxy().getHost(), request.getProxy().getPort());
-        socket.setTcpNoDelay(true);
-        socket.setSoTimeout((int) request.getTimeout());
+    /**
+     * Run a task on the connection timer after a delay.
+     * Tasks must be short, as they share a single thread.
+     * @param task the task
+     * @param delay the delay in milliseconds
+     * @return the scheduled task, which can be cancelled
+     */
+    public TimerTask schedule(Runnable task, long delay) {
+        TimerTask timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable ignored) { // a task that throws would kill the timer thread shared by every client
+                }
+            }
+        };
+        getTimer().schedule(timerTask, Math.max(0, delay));
+        return timerTask;
+    }
+
+    public ConnectionPool getPool(Route route) {
+        return this.pools.computeIfAbsent(route, r -> new ConnectionPool(this, r));
+    }
+
+    /**
+     * Get the circuit breaker of a request's route, keyed like the connection pools.
+     * @param request the request
+     * @return the circuit breaker, or {@code null} if the client doesn't use circuit breakers
+     */
+    public CircuitBreaker getCircuitBreaker(ViHttpRequest request) {
+        CircuitBreakerPolicy policy = this.client.getCircuitBreakerPolicy();
+        if (policy == null) return null;
+        Route key = Route.of(request);
+        CircuitBreaker circuitBreaker = this.circuitBreakers.get(key); // avoid locking the map's bin on every request
+        if (circuitBreaker != null && circuitBreaker.getPolicy() == policy) return circuitBreaker;
+        return this.circuitBreakers.compute(key, (route, existing) ->
+                existing != null && existing.getPolicy() == policy ? existing : new CircuitBreaker(route, policy));
+    }
+
+    /**
+     * Get the limiter of a request's route, created when it's first used or when the client's policy changed.
+     * @param request the request
+     * @return the limiter, or null if the client has no rate limit policy
+     */
+    public RouteLimiter getRouteLimiter(ViHttpRequest request) {
+        RateLimitPolicy policy = this.client.getRateLimitPolicy();
+        if (policy == null) return null;
+        Route key = Route.of(request);
+        RouteLimiter limiter = this.limiters.get(key); // avoid locking the map's bin on every request
+        if (limiter != null && limiter.getPolicy() == policy) return limiter;
+        return this.limiters.compute(key, (route, existing) ->
+                existing != null && existing.getPolicy() == policy ? existing : new RouteLimiter(this, route, policy));
+    }
+
+    /**
+     * Open connections for a request's route ahead of time, see {@link ConnectionPool#prewarm(ViHttpRequest, int, Executor)}.
+     * @param request the request, which is not sent
+     * @param connections the amount of connections the pool should hold
+     * @return a future completed with the amount of connections opened
+     */
+    public CompletableFuture<Integer> prewarm(ViHttpRequest request, int connections) {
+        Route route = Route.of(request);
+        while (true) {
+            CompletableFuture<Integer> future = this.getPool(route).prewarm(request, connections, this.client.getExecutor());
+            if (future != null) return future;
+        }
+    }
+
+    /**
+     * Get the statistics of all connection pools.
+     * @return an unmodifiable map of routes to their pool statistics
+     */
+    public Map<Route, PoolStats> getStats() {
+        Map<Route, PoolStats> stats = new HashMap<>();
+        this.pools.forEach((route, pool) -> stats.put(route, pool.getStats()));
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Get the statistics of all circuit breakers.
+     * @return an unmodifiable map of routes to their circuit breaker statistics
+     */
+    public Map<Route, CircuitBreakerStats> getCircuitBreakerStats() {
+        Map<Route, CircuitBreakerStats> stats = new HashMap<>();
+        this.circuitBreakers.forEach((route, circuitBreaker) -> stats.put(route, circuitBreaker.getStats()));
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Get the statistics of all route limiters.
+     * @return an unmodifiable map of routes to their limiter statistics
+     */
+    public Map<Route, RateLimitStats> getRateLimitStats() {
+        Map<Route, RateLimitStats> stats = new HashMap<>();
+        this.limiters.forEach((route, limiter) -> stats.put(route, limiter.getStats()));
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Get the statistics of the TLS handshakes of new connections, to see how often sessions are resumed.
+     * @return the statistics
+     */
+    public TlsStats getTlsStats() {
+        return new TlsStats(this.fullHandshakes.sum(), this.resumedHandshakes.sum(), this.fullHandshakeTime.sum(), this.resumedHandshakeTime.sum());
+    }
+
+    /**
+     * Close all connections and stop the idle connection sweeper.
+     */
+    public void shutdown() {
+        this.idleSweeper.cancel();
+        this.pools.values().forEach(ConnectionPool::close);
+        this.pools.clear();
+        if (this.eventLoopGroup != null) this.eventLoopGroup.shutdown();
+    }
+
+    private void evictIdle() {
+        long idleTimeout = this.client.getConnectionIdleTimeout();
+        this.pools.values().forEach(pool -> pool.evictIdle(idleTimeout));
+        // retiring under the map's lock for the route, so no request gets a pool that's about to be removed
+        this.pools.keySet().forEach(route -> this.pools.computeIfPresent(route, (r, pool) -> pool.retire() ? null : pool));
+        // only removed if they weren't replaced in the meantime; a request that just got one still goes through it
+        this.circuitBreakers.forEach((route, circuitBreaker) -> {
+            if (circuitBreaker.isIdle(idleTimeout)) this.circuitBreakers.remove(route, circuitBreaker);
+        });
+        this.limiters.forEach((route, limiter) -> {
+            if (limiter.isIdle(idleTimeout)) this.limiters.remove(route, limiter);
+        });
+    }
 
+    ViHttpConnection openConnection(ViHttpRequest request, ConnectionPool pool) throws IOException {
+        Socket socket = request.getProxy() == null
+                ? this.connect(request, request.getHost(), request.getPort())
+                : this.connect(request, request.getProxy().getHost(), request.getProxy().getPort());
         try {
+            if (request.getProxy() == null) {
+                return this.createConnection(request, pool, socket, request.isSsl());
+            }
+
             if (request.getProxy().getType() == ViProxyType.HTTP_REQUEST) {
-                return this.getConnection(request, socket);
+                return this.createConnection(request, pool, socket, false);
             } else if (request.getProxy().getType() == ViProxyType.HTTP_CONNECT) {
+                // name the target rather than resolving it, the proxy resolves it and may apply rules by name
+                String authority = request.getHost() + ":" + request.getPort();
                 OutputStream out = socket.getOutputStream();
-                byte[] msg = ("CONNECT " + request.getAddress().getAddress().getHostAddress() + ":" + request.getPort() + " HTTP/1.0\r\n" +
-                        (request.getProxy().getAuthentication() != null ? "Proxy-Authorization: " + this.getProxyAuthorization(request.getProxy()) + "\r\n" : "") +
+                byte[] msg = ("CONNECT " + authority + " HTTP/1.1\r\n" +
+                        "Host: " + authority + "\r\n" +
+                        (request.getProxy().getAuthentication() != null ? "Proxy-Authorization: " + request.getProxy().getProxyAuthorization() + "\r\n" : "") +
                         "\r\n").getBytes("ASCII7");
 
                 out.write(msg);
@@ -82,161 +277,307 @@ public class ConnectionManager {
 
                 InputStream in = socket.getInputStream();
                 String statusLine = Http1Impl.readLine(in);
-                if (!statusLine.contains(" 200 ")) {
-                    throw new ProxyException("Unable to establish tunnel. Proxy returned \"" + statusLine + "\"");
-                }
                 //noinspection StatementWithEmptyBody
                 while (Http1Impl.readLine(in).length() > 0);
-                return this.getConnection(request, this.getSSLSocket(socket, request));
-            } else if (request.getProxy().getType() == ViProxyType.SOCKS4) {
-                // https://en.wikipedia.org/wiki/SOCKS#SOCKS4
-                OutputStream out = socket.getOutputStream();
-
-                byte[] bytes; // byte array because some socks4 servers don't like it if you send data not all at once
-                if (request.getProxy().getAuthentication() == null) {
-                    bytes = new byte[9];
-                } else {
-                    byte[] usernameBytes = request.getProxy().getAuthentication().getUsername().getBytes("ASCII7");
-                    bytes = new byte[9 + usernameBytes.length];
-                    System.arraycopy(usernameBytes, 0, bytes, 8, usernameBytes.length);
+                String[] status = statusLine.split(" ");
+                if (status.length < 2 || !status[1].startsWith("2")) {
+                    if (status.length >= 2 && status[1].equals("407")) {
+                        throw new ProxyException("Proxy requires authentication" + (request.getProxy().getAuthentication() != null ? ", the credentials were rejected." : "."));
+                    }
+                    throw new ProxyException("Unable to establish tunnel. Proxy returned \"" + statusLine + "\"");
                 }
-                bytes[0] = 0x04; // VER (0x04 | SOCKS4)
-                bytes[1] = 0x01; // CMD (0x01 | Establish a TCP/IP stream connection)
-                byte[] port = encodePort(request.getPort()); // DSTPORT
-                bytes[2] = port[0];
-                bytes[3] = port[1];
-                byte[] ip = request.getAddress().getAddress().getAddress(); // DSTIP
-                bytes[4] = ip[0];
-                bytes[5] = ip[1];
-                bytes[6] = ip[2];
-                bytes[7] = ip[3];
-                bytes[bytes.length - 1] = 0x00;
-                out.write(bytes);
-                out.flush();
+                return this.createConnection(request, pool, socket, request.isSsl());
+            } else if (request.getProxy().getType() == ViProxyType.SOCKS4 || request.getProxy().getType() == ViProxyType.SOCKS4A) {
+                this.socks4Connect(request, socket);
+                return this.createConnection(request, pool, socket, request.isSsl());
+            } else if (request.getProxy().getType() == ViProxyType.SOCKS5) {
+                this.socks5Connect(request, socket);
+                return this.createConnection(request, pool, socket, request.isSsl());
+            } else {
+                throw new UnsupportedOperationException("The requested proxy type is not implemented.");
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
 
-                if (socket.isClosed()) throw new ProxyException("Proxy was closed before response could be read.");
-                InputStream in = socket.getInputStream();
-                int version = in.read();
-                if (version == -1) throw new ProxyException("Unexpected end of data while reading SOCKS reply VN.");
-                if (version != 0)
-                    throw new ProxyException("Expected a null byte for SOCKS reply VN. Instead received " + version);
-                int replyCode = in.read();
-                if (replyCode == -1) throw new ProxyException("Unexpected end of data while reading SOCKS reply REP.");
-
-                for (int i = 0; i < 2; i++) {
-                    if (in.read() == -1)
-                        throw new ProxyException("Unexpected end of data while reading byte " + (i + 1) + " of SOCKS reply DSTPORT.");
+    /**
+     * Ask a SOCKS4 proxy to connect to the target, or a SOCKS4a proxy to resolve it and connect.
+     * @see <a href="https://www.openssh.com/txt/socks4.protocol">SOCKS4</a>
+     * @see <a href="https://www.openssh.com/txt/socks4a.protocol">SOCKS4a</a>
+     */
+    private void socks4Connect(ViHttpRequest request, Socket socket) throws IOException {
+        ViProxy proxy = request.getProxy();
+        byte[] address;
+        byte[] domain = null;
+        if (proxy.getType() == ViProxyType.SOCKS4A && !isIpv4Literal(request.getHost())) {
+            address = new byte[] {0, 0, 0, 1}; // an invalid address, telling the proxy to resolve the domain after the user id
+            domain = request.getHost().getBytes(StandardCharsets.US_ASCII);
+        } else {
+            address = null;
+            for (InetAddress resolved : this.client.getResolver().resolve(request.getHost())) {
+                if (resolved instanceof Inet4Address) {
+                    address = resolved.getAddress();
+                    break;
                 }
+            }
+            if (address == null) throw new ProxyException("SOCKS4 only supports IPv4, but " + request.getHost() + " has no IPv4 address.");
+        }
 
-                for (int i = 0; i < 4; i++) {
-                    if (in.read() == -1)
-                        throw new ProxyException("Unexpected end of data while reading byte " + (i + 1) + " of SOCKS reply DSTIP.");
-                }
+        // written at once because some SOCKS4 servers don't like it if the request is split
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        bytes.write(0x04); // VN
+        bytes.write(0x01); // CD (connect)
+        bytes.write(encodePort(request.getPort())); // DSTPORT
+        bytes.write(address); // DSTIP
+        if (proxy.getAuthentication() != null) bytes.write(proxy.getAuthentication().getUsername().getBytes(StandardCharsets.US_ASCII)); // USERID
+        bytes.write(0x00);
+        if (domain != null) {
+            bytes.write(domain);
+            bytes.write(0x00);
+        }
+        OutputStream out = socket.getOutputStream();
+        bytes.writeTo(out);
+        out.flush();
 
-                if (replyCode != 0x5a) {
-                    throw new ProxyException("SOCKS server rejected request. Reply code: " + replyCode);
-                }
+        byte[] reply = readSocksReply(socket.getInputStream(), 8); // VN, CD, DSTPORT and DSTIP
+        if (reply[0] != 0x00) throw new ProxyException("Expected a null byte for SOCKS reply VN. Instead received " + (reply[0] & 0xFF));
+        if (reply[1] != 0x5a) throw new ProxyException("SOCKS server rejected request. Reply code: " + (reply[1] & 0xFF));
+    }
 
-                return this.getConnection(request, this.getSSLSocket(socket, request));
-            } else if (request.getProxy().getType() == ViProxyType.SOCKS5) {
-                // https://en.wikipedia.org/wiki/SOCKS#SOCKS5
-                OutputStream out = socket.getOutputStream();
-                InputStream in = socket.getInputStream();
+    /**
+     * Ask a SOCKS5 proxy to connect to the target, sending host names for the proxy to resolve.
+     * @see <a href="https://www.rfc-editor.org/rfc/rfc1928">RFC 1928</a>
+     */
+    private void socks5Connect(ViHttpRequest request, Socket socket) throws IOException {
+        ViProxy proxy = request.getProxy();
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+
+        // CLIENT GREETING
+        if (proxy.getAuthentication() == null) {
+            out.write(new byte[] {0x05, 0x01, 0x00}); // VER, NAUTH, no authentication
+        } else {
+            out.write(new byte[] {0x05, 0x02, 0x00, 0x02}); // VER, NAUTH, no authentication, username/password
+        }
+        out.flush();
+
+        // SERVER CHOICE
+        byte[] choice = readSocksReply(in, 2);
+        if (choice[0] != 0x05) throw new ProxyException("SOCKS server replied with incompatible version.");
+        if (choice[1] == 0x02 && proxy.getAuthentication() != null) {
+            // CLIENT AUTHENTICATION REQUEST, RFC 1929
+            byte[] username = proxy.getAuthentication().getUsername().getBytes(StandardCharsets.UTF_8);
+            byte[] password = proxy.getAuthentication().getPassword().getBytes(StandardCharsets.UTF_8);
+            if (username.length > 255 || password.length > 255) throw new ProxyException("SOCKS credentials can't be longer than 255 bytes.");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(3 + username.length + password.length);
+            bytes.write(0x01); // VER
+            bytes.write(username.length); // IDLEN
+            bytes.write(username); // ID
+            bytes.write(password.length); // PWLEN
+            bytes.write(password); // PW
+            bytes.writeTo(out);
+            out.flush();
+
+            // SERVER AUTHENTICATION RESPONSE
+            byte[] authentication = readSocksReply(in, 2);
+            if (authentication[0] != 0x01)
+                throw new ProxyException("Unexpected version for SOCKS username/password authentication. Expected 0x01, got " + (authentication[0] & 0xFF));
+            if (authentication[1] != 0x00)
+                throw new ProxyException("Error authenticating with SOCKS proxy. Response: " + (authentication[1] & 0xFF));
+        } else if (choice[1] != 0x00) {
+            throw new ProxyException(proxy.getAuthentication() == null
+                    ? "SOCKS server requires authentication."
+                    : "SOCKS server accepted none of the offered authentication methods.");
+        }
 
-                // CLIENT GREETING
-                out.write(0x05); // VER (0x05 | SOCKS5)
-                if (request.getProxy().getAuthentication() == null) {
-                    out.write(0x01); // NAUTH
-                    out.write(0x00); // No authentication
-                } else {
-                    out.write(0x02); // NAUTH
-                    out.write(0x00); // No authentication
-                    out.write(0x02); // Username/password
-                }
-                out.flush();
+        // CONNECTION REQUEST
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        bytes.write(new byte[] {0x05, 0x01, 0x00}); // VER, CMD (connect), RSV
+        byte[] address = parseLiteral(request.getHost());
+        if (address != null) {
+            bytes.write(address.length == 4 ? 0x01 : 0x04); // DSTADDR TYPE (IPv4 or IPv6)
+            bytes.write(address);
+        } else {
+            byte[] domain = IDN.toASCII(request.getHost()).getBytes(StandardCharsets.US_ASCII);
+            if (domain.length > 255) throw new ProxyException("Host name is too long for SOCKS: " + request.getHost());
+            bytes.write(0x03); // DSTADDR TYPE (domain name)
+            bytes.write(domain.length);
+            bytes.write(domain);
+        }
+        bytes.write(encodePort(request.getPort())); // DSTPORT
+        bytes.writeTo(out);
+        out.flush();
+
+        // CONNECTION RESPONSE
+        byte[] reply = readSocksReply(in, 4); // VER, STATUS, RSV, BNDADDR TYPE
+        if (reply[0] != 0x05) throw new ProxyException("SOCKS server replied with incompatible version.");
+        if (reply[1] != 0x00) {
+            int status = reply[1] & 0xFF;
+            throw new ProxyException("SOCKS server rejected request. Status: " + status
+                    + (status < SOCKS5_STATUSES.length ? " (" + SOCKS5_STATUSES[status] + ")" : ""));
+        }
+        int addressLength;
+        switch (reply[3]) {
+            case 0x01:
+                addressLength = 4;
+                break;
+            case 0x04:
+                addressLength = 16;
+                break;
+            case 0x03:
+                addressLength = readSocksReply(in, 1)[0] & 0xFF;
+                break;
+            default:
+                throw new ProxyException("SOCKS server replied with unknown address type " + (reply[3] & 0xFF) + ".");
+        }
+        readSocksReply(in, addressLength + 2); // BNDADDR and BNDPORT, which aren't needed
+    }
 
+    /**
+     * Read a part of a SOCKS reply.
+     */
+    private static byte[] readSocksReply(InputStream in, int length) throws IOException {
+        byte[] reply = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = in.read(reply, read, length - read);
+            if (n == -1) throw new ProxyException("Unexpected end of data while reading SOCKS reply.");
+            read += n;
+        }
+        return reply;
+    }
 
-                // SERVER CHOICE
-                if (in.read() != 0x05) throw new ProxyException("SOCKS server replied with incompatible version.");
-                int auth = in.read(); // CAUTH
-                if (auth == -1) throw new ProxyException("Unexpected end of data while reading SOCKS reply CAUTH.");
-
-                if (auth == 0x02) { // Username/password
-                    // CLIENT AUTHENTICATION REQUEST
-                    byte[] username = request.getProxy().getAuthentication().getUsername().getBytes("ASCII7");
-                    byte[] password = request.getProxy().getAuthentication().getPassword().getBytes("ASCII7");
-
-                    out.write(0x01); // VER
-                    out.write(username.length); // IDLEN
-                    out.write(username); // ID
-                    out.write(password.length); // PWLEN
-                    out.write(password); // PW
-                    out.flush();
-
-                    // SERVER AUTHENTICATION RESPONSE
-                    int authVer = in.read();
-                    if (authVer != 0x01)
-                        throw new ProxyException("Unexpected version for SOCKS username/password authentication. Expected 0x01, got " + authVer);
-                    int authStatus = in.read();
-                    if (authStatus != 0x00)
-                        throw new ProxyException("Error authenticating with SOCKS proxy. Response: " + authStatus);
-                }
+    /**
+     * Parse an IP address literal.
+     * @return the address, or {@code null} for a host name
+     */
+    private static byte[] parseLiteral(String host) {
+        try {
+            return Resolver.parseLiteral(host);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
 
-                // CONNECTION REQUEST
-                out.write(0x05); // VER
-                out.write(0x01); // CMD
-                out.write(0x00); // RSV
-                out.write(0x01); // DSTADDR TYPE
-                out.write(request.getAddress().getAddress().getAddress()); // DSTADDR ADDR
-                out.write(encodePort(request.getPort())); // DSTPORT
-                out.flush();
+    private static boolean isIpv4Literal(String host) {
+        byte[] address = parseLiteral(host);
+        return address != null && address.length == 4;
+    }
 
-                // CONNECTION RESPONSE
-                if (in.read() != 0x05)
-                    throw new ProxyException("SOCKS server replied with incompatible version."); // VER
-                int status = in.read(); // STATUS
+    /**
+     * Open a socket to a host, racing its addresses if it has more than one.
+     * @param request the request the connection is for
+     * @param host the host to connect to, the target or the proxy
+     * @param port the port
+     * @return the connected socket
+     */
+    private Socket connect(ViHttpRequest request, String host, int port) throws IOException {
+        List<InetAddress> addresses = this.client.getResolver().resolve(host);
+        return new HappyEyeballsConnector(addresses, port, request.getConnectTimeout(), CONNECTION_ATTEMPT_DELAY,
+                () -> this.createSocket(request), CONNECT_EXECUTOR).connect();
+    }
 
-                if (status != 0x00) {
-                    throw new ProxyException("SOCKS server rejected request. Status: " + status);
-                }
+    /**
+     * Create an unconnected socket.
+     * With NIO enabled, this is the socket of a {@link SocketChannel} in blocking mode, so the proxy handshakes
+     * can use the same streams as a normal socket before the channel is handed to an event loop.
+     * HTTP/2 with prior knowledge always uses a normal socket, as its connections read on their own thread.
+     */
+    private Socket createSocket(ViHttpRequest request) throws IOException {
+        boolean nio = this.client.isNioEnabled() && request.getHttpVersion() != HttpVersion.HTTP_2_PRIOR_KNOWLEDGE;
+        Socket socket = nio ? SocketChannel.open().socket() : new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout((int) request.getTimeout());
+        return socket;
+    }
 
-                if (in.read() == -1) throw new ProxyException("Unexpected end of data while reading SOCKS reply RSV.");
-                //noinspection ResultOfMethodCallIgnored
-                in.read(new byte[7]); // skip over BNDADDR and BNDPORT since they're not needed
-                return this.getConnection(request, this.getSSLSocket(socket, request));
-            } else {
-                throw new UnsupportedOperationException("The requested proxy type is not implemented.");
+    private ViHttpConnection createConnection(ViHttpRequest request, ConnectionPool pool, Socket socket, boolean tls) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            SslEngineWrapper ssl = null;
+            if (tls) {
+                SSLEngine engine = this.client.getSSLContext().createSSLEngine(request.getHost(), request.getPort());
+                engine.setUseClientMode(true);
+                ssl = new SslEngineWrapper(engine);
+                long start = System.currentTimeMillis();
+                ssl.handshake(socket.getInputStream(), socket.getOutputStream());
+                this.recordHandshake(engine.getSession(), start);
             }
-        } catch (ProxyException e) {
-            socket.close();
-            throw e;
+            channel.configureBlocking(false);
+            return new NioConnection(pool, channel, this.getEventLoopGroup().next(), ssl);
         }
-    }
 
-    private ViHttpConnection getConnection(ViHttpRequest request, Socket socket) {
-        if (timer == null) timer = new Timer("ViHttp Connection Timer");
-        ViHttpConnection connection = new ViHttpConnection(request.getClient(), request.getAddress(), socket);
-
-        if (request.getClient().isConnectionReuseEnabled()) {
-            connections.put(request.getAddress().toString(), connection);
+        if (tls) socket = this.getSSLSocket(socket, request);
+        ViHttpConnection connection = new ViHttpConnection(pool, socket, request.getClient().isPipeliningEnabled() ? request.getClient().getMaxPipelineDepth() : 1);
+        boolean useHttp2 = socket instanceof SSLSocket
+                ? "h2".equals(getApplicationProtocol((SSLSocket) socket))
+                : request.getHttpVersion() == HttpVersion.HTTP_2_PRIOR_KNOWLEDGE && !this.isRequestProxy(request);
+        if (useHttp2) {
+            Http2Connection http2 = new Http2Connection(connection);
+            connection.setHttp2(http2);
+            http2.start();
         }
-
         return connection;
     }
 
-    private ViHttpConnection findConnection(ViHttpRequest request) {
-        return this.connections.get(request.getAddress().toString());
+    private NioEventLoopGroup getEventLoopGroup() {
+        NioEventLoopGroup group = this.eventLoopGroup;
+        if (group == null) {
+            synchronized (this) {
+                if (this.eventLoopGroup == null) this.eventLoopGroup = new NioEventLoopGroup(this.client.getIoThreads());
+                group = this.eventLoopGroup;
+            }
+        }
+        return group;
     }
 
     private Socket getSSLSocket(Socket socket, ViHttpRequest request) throws IOException {
-        if (!request.isSsl()) return socket;
-        SSLSocket sslSocket = (SSLSocket) this.sslSocketFactory.createSocket(socket, request.getHost(), request.getPort(), false);
+        // the host and port key the session cache, so later connections to the same server can resume the session
+        SSLSocket sslSocket = (SSLSocket) this.client.getSSLContext().getSocketFactory().createSocket(socket, request.getHost(), request.getPort(), false);
+        if (request.getHttpVersion() == HttpVersion.HTTP_2 || request.getHttpVersion() == HttpVersion.HTTP_2_PRIOR_KNOWLEDGE) {
+            // offer h2 through ALPN, the server picks http/1.1 or nothing if it doesn't support it
+            SSLParameters parameters = sslSocket.getSSLParameters();
+            try {
+                parameters.setApplicationProtocols(new String[] { "h2", "http/1.1" });
+                sslSocket.setSSLParameters(parameters);
+            } catch (NoSuchMethodError ignored) { // ALPN isn't available before Java 8u252
+            }
+        }
+        long start = System.currentTimeMillis();
         sslSocket.startHandshake();
+        this.recordHandshake(sslSocket.getSession(), start);
         return sslSocket;
     }
 
-    private String getProxyAuthorization(ViProxy proxy) {
-        return new String(Base64.getEncoder().encode((proxy.getAuthentication().getUsername() + ":" + proxy.getAuthentication().getPassword()).getBytes()));
+    /**
+     * Count a finished handshake as full or resumed.
+     * A resumed session was created by an earlier handshake, before this one started.
+     */
+    private void recordHandshake(SSLSession session, long start) {
+        long time = System.currentTimeMillis() - start;
+        if (session.getCreationTime() < start) {
+            this.resumedHandshakes.increment();
+            this.resumedHandshakeTime.add(time);
+        } else {
+            this.fullHandshakes.increment();
+            this.fullHandshakeTime.add(time);
+        }
+    }
+
+    /**
+     * Whether the request is sent through an HTTP proxy that forwards requests, which only speaks HTTP/1.1.
+     */
+    private boolean isRequestProxy(ViHttpRequest request) {
+        return request.getProxy() != null && request.getProxy().getType() == ViProxyType.HTTP_REQUEST;
+    }
+
+    private static String getApplicationProtocol(SSLSocket socket) {
+        try {
+            return socket.getApplicationProtocol();
+        } catch (NoSuchMethodError | UnsupportedOperationException e) {
+            return null;
+        }
     }
 
     private static byte[] encodePort(int value) {
@@ -245,4 +586,9 @@ public class ConnectionManager {
         bytes[1] = (byte) (value & 0xFF);
         return bytes;
     }
+
+    private static synchronized Timer getTimer() {
+        if (timer == null) timer = new Timer("ViHttp Connection Timer", true);
+        return timer;
+    }
 }
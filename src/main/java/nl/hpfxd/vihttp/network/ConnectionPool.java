@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Getter;
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A bounded pool of connections to a single {@link Route}.
+ *
+ * Connections are leased for the duration of an exchange and released back to the pool afterwards.
+ * When all connections are leased and the pool is full, requests wait in FIFO order until one is released.
+ * A waiter is completed either with a leased connection, or with {@code null} meaning a slot
+ * has been reserved for it and it should open a new connection itself.
+ *
+ * Once a pool is empty the connection manager may retire it. A retired pool refuses leases,
+ * and the manager looks up the route's current pool instead.
+ */
+public class ConnectionPool {
+    @Getter private final ConnectionManager manager;
+    @Getter private final Route route;
+    private final List<ViHttpConnection> connections = new ArrayList<>();
+    private final Deque<CompletableFuture<ViHttpConnection>> waiters = new ArrayDeque<>();
+    private int connecting = 0;
+    private boolean closed = false;
+    private boolean retired = false;
+
+    private long totalLeases = 0;
+    private long totalConnections = 0;
+    private long totalTimeouts = 0;
+
+    public ConnectionPool(ConnectionManager manager, Route route) {
+        this.manager = manager;
+        this.route = route;
+    }
+
+    /**
+     * Lease a connection, opening a new one if the pool is not full.
+     * Blocks for at most the client's connection acquire timeout if the pool is exhausted.
+     * @param request the request the connection is for
+     * @return the leased connection, or {@code null} if the pool was retired
+     */
+    public ViHttpConnection lease(ViHttpRequest request) throws IOException {
+        CompletableFuture<ViHttpConnection> future = this.acquire(request.getClient().isConnectionReuseEnabled());
+        if (future == null) return null;
+        ViHttpConnection connection;
+        try {
+            connection = future.get(this.getAcquireTimeout(request), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (this.cancel(future)) throw this.timeoutException();
+            connection = this.await(future); // granted while timing out
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (this.cancel(future)) throw new HttpException("Interrupted while waiting for a connection.", e);
+            connection = this.await(future);
+        } catch (ExecutionException e) {
+            throw new HttpException(e.getCause());
+        }
+
+        if (connection == null) connection = this.open(request, true);
+        return connection;
+    }
+
+    /**
+     * Lease a connection without blocking.
+     * If a new connection has to be opened, it is opened on the executor.
+     * @param request the request the connection is for
+     * @param executor the executor to open new connections on
+     * @return a future completed with the leased connection, or {@code null} if the pool was retired
+     */
+    public CompletableFuture<ViHttpConnection> leaseAsync(ViHttpRequest request, Executor executor) {
+        CompletableFuture<ViHttpConnection> waiter;
+        try {
+            waiter = this.acquire(request.getClient().isConnectionReuseEnabled());
+        } catch (HttpException e) {
+            CompletableFuture<ViHttpConnection> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (waiter == null) return null;
+
+        if (!waiter.isDone()) {
+            TimerTask timeout = this.manager.schedule(() -> {
+                if (this.cancel(waiter)) waiter.completeExceptionally(this.timeoutException());
+            }, this.getAcquireTimeout(request));
+            waiter.whenComplete((connection, error) -> timeout.cancel());
+        }
+
+        return waiter.thenCompose(connection -> {
+            if (connection != null) return CompletableFuture.completedFuture(connection);
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return this.open(request, true);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        });
+    }
+
+    /**
+     * Open connections ahead of time until the pool holds the given amount, without leasing them.
+     * Requests can then use them without waiting for a connect, proxy tunnel or TLS handshake.
+     * The pool stays bounded by the maximum connections per route, and unused connections are still closed
+     * once they've been idle for the idle timeout.
+     * @param request the request to open connections for, which is not sent
+     * @param connections the amount of connections the pool should hold
+     * @param executor the executor to open connections on
+     * @return a future completed with the amount of connections opened, or {@code null} if the pool was retired
+     */
+    public CompletableFuture<Integer> prewarm(ViHttpRequest request, int connections, Executor executor) {
+        List<CompletableFuture<Void>> opening = new ArrayList<>();
+        synchronized (this) {
+            if (this.retired) return null;
+            if (this.closed) {
+                CompletableFuture<Integer> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new HttpException("Connection pool was closed."));
+                return failed;
+            }
+            while (this.connections.size() + this.connecting < connections && this.reserve()) {
+                opening.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        this.open(request, false);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+        }
+        return CompletableFuture.allOf(opening.toArray(new CompletableFuture<?>[0])).thenApply(v -> opening.size());
+    }
+
+    /**
+     * Release a leased connection back to the pool.
+     * @param connection the connection
+     */
+    public void release(ViHttpConnection connection) {
+        synchronized (this) {
+            connection.setLeases(connection.getLeases() - 1);
+            connection.setLastUsed(System.currentTimeMillis());
+            connection.setPooled(true);
+        }
+        this.dispatch();
+    }
+
+    /**
+     * Remove a connection from the pool, freeing its slot.
+     * This does not close the connection, see {@link ViHttpConnection#close()}.
+     * @param connection the connection
+     */
+    public void remove(ViHttpConnection connection) {
+        synchronized (this) {
+            if (!this.connections.remove(connection)) return;
+        }
+        this.dispatch();
+    }
+
+    /**
+     * Close all connections and fail all waiters.
+     */
+    public void close() {
+        List<ViHttpConnection> toClose;
+        List<CompletableFuture<ViHttpConnection>> toFail;
+        synchronized (this) {
+            this.closed = true;
+            toClose = new ArrayList<>(this.connections);
+            toFail = new ArrayList<>(this.waiters);
+            this.waiters.clear();
+        }
+        toFail.forEach(f -> f.completeExceptionally(new HttpException("Connection pool was closed.")));
+        toClose.forEach(ViHttpConnection::close);
+    }
+
+    /**
+     * Close connections that have not been leased for longer than the idle timeout.
+     * They're taken out of the pool before they're closed, so they can't be leased in the meantime.
+     * @param idleTimeout the idle timeout in milliseconds
+     */
+    public void evictIdle(long idleTimeout) {
+        long now = System.currentTimeMillis();
+        List<ViHttpConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<ViHttpConnection> it = this.connections.iterator(); it.hasNext(); ) {
+                ViHttpConnection connection = it.next();
+                if (connection.getLeases() == 0 && now - connection.getLastUsed() > idleTimeout) {
+                    it.remove();
+                    toClose.add(connection);
+                }
+            }
+        }
+        toClose.forEach(ViHttpConnection::close);
+        if (!toClose.isEmpty()) this.dispatch(); // their slots are free again
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.connections.isEmpty() && this.connecting == 0 && this.waiters.isEmpty();
+    }
+
+    /**
+     * Retire the pool if it's empty, after which it refuses leases.
+     * @return whether the pool was retired
+     */
+    synchronized boolean retire() {
+        if (!this.isEmpty()) return false;
+        this.retired = true;
+        return true;
+    }
+
+    public synchronized PoolStats getStats() {
+        int idle = 0;
+        int leased = 0;
+        for (ViHttpConnection connection : this.connections) {
+            if (connection.getLeases() == 0) idle++;
+            leased += connection.getLeases();
+        }
+        return new PoolStats(this.route, this.getMaxConnections(), this.connections.size(), idle, this.connecting,
+                this.waiters.size(), leased, this.totalLeases, this.totalConnections, this.totalTimeouts);
+    }
+
+    private synchronized CompletableFuture<ViHttpConnection> acquire(boolean reuse) throws HttpException {
+        if (this.retired) return null;
+        if (this.closed) throw new HttpException("Connection pool was closed.");
+        if (this.waiters.isEmpty()) { // don't skip ahead of requests that are already waiting
+            ViHttpConnection connection = reuse ? this.findAvailable() : null;
+            if (connection != null) {
+                return CompletableFuture.completedFuture(connection);
+            }
+            if (this.reserve()) return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<ViHttpConnection> future = new CompletableFuture<>();
+        this.waiters.add(future);
+        return future;
+    }
+
+    /**
+     * Open a connection in a reserved slot.
+     * @param request the request the connection is for
+     * @param lease whether to lease the connection, or to add it to the pool as idle
+     * @return the connection
+     */
+    private ViHttpConnection open(ViHttpRequest request, boolean lease) throws IOException {
+        ViHttpConnection connection;
+        try {
+            connection = this.manager.openConnection(request, this);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                this.connecting--;
+            }
+            this.dispatch();
+            throw e;
+        }
+
+        boolean closed;
+        synchronized (this) {
+            this.connecting--;
+            this.totalConnections++;
+            closed = this.closed;
+            if (!closed) {
+                this.connections.add(connection);
+                if (lease) {
+                    this.lease(connection);
+                    return connection;
+                }
+                connection.setPooled(true);
+            }
+        }
+        if (closed) {
+            connection.close();
+            throw new HttpException("Connection pool was closed.");
+        }
+        this.dispatch(); // hand the idle connection to a waiter, if there is one
+        return connection;
+    }
+
+    /**
+     * Hand out available connections and free slots to waiters, in order.
+     */
+    private void dispatch() {
+        List<Runnable> grants = new ArrayList<>();
+        synchronized (this) {
+            while (!this.waiters.isEmpty()) {
+                CompletableFuture<ViHttpConnection> waiter = this.waiters.peek();
+                ViHttpConnection connection = this.findAvailable();
+                if (connection != null) {
+                    this.waiters.poll();
+                    grants.add(() -> waiter.complete(connection));
+                } else if (this.reserve()) {
+                    this.waiters.poll();
+                    grants.add(() -> waiter.complete(null));
+                } else {
+                    break;
+                }
+            }
+        }
+        grants.forEach(Runnable::run);
+    }
+
+    /**
+     * Remove a waiter from the queue.
+     * @return false if the waiter was already granted a connection or slot
+     */
+    private synchronized boolean cancel(CompletableFuture<ViHttpConnection> waiter) {
+        if (!this.waiters.remove(waiter)) return false;
+        this.totalTimeouts++;
+        return true;
+    }
+
+    private ViHttpConnection await(CompletableFuture<ViHttpConnection> future) throws IOException {
+        try {
+            return future.join();
+        } catch (RuntimeException e) {
+            throw new HttpException(e.getCause());
+        }
+    }
+
+    private long getAcquireTimeout(ViHttpRequest request) {
+        long timeout = request.getClient().getConnectionAcquireTimeout();
+        return request.getDeadline() > 0 ? Math.min(timeout, request.getDeadline()) : timeout;
+    }
+
+    private HttpException timeoutException() {
+        return new HttpException("Timed out waiting for a connection to " + this.route.getHost() + ":" + this.route.getPort() + ".");
+    }
+
+    private boolean reserve() {
+        if (this.connections.size() + this.connecting >= this.getMaxConnections()) return false;
+        this.connecting++;
+        return true;
+    }
+
+    /**
+     * Find a connection that can take another lease and lease it.
+     * Idle connections are preferred, most recently used first, then the least loaded shared connection.
+     * Multiplexed connections are shared before opening a new connection, as their exchanges don't queue.
+     */
+    private ViHttpConnection findAvailable() {
+        ViHttpConnection shared = null;
+        ViHttpConnection idle = null;
+        for (Iterator<ViHttpConnection> it = this.connections.iterator(); it.hasNext(); ) {
+            ViHttpConnection connection = it.next();
+            if (connection.isClosed()) {
+                it.remove();
+                continue;
+            }
+            if (connection.getLeases() == 0) {
+                if (idle == null || connection.getLastUsed() > idle.getLastUsed()) idle = connection;
+            } else if (connection.getLeases() < connection.getMaxLeases()) {
+                if (shared == null || connection.getLeases() < shared.getLeases()) shared = connection;
+            }
+        }
+
+        ViHttpConnection connection = idle;
+        if (connection == null && shared != null
+                && (shared.isMultiplexed() || this.connections.size() + this.connecting >= this.getMaxConnections())) {
+            connection = shared; // only queue behind another exchange when we aren't allowed to open a new connection
+        }
+        if (connection != null) this.lease(connection);
+        return connection;
+    }
+
+    private void lease(ViHttpConnection connection) {
+        connection.setLeases(connection.getLeases() + 1);
+        this.totalLeases++;
+    }
+
+    private int getMaxConnections() {
+        return this.manager.getClient().getMaxConnectionsPerRoute();
+    }
+}
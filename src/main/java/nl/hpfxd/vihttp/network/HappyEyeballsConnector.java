@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the first reachable address of a host, racing staggered attempts as in RFC 8305 (Happy Eyeballs).
+ *
+ * Addresses are tried in the resolver's order with the address families interleaved. A new attempt starts
+ * whenever the previous one failed or hasn't connected within the attempt delay, and the first socket to connect
+ * wins while the others are closed. A host with an unreachable address then costs a short delay instead of the
+ * operating system's connect timeout.
+ */
+class HappyEyeballsConnector {
+    private final List<InetAddress> addresses;
+    private final int port;
+    private final long timeout;
+    private final long attemptDelay;
+    private final SocketFactory socketFactory;
+    private final Executor executor;
+    private final BlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+    private final List<Attempt> attempts = new ArrayList<>();
+
+    /**
+     * @param addresses the addresses of the host, in order of preference
+     * @param port the port
+     * @param timeout the time to give up after in milliseconds, or 0 to wait for the operating system
+     * @param attemptDelay the time to wait for an attempt before starting the next in milliseconds
+     * @param socketFactory creates an unconnected socket for every attempt
+     * @param executor runs the attempts
+     */
+    HappyEyeballsConnector(List<InetAddress> addresses, int port, long timeout, long attemptDelay, SocketFactory socketFactory, Executor executor) {
+        this.addresses = interleave(addresses);
+        this.port = port;
+        this.timeout = timeout;
+        this.attemptDelay = attemptDelay;
+        this.socketFactory = socketFactory;
+        this.executor = executor;
+    }
+
+    /**
+     * Connect to the first address that accepts the connection.
+     * @return the connected socket
+     * @throws SocketTimeoutException if no address connected within the timeout
+     * @throws IOException the first failure if every address failed, with the others suppressed
+     */
+    Socket connect() throws IOException {
+        if (this.addresses.size() == 1) { // nothing to race
+            Socket socket = this.socketFactory.create();
+            try {
+                socket.connect(new InetSocketAddress(this.addresses.get(0), this.port), (int) Math.min(this.timeout, Integer.MAX_VALUE));
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        long nextAttempt = start;
+        int failed = 0;
+        Socket winner = null;
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (this.attempts.size() < this.addresses.size() && now >= nextAttempt) {
+                    this.start(this.addresses.get(this.attempts.size()), start);
+                    nextAttempt = now + this.attemptDelay;
+                }
+
+                long wait = this.attempts.size() < this.addresses.size() ? nextAttempt - now : Long.MAX_VALUE;
+                if (this.timeout > 0) {
+                    long remaining = start + this.timeout - now;
+                    if (remaining <= 0) throw new SocketTimeoutException("Connect timed out after " + this.timeout + "ms");
+                    wait = Math.min(wait, remaining);
+                }
+
+                Attempt attempt = this.finished.poll(wait, TimeUnit.MILLISECONDS);
+                if (attempt == null) continue;
+                if (attempt.failure == null) {
+                    winner = attempt.socket;
+                    return winner;
+                }
+                if (++failed == this.addresses.size()) {
+                    IOException failure = this.attempts.get(0).failure;
+                    for (int i = 1; i < this.attempts.size(); i++) failure.addSuppressed(this.attempts.get(i).failure);
+                    throw failure;
+                }
+                nextAttempt = System.currentTimeMillis(); // start the next attempt right away
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting.", e);
+        } finally {
+            for (Attempt attempt : this.attempts) {
+                if (attempt.socket != winner) attempt.close(); // the losers, whether they connected or not
+            }
+        }
+    }
+
+    private void start(InetAddress address, long start) throws IOException {
+        Attempt attempt = new Attempt(this.socketFactory.create());
+        this.attempts.add(attempt);
+        this.executor.execute(() -> {
+            try {
+                long timeout = this.timeout > 0 ? Math.max(1, start + this.timeout - System.currentTimeMillis()) : 0;
+                attempt.socket.connect(new InetSocketAddress(address, this.port), (int) Math.min(timeout, Integer.MAX_VALUE));
+            } catch (IOException e) {
+                attempt.failure = e;
+            }
+            this.finished.add(attempt);
+        });
+    }
+
+    /**
+     * Order addresses so the address families alternate, starting with the family of the first address.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = !addresses.isEmpty() && addresses.get(0) instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> interleaved = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) interleaved.add(first.get(i));
+            if (i < second.size()) interleaved.add(second.get(i));
+        }
+        return interleaved;
+    }
+
+    private static class Attempt {
+        private final Socket socket;
+        private volatile IOException failure = null;
+
+        private Attempt(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Close the socket, which also aborts a connect in progress.
+         */
+        private void close() {
+            try {
+                this.socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    interface SocketFactory {
+        Socket create() throws IOException;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.exception.UnprocessedRequestException;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.http.impl.Http1Impl;
+import nl.hpfxd.vihttp.http.impl.Http1InputBuffer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The requests written to a blocking connection that haven't been answered yet, in the order they were written.
+ *
+ * Responses arrive in the same order the requests were written, so whichever thread holds the read permit reads
+ * the next response and hands it to the exchange at the head of the queue, until its own exchange is answered.
+ * Without pipelining there is only ever one exchange in the queue.
+ *
+ * The body of a streaming response is still on the connection when its exchange completes, so the read permit
+ * is handed to the body and only released once the body ended.
+ */
+@RequiredArgsConstructor
+public class Pipeline {
+    private static final Http1Impl HTTP_1 = new Http1Impl();
+
+    private final ViHttpConnection connection;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Semaphore readPermit = new Semaphore(1);
+    private final Deque<Exchange> inFlight = new ArrayDeque<>(); // guarded by itself
+    private IOException failure = null; // guarded by inFlight
+    private Http1InputBuffer input = null; // guarded by the read permit
+
+    /**
+     * Write a request and queue it for its response.
+     * @param request the request
+     * @return the exchange to pass to {@link #read(Exchange)}
+     */
+    public Exchange write(ViHttpRequest request) throws IOException {
+        this.writeLock.lock();
+        try {
+            Exchange exchange = new Exchange(request);
+            synchronized (this.inFlight) {
+                if (this.failure != null) throw new UnprocessedRequestException("Connection failed before the request was sent.", this.failure);
+                this.inFlight.add(exchange);
+            }
+            try {
+                HTTP_1.sendRequest(request, this.connection.getSocket().getOutputStream());
+            } catch (IOException | RuntimeException e) {
+                this.fail(e, true);
+            }
+            return exchange;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the response to an exchange, reading responses for the exchanges ahead of it when needed.
+     * @param exchange the exchange
+     * @return the response
+     */
+    public ViHttpResponse read(Exchange exchange) throws IOException {
+        while (!exchange.getFuture().isDone()) {
+            this.readPermit.acquireUninterruptibly();
+            boolean permitHandedOff = false;
+            try {
+                if (exchange.getFuture().isDone()) break;
+                Exchange head;
+                synchronized (this.inFlight) {
+                    head = this.inFlight.peek();
+                }
+                ViHttpResponse response;
+                try {
+                    if (this.input == null) this.input = new Http1InputBuffer(this.connection.getSocket().getInputStream());
+                    response = HTTP_1.getResponse(this.input, head.getRequest().getRequestMethod(), head.getRequest().isStreaming());
+                } catch (IOException | RuntimeException e) {
+                    this.fail(e, true);
+                    break;
+                }
+
+                synchronized (this.inFlight) {
+                    this.inFlight.poll();
+                }
+                boolean close = "close".equalsIgnoreCase(response.getHeader("Connection"));
+                if (response.isStreaming()) {
+                    permitHandedOff = true;
+                    response.getRawBodyStream().onEnd(complete -> {
+                        if (!complete) {
+                            this.fail(new HttpException("Response body was not read to its end."), false);
+                        } else if (close) {
+                            this.fail(new HttpException("Server closed the connection."), false);
+                        }
+                        this.readPermit.release();
+                    });
+                }
+                head.getFuture().complete(response);
+                if (close && !response.isStreaming()) {
+                    this.fail(new HttpException("Server closed the connection."), false);
+                }
+            } finally {
+                if (!permitHandedOff) this.readPermit.release();
+            }
+        }
+
+        try {
+            return exchange.getFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new HttpException(e.getCause());
+        }
+    }
+
+    /**
+     * Fail all queued exchanges and close the connection.
+     * Only the exchange at the head of the queue may have been processed by the server,
+     * the others fail with an {@link UnprocessedRequestException} so they can be retried.
+     */
+    private void fail(Throwable cause, boolean headProcessed) {
+        List<Exchange> failed;
+        synchronized (this.inFlight) {
+            this.failure = cause instanceof IOException ? (IOException) cause : new HttpException(cause);
+            failed = new ArrayList<>(this.inFlight);
+            this.inFlight.clear();
+        }
+        this.connection.close();
+        for (int i = 0; i < failed.size(); i++) {
+            if (i == 0 && headProcessed) {
+                failed.get(i).getFuture().completeExceptionally(this.failure);
+            } else {
+                failed.get(i).getFuture().completeExceptionally(new UnprocessedRequestException("Connection failed before the request was answered.", this.failure));
+            }
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Exchange {
+        private final ViHttpRequest request;
+        private final CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Data;
+
+/**
+ * A snapshot of the state of a {@link ConnectionPool}.
+ */
+@Data
+public class PoolStats {
+    private final Route route;
+    /**
+     * The maximum amount of connections the pool may open.
+     */
+    private final int max;
+    /**
+     * The amount of open connections.
+     */
+    private final int open;
+    /**
+     * The amount of open connections that are not leased.
+     */
+    private final int idle;
+    /**
+     * The amount of connections currently being opened.
+     */
+    private final int connecting;
+    /**
+     * The amount of requests waiting for a connection.
+     */
+    private final int waiting;
+    /**
+     * The amount of active leases. This can be higher than {@link #open} when pipelining.
+     */
+    private final int leased;
+    private final long totalLeases;
+    private final long totalConnections;
+    private final long totalTimeouts;
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Getter;
+
+/**
+ * Configures the limits a client applies to every route, see {@link RouteLimiter}.
+ */
+@Getter
+public class RateLimitPolicy {
+    private double rate = 0;
+    private int burst = 1;
+    private int maxConcurrency = 0;
+    private int maxQueueSize = 1024;
+    private QueueFullBehavior queueFullBehavior = QueueFullBehavior.BLOCK;
+    private boolean adaptive = false;
+    private int minConcurrency = 1;
+    private int maxAdaptiveConcurrency = 0;
+    private double backoffRatio = 0.9;
+    private double latencyTolerance = 2;
+
+    /**
+     * Limit how many requests are sent to a route per second, with a token bucket.
+     * @param rate the requests per second, or 0 for no limit, which is the default
+     * @param burst the requests that may be sent at once after the route was quiet, 1 by default
+     * @return this
+     */
+    public RateLimitPolicy setRate(double rate, int burst) {
+        if (rate < 0) throw new IllegalArgumentException("rate can't be negative");
+        if (burst < 1) throw new IllegalArgumentException("burst must be at least 1");
+        this.rate = rate;
+        this.burst = burst;
+        return this;
+    }
+
+    /**
+     * Limit how many requests to a route may be in flight at once.
+     * @param maxConcurrency the maximum amount of requests, or 0 for no limit, which is the default
+     * @return this
+     */
+    public RateLimitPolicy setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 0) throw new IllegalArgumentException("maxConcurrency can't be negative");
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Adjust the concurrency limit of every route to what it handles, increasing it by one for every limit's worth
+     * of requests that succeed while the limit is used, and multiplying it by the backoff ratio for every request
+     * that fails, is answered with a 429 or 503 status, or takes longer than the latency tolerance allows.
+     * Routes start at the maximum concurrency if one was set, otherwise at the minimum.
+     * @param minConcurrency the lowest the limit goes, at least 1
+     * @param maxConcurrency the highest the limit goes
+     * @return this
+     */
+    public RateLimitPolicy setAdaptiveConcurrency(int minConcurrency, int maxConcurrency) {
+        if (minConcurrency < 1) throw new IllegalArgumentException("minConcurrency must be at least 1");
+        if (maxConcurrency < minConcurrency) throw new IllegalArgumentException("maxConcurrency can't be lower than minConcurrency");
+        this.adaptive = true;
+        this.minConcurrency = minConcurrency;
+        this.maxAdaptiveConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Set how quickly an adaptive concurrency limit backs off.
+     * @param backoffRatio what the limit is multiplied by when a route is overloaded, 0.9 by default
+     * @param latencyTolerance how many times the lowest round trip time of a route a request may take before
+     *                         the route is considered overloaded, 2 by default
+     * @return this
+     */
+    public RateLimitPolicy setBackoff(double backoffRatio, double latencyTolerance) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        if (latencyTolerance < 1) throw new IllegalArgumentException("latencyTolerance must be at least 1");
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * Set how many requests may wait for a route's limits, and what happens to requests once that many are waiting.
+     * @param maxQueueSize the maximum amount of waiting requests, 1024 by default
+     * @param queueFullBehavior the behavior once the queue is full, {@link QueueFullBehavior#BLOCK} by default
+     * @return this
+     */
+    public RateLimitPolicy setQueue(int maxQueueSize, QueueFullBehavior queueFullBehavior) {
+        if (maxQueueSize < 0) throw new IllegalArgumentException("maxQueueSize can't be negative");
+        this.maxQueueSize = maxQueueSize;
+        this.queueFullBehavior = queueFullBehavior;
+        return this;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Data;
+
+/**
+ * A snapshot of the state of a {@link RouteLimiter}.
+ */
+@Data
+public class RateLimitStats {
+    private final Route route;
+    /**
+     * The amount of requests that may be in flight at once, which changes with an adaptive limit, or 0 for no limit.
+     */
+    private final int limit;
+    /**
+     * The amount of requests holding a permit.
+     */
+    private final int inFlight;
+    /**
+     * The amount of requests waiting for a permit.
+     */
+    private final int queued;
+    /**
+     * The amount of requests that got a permit.
+     */
+    private final long totalAcquired;
+    /**
+     * The amount of requests that had to wait for their permit.
+     */
+    private final long totalQueued;
+    /**
+     * The amount of requests that failed because the queue was full.
+     */
+    private final long totalRejected;
+    /**
+     * The amount of waiting requests that were failed to make room for newer ones.
+     */
+    private final long totalShed;
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network;
+
+import lombok.Getter;
+import nl.hpfxd.vihttp.exception.CircuitOpenException;
+import nl.hpfxd.vihttp.exception.RateLimitException;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate and concurrency of the requests to a route.
+ *
+ * The rate is limited with a token bucket kept as a single timestamp, the time the bucket will be full again,
+ * which requests take tokens from with a compare-and-set. When a request can't get a permit right away it joins
+ * a FIFO queue, which is drained in order as tokens come in and requests finish, so waiting requests can't be
+ * overtaken by new ones. Nothing here takes a lock, as it sits in front of every request.
+ *
+ * Requests waiting for a permit don't hold a connection.
+ *
+ * With an adaptive concurrency limit, the limit grows while requests succeed and shrinks when the route shows
+ * it's overloaded by failing, rejecting or slowing down requests, compared to the lowest round trip time seen
+ * recently. Overloaded hosts then see fewer requests instead of a growing pile of queued connections.
+ */
+public class RouteLimiter {
+    private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+    private static final int MIN_RTT_SAMPLES = 250; // the lowest round trip time is forgotten after this many requests
+
+    @Getter private final Route route;
+    @Getter private final RateLimitPolicy policy;
+    private final ConnectionManager manager;
+    private final long interval; // nanoseconds per token, 0 without a rate limit
+    private final long burstTime;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong limit; // the bits of a double, so it can grow by fractions
+    private final AtomicLong minRtt = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicInteger rttSamples = new AtomicInteger();
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger draining = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private volatile long lastUsedAt = System.currentTimeMillis();
+    private final LongAdder totalAcquired = new LongAdder();
+    private final LongAdder totalQueued = new LongAdder();
+    private final LongAdder totalRejected = new LongAdder();
+    private final LongAdder totalShed = new LongAdder();
+
+    public RouteLimiter(ConnectionManager manager, Route route, RateLimitPolicy policy) {
+        this.manager = manager;
+        this.route = route;
+        this.policy = policy;
+        this.interval = policy.getRate() > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / policy.getRate()) : 0;
+        this.burstTime = this.interval * policy.getBurst();
+        this.fullAt.set(System.nanoTime() - this.burstTime);
+        double limit = policy.getMaxConcurrency();
+        if (policy.isAdaptive()) limit = policy.getMaxConcurrency() > 0
+                ? Math.min(Math.max(limit, policy.getMinConcurrency()), policy.getMaxAdaptiveConcurrency())
+                : policy.getMinConcurrency();
+        this.limit = new AtomicLong(Double.doubleToLongBits(limit));
+    }
+
+    /**
+     * Get a permit to send a request. It must be given back with {@link #release()} once the request is done.
+     * Cancel the returned future to stop waiting.
+     * @return a future completed once the request may be sent, or failed with a {@link RateLimitException}
+     */
+    public CompletableFuture<Void> acquire() {
+        this.lastUsedAt = System.currentTimeMillis();
+        if (this.waiters.isEmpty() && this.tryAcquire() == 0) {
+            this.totalAcquired.increment();
+            return GRANTED;
+        }
+
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        if (!this.reserveQueueSlot()) {
+            this.totalRejected.increment();
+            waiter.completeExceptionally(new RateLimitException("Queue of requests waiting for " + this.route.getHost() + ":" + this.route.getPort() + " is full."));
+            return waiter;
+        }
+        this.totalQueued.increment();
+        this.waiters.add(waiter);
+        waiter.whenComplete((granted, error) -> {
+            if (waiter.isCancelled() && this.waiters.remove(waiter)) this.queued.decrementAndGet(); // gave up waiting
+        });
+        this.drain();
+        return waiter;
+    }
+
+    /**
+     * Give back the permit of a request that is done.
+     */
+    public void release() {
+        if (this.getLimit() > 0) this.inFlight.decrementAndGet();
+        if (!this.waiters.isEmpty()) this.drain();
+    }
+
+    /**
+     * Give back the permit of a request that is done, adjusting an adaptive concurrency limit to its outcome.
+     * @param duration how long the request took in milliseconds, from getting the permit
+     * @param response the response, or null if the request failed
+     * @param error why the request failed, or null
+     */
+    public void release(long duration, ViHttpResponse response, Throwable error) {
+        if (this.policy.isAdaptive()) this.adapt(duration, response, error);
+        this.release();
+    }
+
+    /**
+     * Get the current concurrency limit.
+     * @return the amount of requests that may be in flight at once, or 0 for no limit
+     */
+    public int getLimit() {
+        return (int) Double.longBitsToDouble(this.limit.get());
+    }
+
+    /**
+     * Get the statistics of the limiter.
+     * @return a snapshot of the limiter
+     */
+    public RateLimitStats getStats() {
+        return new RateLimitStats(this.route, this.getLimit(), this.inFlight.get(), this.queued.get(), this.totalAcquired.sum(),
+                this.totalQueued.sum(), this.totalRejected.sum(), this.totalShed.sum());
+    }
+
+    /**
+     * Check whether the limiter has nothing in flight or queued, a full bucket and wasn't used for a while,
+     * so a new limiter for the route would start out the same, apart from what an adaptive limit learned.
+     * @param idleTimeout how long the limiter must not have been used, in milliseconds
+     * @return whether the limiter is idle
+     */
+    boolean isIdle(long idleTimeout) {
+        return this.inFlight.get() == 0 && this.queued.get() == 0 && this.waiters.isEmpty()
+                && System.nanoTime() - this.fullAt.get() >= this.burstTime
+                && System.currentTimeMillis() - this.lastUsedAt >= idleTimeout;
+    }
+
+    /**
+     * Reserve a place in the queue, so it can't grow past its maximum size when requests arrive at once.
+     * When the queue is full, a request that sheds the oldest waiter takes over its place.
+     * @return false if the queue is full and requests fail then
+     */
+    private boolean reserveQueueSlot() {
+        QueueFullBehavior behavior = this.policy.getQueueFullBehavior();
+        while (true) {
+            int queued = this.queued.get();
+            if (queued < this.policy.getMaxQueueSize() || behavior == QueueFullBehavior.BLOCK) {
+                if (this.queued.compareAndSet(queued, queued + 1)) return true;
+            } else if (behavior == QueueFullBehavior.FAIL) {
+                return false;
+            } else {
+                CompletableFuture<Void> oldest = this.waiters.poll();
+                if (oldest == null) {
+                    if (this.policy.getMaxQueueSize() == 0) return false; // there's nobody to shed
+                    continue; // its place is reserved, but it isn't in the queue yet
+                }
+                if (oldest.completeExceptionally(new RateLimitException("Request was shed from the queue of requests waiting for "
+                        + this.route.getHost() + ":" + this.route.getPort() + "."))) {
+                    this.totalShed.increment();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Hand out permits to waiters in order, until one has to wait. Only one thread drains at a time,
+     * others that call this while it runs make it go around again.
+     */
+    private void drain() {
+        if (this.draining.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            CompletableFuture<Void> waiter;
+            while ((waiter = this.waiters.peek()) != null) {
+                if (waiter.isDone()) { // cancelled
+                    if (this.waiters.remove(waiter)) this.queued.decrementAndGet();
+                    continue;
+                }
+                long wait = this.tryAcquire();
+                if (wait > 0) {
+                    if (wait != Long.MAX_VALUE) this.scheduleDrain(wait);
+                    break; // retried when a token comes in or a request is released
+                }
+                if (this.waiters.remove(waiter)) this.queued.decrementAndGet();
+                if (waiter.complete(null)) {
+                    this.totalAcquired.increment();
+                } else {
+                    this.release(); // cancelled in the meantime
+                }
+            }
+            missed = this.draining.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Take a concurrency slot and a token if both are available.
+     * @return 0 if they were taken, Long.MAX_VALUE if no slot is free,
+     * otherwise the nanoseconds until the next token
+     */
+    private long tryAcquire() {
+        int maxConcurrency = this.getLimit();
+        if (maxConcurrency > 0) {
+            int current;
+            do {
+                current = this.inFlight.get();
+                if (current >= maxConcurrency) return Long.MAX_VALUE;
+            } while (!this.inFlight.compareAndSet(current, current + 1));
+        }
+        if (this.interval == 0) return 0;
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = this.fullAt.get();
+            long next = Math.max(fullAt, now - this.burstTime) + this.interval;
+            if (next > now) {
+                if (maxConcurrency > 0) this.inFlight.decrementAndGet();
+                return next - now;
+            }
+            if (this.fullAt.compareAndSet(fullAt, next)) return 0;
+        }
+    }
+
+    private void adapt(long duration, ViHttpResponse response, Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof CancellationException || error instanceof CircuitOpenException) return; // says nothing about the route
+
+        long minRtt = this.minRtt.get();
+        boolean rejected = error != null || response.getStatusCode() == 429 || response.getStatusCode() == 503;
+        boolean overloaded = rejected
+                || minRtt != Long.MAX_VALUE && duration > Math.max(1, minRtt) * this.policy.getLatencyTolerance();
+        if (!rejected) { // failures and rejections come back fast, which says nothing about the round trip time
+            if (this.rttSamples.incrementAndGet() % MIN_RTT_SAMPLES == 0) {
+                this.minRtt.set(duration); // follow the route when it gets slower for good
+            } else if (duration < minRtt) {
+                this.minRtt.compareAndSet(minRtt, duration);
+            }
+        }
+        while (true) {
+            long bits = this.limit.get();
+            double limit = Double.longBitsToDouble(bits);
+            double next;
+            if (overloaded) {
+                next = Math.max(this.policy.getMinConcurrency(), limit * this.policy.getBackoffRatio());
+            } else if (this.inFlight.get() * 2 >= (int) limit) { // don't grow a limit that isn't used
+                next = Math.min(this.policy.getMaxAdaptiveConcurrency(), limit + 1 / limit);
+            } else {
+                return;
+            }
+            if (next == limit || this.limit.compareAndSet(bits, Double.doubleToLongBits(next))) return;
+        }
+    }
+
+    private void scheduleDrain(long nanos) {
+        if (!this.drainScheduled.compareAndSet(false, true)) return;
+        this.manager.schedule(() -> {
+            this.drainScheduled.set(false);
+            this.drain();
+        }, Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)));
+    }
+}
@@ -18,28 +18,93 @@
 
 package nl.hpfxd.vihttp.network;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
-import nl.hpfxd.vihttp.ViHttpClient;
+import lombok.Setter;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.impl.http2.Http2Connection;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RequiredArgsConstructor
 public class ViHttpConnection {
-    @Getter private final ViHttpClient client;
-    @Getter private final InetSocketAddress address;
+    @Getter private final ConnectionPool pool;
     @Getter private final Socket socket;
-    @Getter private final ReentrantLock lock = new ReentrantLock();
-    @Getter private final ReentrantLock readLock = new ReentrantLock();
+    private final int maxLeases;
+    @Getter private final Pipeline pipeline = new Pipeline(this);
+    /**
+     * The HTTP/2 connection running on the socket, or {@code null} if the connection speaks HTTP/1.1.
+     */
+    @Getter @Setter(AccessLevel.PACKAGE) private Http2Connection http2 = null;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
+    // guarded by the pool
+    @Getter @Setter(AccessLevel.PACKAGE) private volatile int leases = 0;
+    @Getter @Setter(AccessLevel.PACKAGE) private volatile long lastUsed = System.currentTimeMillis();
+    /**
+     * Whether the connection sat idle in the pool before, so the server may have closed it in the meantime.
+     */
+    @Getter @Setter(AccessLevel.PACKAGE) private volatile boolean pooled = false;
+
+    public Route getRoute() {
+        return this.pool.getRoute();
+    }
+
+    /**
+     * Get the maximum amount of exchanges this connection may be leased for at once.
+     * This is the pipeline depth when pipelining, or the concurrent stream limit for HTTP/2.
+     * @return the maximum amount of leases
+     */
+    public int getMaxLeases() {
+        return this.http2 != null ? this.http2.getMaxStreams() : this.maxLeases;
+    }
+
+    /**
+     * Whether exchanges on this connection run concurrently instead of queueing behind each other.
+     * @return if the connection is multiplexed
+     */
+    public boolean isMultiplexed() {
+        return this.http2 != null;
+    }
+
+    /**
+     * Release this connection back to its pool so it can be reused.
+     */
+    public void release() {
+        this.pool.release(this);
+    }
+
+    /**
+     * Close this connection and remove it from its pool.
+     */
     public void close() {
+        if (!this.closed.compareAndSet(false, true)) return;
+        this.pool.remove(this);
+        if (this.http2 != null) this.http2.close();
         try {
-            this.client.getConnectionManager().getConnections().remove(this.address.toString());
             this.socket.close();
         } catch (IOException ignored) {
         }
     }
+
+    /**
+     * Abandon the exchange of a request on this connection, releasing the lease it holds.
+     * Connections that can't abandon a single exchange are closed.
+     * @param request the request
+     */
+    public void abort(ViHttpRequest request) {
+        if (this.http2 != null && !this.closed.get()) {
+            this.http2.cancel(request);
+            this.release();
+        } else {
+            this.close();
+        }
+    }
+
+    public boolean isClosed() {
+        return this.closed.get() || this.socket.isClosed() || (this.http2 != null && this.http2.isShutdown());
+    }
 }
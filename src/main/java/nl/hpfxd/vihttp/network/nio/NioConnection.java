@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network.nio;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.http.impl.Http1Impl;
+import nl.hpfxd.vihttp.http.impl.Http1ResponseDecoder;
+import nl.hpfxd.vihttp.network.ConnectionPool;
+import nl.hpfxd.vihttp.network.ViHttpConnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A connection driven by a {@link NioEventLoop}.
+ * Exchanges complete a future on the loop's thread instead of blocking a thread for the round trip.
+ */
+public class NioConnection extends ViHttpConnection {
+    private static final int BUFFER_SIZE = 16384;
+    private static final Http1Impl HTTP_1 = new Http1Impl();
+
+    @Getter private final SocketChannel channel;
+    @Getter private final NioEventLoop eventLoop;
+    private final SslEngineWrapper ssl;
+    @Setter(AccessLevel.PACKAGE) private SelectionKey key;
+
+    // only touched on the event loop
+    private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final ByteBuffer readBuffer;
+    private ByteBuffer appIn = ByteBuffer.allocate(BUFFER_SIZE); // write mode
+    private Http1ResponseDecoder decoder = null;
+    private CompletableFuture<ViHttpResponse> pending = null;
+    private ScheduledTask timeoutTask = null;
+    private long lastRead;
+
+    /**
+     * @param pool the pool the connection belongs to
+     * @param channel the connected channel, in non-blocking mode
+     * @param eventLoop the loop to drive the connection
+     * @param ssl the TLS engine after its handshake completed, or {@code null}
+     */
+    public NioConnection(ConnectionPool pool, SocketChannel channel, NioEventLoop eventLoop, SslEngineWrapper ssl) {
+        super(pool, channel.socket(), 1);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.ssl = ssl;
+        this.readBuffer = ssl != null ? ByteBuffer.allocate(BUFFER_SIZE) : null;
+        eventLoop.register(this);
+    }
+
+    /**
+     * Send a request and read its response without blocking.
+     * The returned future is completed on the event loop's thread.
+     * @param request the request
+     * @return a future completed with the response
+     */
+    public CompletableFuture<ViHttpResponse> exchange(ViHttpRequest request) {
+        CompletableFuture<ViHttpResponse> future = new CompletableFuture<>();
+        ByteBuffer[] buffers;
+        try {
+            buffers = HTTP_1.encodeRequest(request);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        this.eventLoop.execute(() -> {
+            if (this.isClosed()) {
+                future.completeExceptionally(new HttpException("Connection is closed."));
+                return;
+            }
+            if (this.pending != null) {
+                future.completeExceptionally(new IllegalStateException("An exchange is already in progress on this connection."));
+                return;
+            }
+            this.pending = future;
+            this.decoder = new Http1ResponseDecoder(request.getRequestMethod());
+            this.lastRead = System.currentTimeMillis();
+            if (request.getTimeout() > 0) this.scheduleTimeout(request.getTimeout(), request.getTimeout()); // 0 waits forever, like a socket
+            try {
+                this.write(buffers);
+            } catch (Throwable e) {
+                this.fail(e);
+            }
+        });
+        return future;
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isWritable()) this.flush();
+            if (key.isValid() && key.isReadable()) this.read();
+        } catch (CancelledKeyException e) {
+            throw e;
+        } catch (Throwable e) { // a bad response only fails this connection, never the loop
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Fail the exchange in progress and close the connection.
+     */
+    void fail(Throwable cause) {
+        CompletableFuture<ViHttpResponse> future = this.pending;
+        this.reset();
+        this.close();
+        if (future != null) future.completeExceptionally(cause instanceof IOException ? cause : new HttpException(cause));
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (!this.eventLoop.inEventLoop()) {
+            this.eventLoop.execute(() -> this.fail(new HttpException("Connection was closed.")));
+        } else if (this.key != null) {
+            this.key.cancel();
+        }
+    }
+
+    private void read() throws IOException {
+        int n;
+        if (this.ssl != null) {
+            this.readBuffer.clear();
+            n = this.channel.read(this.readBuffer);
+            if (n > 0) {
+                this.readBuffer.flip();
+                this.appIn = this.ssl.unwrap(this.readBuffer, this.appIn);
+                ByteBuffer handshakeData = this.ssl.pollHandshakeData();
+                if (handshakeData != null) this.write(handshakeData);
+            }
+        } else {
+            if (!this.appIn.hasRemaining()) this.appIn = SslEngineWrapper.ensureRemaining(this.appIn, BUFFER_SIZE);
+            n = this.channel.read(this.appIn);
+        }
+
+        if (n == -1) {
+            if (this.decoder == null) { // closed while idle
+                this.close();
+                return;
+            }
+            ViHttpResponse response = this.decoder.decodeEof();
+            this.complete(response);
+            this.close();
+            return;
+        }
+
+        this.lastRead = System.currentTimeMillis();
+        if (this.decoder == null) return; // keep the bytes until an exchange starts
+        this.appIn.flip();
+        try {
+            ViHttpResponse response = this.decoder.decode(this.appIn);
+            if (response != null) this.complete(response);
+        } finally {
+            this.appIn.compact();
+        }
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        if (this.ssl != null) {
+            this.writeQueue.add(this.ssl.wrap(buffers));
+        } else {
+            Collections.addAll(this.writeQueue, buffers);
+        }
+        this.flush();
+    }
+
+    private void flush() throws IOException {
+        while (!this.writeQueue.isEmpty()) {
+            this.channel.write(this.writeQueue.toArray(new ByteBuffer[0])); // gathering write
+            while (!this.writeQueue.isEmpty() && !this.writeQueue.peek().hasRemaining()) this.writeQueue.poll();
+            if (!this.writeQueue.isEmpty()) break; // the socket's send buffer is full
+        }
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(this.writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Fail the exchange once no data has been read for the timeout, like a socket read timeout.
+     */
+    private void scheduleTimeout(long timeout, long delay) {
+        this.timeoutTask = this.eventLoop.schedule(() -> {
+            if (this.pending == null) return;
+            long idle = System.currentTimeMillis() - this.lastRead;
+            if (idle >= timeout) {
+                this.fail(new SocketTimeoutException("Read timed out"));
+            } else {
+                this.scheduleTimeout(timeout, timeout - idle);
+            }
+        }, delay);
+    }
+
+    private void complete(ViHttpResponse response) {
+        CompletableFuture<ViHttpResponse> future = this.pending;
+        this.reset();
+        if (future != null) future.complete(response);
+    }
+
+    private void reset() {
+        this.pending = null;
+        this.decoder = null;
+        if (this.timeoutTask != null) this.timeoutTask.cancel();
+        this.timeoutTask = null;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single I/O thread multiplexing many non-blocking connections with a {@link Selector}.
+ * All state of the connections registered to a loop is only touched from the loop's thread.
+ */
+public class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>();
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Run a task on this loop's thread.
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        if (!this.inEventLoop()) this.selector.wakeup();
+    }
+
+    /**
+     * Run a task on this loop's thread after a delay.
+     * @param task the task
+     * @param delay the delay in milliseconds
+     * @return a handle that can be used to cancel the task
+     */
+    public ScheduledTask schedule(Runnable task, long delay) {
+        ScheduledTask scheduledTask = new ScheduledTask(task, System.currentTimeMillis() + delay);
+        this.execute(() -> this.scheduled.add(scheduledTask));
+        return scheduledTask;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    void register(NioConnection connection) {
+        this.execute(() -> {
+            try {
+                connection.setKey(connection.getChannel().register(this.selector, SelectionKey.OP_READ, connection));
+            } catch (Throwable e) {
+                connection.fail(e);
+            }
+        });
+    }
+
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                long timeout = 0;
+                ScheduledTask next = this.scheduled.peek();
+                if (next != null) timeout = Math.max(1, next.getDeadline() - System.currentTimeMillis());
+                if (this.tasks.isEmpty()) this.selector.select(timeout);
+                else this.selector.selectNow();
+            } catch (IOException e) {
+                this.failAll(e); // the selector can't tell which connections are ready, so none of them can be served
+                continue;
+            }
+
+            for (Iterator<SelectionKey> it = this.selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    connection.handle(key);
+                } catch (CancelledKeyException e) {
+                    connection.close();
+                } catch (Throwable e) {
+                    connection.fail(e);
+                }
+            }
+
+            for (Runnable task = this.tasks.poll(); task != null; task = this.tasks.poll()) {
+                this.runSafely(task);
+            }
+
+            long now = System.currentTimeMillis();
+            while (!this.scheduled.isEmpty() && this.scheduled.peek().getDeadline() <= now) {
+                ScheduledTask task = this.scheduled.poll();
+                if (!task.isCancelled()) this.runSafely(task.getTask());
+            }
+        }
+
+        for (SelectionKey key : this.selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        try {
+            this.selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Run a task, keeping the loop alive if it throws. Tasks of connections fail their connection themselves,
+     * anything else that escapes has no caller to go to, so it goes to the thread's uncaught exception handler.
+     */
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            Thread.UncaughtExceptionHandler handler = this.thread.getUncaughtExceptionHandler();
+            if (handler != null) handler.uncaughtException(this.thread, e);
+        }
+    }
+
+    private void failAll(IOException e) {
+        for (SelectionKey key : this.selector.keys()) {
+            try {
+                ((NioConnection) key.attachment()).fail(e);
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+}
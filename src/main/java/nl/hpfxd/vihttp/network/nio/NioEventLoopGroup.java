@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network.nio;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link NioEventLoop}s that connections are spread across.
+ */
+public class NioEventLoopGroup {
+    private final NioEventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public NioEventLoopGroup(int threads) {
+        this.loops = new NioEventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                this.loops[i] = new NioEventLoop("ViHttp I/O Thread #" + i);
+            }
+        } catch (IOException e) {
+            this.shutdown();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get the next event loop, round-robin.
+     * @return the event loop
+     */
+    public NioEventLoop next() {
+        return this.loops[Math.floorMod(this.next.getAndIncrement(), this.loops.length)];
+    }
+
+    public void shutdown() {
+        for (NioEventLoop loop : this.loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+}
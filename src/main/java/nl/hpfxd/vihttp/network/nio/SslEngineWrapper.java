@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.network.nio;
+
+import lombok.Getter;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts and decrypts the traffic of a non-blocking connection with an {@link SSLEngine}.
+ */
+public class SslEngineWrapper {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Getter private final SSLEngine engine;
+    private ByteBuffer netIn; // write mode, holds partial records between reads
+    private ByteBuffer handshakeOut = null;
+
+    public SslEngineWrapper(SSLEngine engine) {
+        this.engine = engine;
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    }
+
+    /**
+     * Perform the handshake while the channel is still in blocking mode.
+     * The streams of the channel's socket are used so that the socket timeout applies.
+     * @param in the input stream of the socket
+     * @param out the output stream of the socket
+     */
+    public void handshake(InputStream in, OutputStream out) throws IOException {
+        this.engine.beginHandshake();
+        ByteBuffer app = ByteBuffer.allocate(this.engine.getSession().getApplicationBufferSize());
+        SSLEngineResult.HandshakeStatus status = this.engine.getHandshakeStatus();
+
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP: {
+                    ByteBuffer net = this.wrap(EMPTY);
+                    out.write(net.array(), net.arrayOffset() + net.position(), net.remaining());
+                    out.flush();
+                    break;
+                }
+                case NEED_UNWRAP: {
+                    this.netIn.flip();
+                    SSLEngineResult result = this.engine.unwrap(this.netIn, app);
+                    this.netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        this.netIn = ensureRemaining(this.netIn, this.engine.getSession().getPacketBufferSize());
+                        int n = in.read(this.netIn.array(), this.netIn.arrayOffset() + this.netIn.position(), this.netIn.remaining());
+                        if (n == -1) throw new EOFException("Connection closed during TLS handshake.");
+                        this.netIn.position(this.netIn.position() + n);
+                    } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        app = ensureRemaining(app, this.engine.getSession().getApplicationBufferSize());
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS engine closed during handshake.");
+                    }
+                    break;
+                }
+                case NEED_TASK:
+                    this.runTasks();
+                    break;
+            }
+            status = this.engine.getHandshakeStatus();
+        }
+    }
+
+    /**
+     * Encrypt application data.
+     * @param srcs the application data, encrypted in order
+     * @return a buffer in read mode holding the encrypted data
+     */
+    public ByteBuffer wrap(ByteBuffer... srcs) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(this.engine.getSession().getPacketBufferSize());
+        do {
+            SSLEngineResult result = this.engine.wrap(srcs, out);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                out = ensureRemaining(out, this.engine.getSession().getPacketBufferSize());
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS engine is closed.");
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) this.runTasks();
+        } while (hasRemaining(srcs)); // a record holds at most 16KB, and the last buffer may be empty
+        out.flip();
+        return out;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decrypt network data. Incomplete records are kept until more data arrives.
+     * @param net the network data, in read mode
+     * @param app the buffer to decrypt into, in write mode
+     * @return the application buffer, which is replaced by a larger one if it was too small
+     */
+    public ByteBuffer unwrap(ByteBuffer net, ByteBuffer app) throws IOException {
+        this.netIn = ensureRemaining(this.netIn, net.remaining());
+        this.netIn.put(net);
+        this.netIn.flip();
+        try {
+            while (this.netIn.hasRemaining()) {
+                SSLEngineResult result = this.engine.unwrap(this.netIn, app);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    app = ensureRemaining(app, this.engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException("TLS connection was closed by the server.");
+
+                // post-handshake messages, such as a TLS 1.3 key update
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) this.runTasks();
+                if (this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    ByteBuffer out = this.wrap(EMPTY);
+                    this.handshakeOut = this.handshakeOut == null ? out : concat(this.handshakeOut, out);
+                }
+            }
+        } finally {
+            this.netIn.compact();
+        }
+        return app;
+    }
+
+    /**
+     * Get data the engine produced while unwrapping that has to be sent to the server.
+     * @return the data in read mode, or {@code null}
+     */
+    public ByteBuffer pollHandshakeData() {
+        ByteBuffer out = this.handshakeOut;
+        this.handshakeOut = null;
+        return out;
+    }
+
+    private void runTasks() {
+        for (Runnable task = this.engine.getDelegatedTask(); task != null; task = this.engine.getDelegatedTask()) {
+            task.run();
+        }
+    }
+
+    static ByteBuffer ensureRemaining(ByteBuffer buffer, int remaining) {
+        if (buffer.remaining() >= remaining) return buffer;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + remaining));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static ByteBuffer concat(ByteBuffer a, ByteBuffer b) {
+        ByteBuffer out = ByteBuffer.allocate(a.remaining() + b.remaining());
+        out.put(a).put(b).flip();
+        return out;
+    }
+}
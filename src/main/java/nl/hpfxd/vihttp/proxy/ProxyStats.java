@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.proxy;
+
+import lombok.Data;
+
+/**
+ * A snapshot of the state of a proxy in a {@link ViProxyPool}.
+ */
+@Data
+public class ProxyStats {
+    private final ViProxy proxy;
+    /**
+     * The amount of requests currently sent through the proxy.
+     */
+    private final int inFlight;
+    /**
+     * The moving average of the time until a response was received in milliseconds, or -1 if none was measured yet.
+     */
+    private final double latency;
+    /**
+     * Whether the proxy is currently left out of the rotation.
+     */
+    private final boolean ejected;
+    private final long totalRequests;
+    private final long totalEjections;
+}
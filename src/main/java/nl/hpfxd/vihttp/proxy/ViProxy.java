@@ -18,10 +18,21 @@
 
 package nl.hpfxd.vihttp.proxy;
 
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.ToString;
 import nl.hpfxd.vihttp.ViAuthentication;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A proxy to send requests through.
+ * Proxies are equal when their type, address and credentials are, so equal proxies share pooled connections.
+ */
 @Getter
+@EqualsAndHashCode
+@ToString
 public class ViProxy {
     private final ViProxyType type;
     private final String host;
@@ -38,4 +49,14 @@ public class ViProxy {
     public ViProxy(ViProxyType type, String host, int port) {
         this(type, host, port, null);
     }
+
+    /**
+     * Get the value of the Proxy-Authorization header for the credentials of this proxy.
+     * @return the header value, or {@code null} if the proxy has no credentials
+     */
+    public String getProxyAuthorization() {
+        if (this.authentication == null) return null;
+        String credentials = this.authentication.getUsername() + ":" + this.authentication.getPassword();
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp.proxy;
+
+import lombok.Getter;
+import nl.hpfxd.vihttp.ViHttpClient;
+import nl.hpfxd.vihttp.exception.ProxyException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads requests over a set of proxies. It can be used wherever a {@link ViProxy} can,
+ * every request then picks a proxy when it's sent.
+ *
+ * A proxy that fails with a {@link ProxyException} is ejected: it isn't used for the ejection time,
+ * which doubles for every consecutive ejection. Health checks can also send a request through every proxy
+ * periodically, ejecting the ones that fail and bringing back the ones that recovered.
+ */
+public class ViProxyPool {
+    private static final double LATENCY_SMOOTHING = 0.3;
+    private static final int MAX_EJECTION_DOUBLINGS = 4;
+    private static final ScheduledExecutorService HEALTH_CHECK_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ViHttp Proxy Health Check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+    private final Map<ViProxy, Member> membersByProxy = new ConcurrentHashMap<>();
+    private final AtomicInteger cursor = new AtomicInteger();
+    @Getter private ViProxySelection selection = ViProxySelection.ROUND_ROBIN;
+    @Getter private long ejectionTime = 30000;
+    private volatile ViHttpClient healthCheckClient = null;
+    private boolean ownsHealthCheckClient = false;
+    @Getter private String healthCheckUrl = null;
+    private ScheduledFuture<?> healthCheckTask = null;
+
+    public ViProxyPool(Collection<ViProxy> proxies) {
+        proxies.forEach(this::add);
+    }
+
+    public ViProxyPool(ViProxy... proxies) {
+        this(Arrays.asList(proxies));
+    }
+
+    /**
+     * Add a proxy to the pool.
+     * @param proxy the proxy
+     */
+    public ViProxyPool add(ViProxy proxy) {
+        Member member = new Member(proxy);
+        if (this.membersByProxy.putIfAbsent(proxy, member) == null) this.members.add(member);
+        return this;
+    }
+
+    /**
+     * Remove a proxy from the pool. Requests already using it aren't affected.
+     * @param proxy the proxy
+     */
+    public ViProxyPool remove(ViProxy proxy) {
+        Member member = this.membersByProxy.remove(proxy);
+        if (member != null) this.members.remove(member);
+        return this;
+    }
+
+    /**
+     * Get the proxies in the pool, including ejected ones.
+     * @return an unmodifiable list of proxies
+     */
+    public List<ViProxy> getProxies() {
+        List<ViProxy> proxies = new ArrayList<>(this.members.size());
+        for (Member member : this.members) proxies.add(member.proxy);
+        return Collections.unmodifiableList(proxies);
+    }
+
+    /**
+     * Set how proxies are picked for requests.
+     * @param selection the selection strategy
+     */
+    public ViProxyPool setSelection(ViProxySelection selection) {
+        this.selection = selection;
+        return this;
+    }
+
+    /**
+     * Set how long a failing proxy is left out of the rotation.
+     * The time doubles for every consecutive ejection, up to 16 times this time.
+     * @param ejectionTime the time in milliseconds
+     */
+    public ViProxyPool setEjectionTime(long ejectionTime) {
+        if (ejectionTime < 0) throw new IllegalArgumentException("ejectionTime can't be negative");
+        this.ejectionTime = ejectionTime;
+        return this;
+    }
+
+    /**
+     * Pick a proxy, without counting a request as in flight on it.
+     * @return the proxy
+     * @throws ProxyException if the pool is empty or all proxies are ejected
+     */
+    public ViProxy select() throws ProxyException {
+        return this.selectMember().proxy;
+    }
+
+    /**
+     * Pick a proxy for a request. The request must be reported with {@link #release(ViProxy, long, Throwable)}
+     * once it's done.
+     * @return the proxy
+     * @throws ProxyException if the pool is empty or all proxies are ejected
+     */
+    public ViProxy acquire() throws ProxyException {
+        Member member = this.selectMember();
+        member.inFlight.incrementAndGet();
+        member.totalRequests.incrementAndGet();
+        return member.proxy;
+    }
+
+    /**
+     * Report the outcome of a request that used a proxy from {@link #acquire()}.
+     * @param proxy the proxy
+     * @param latency the time until the response was received in milliseconds, or -1 if it isn't known
+     * @param error the error the request failed with, or {@code null}
+     */
+    public void release(ViProxy proxy, long latency, Throwable error) {
+        Member member = this.membersByProxy.get(proxy);
+        if (member == null) return;
+        member.inFlight.decrementAndGet();
+        this.report(member, latency, error);
+    }
+
+    /**
+     * Send a request to the health check URL through every proxy now, without waiting for the next interval.
+     * @return a future completed once all proxies were checked
+     * @throws IllegalStateException if health checks aren't enabled
+     */
+    public synchronized CompletableFuture<Void> checkHealth() {
+        if (this.healthCheckUrl == null) throw new IllegalStateException("Health checks aren't enabled.");
+        ViHttpClient client = this.healthCheckClient;
+        String url = this.healthCheckUrl;
+        List<CompletableFuture<?>> checks = new ArrayList<>(this.members.size());
+        for (Member member : this.members) {
+            long start = System.currentTimeMillis();
+            checks.add(client.get(url).setProxy(member.proxy).sendAsync().handle((response, error) -> {
+                if (this.healthCheckClient != client) return null; // checks were disabled or replaced, so the client may be shut down
+                if (error == null && response.getStatusCode() >= 500) {
+                    error = new ProxyException("Health check returned status " + response.getStatusCode() + ".");
+                }
+                if (error == null) {
+                    member.recover();
+                } else if (!(unwrap(error) instanceof ProxyException)) {
+                    error = new ProxyException("Health check failed.", unwrap(error));
+                }
+                this.report(member, System.currentTimeMillis() - start, error);
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Check the health of the proxies periodically with a client that doesn't reuse connections.
+     * The client is shut down when the checks are disabled or replaced.
+     * @param url the URL to request through every proxy, a status below 500 means the proxy is healthy
+     * @param interval the time between checks in milliseconds
+     * @see #enableHealthChecks(ViHttpClient, String, long)
+     */
+    public synchronized ViProxyPool enableHealthChecks(String url, long interval) {
+        if (interval <= 0) throw new IllegalArgumentException("interval must be positive");
+        this.enableHealthChecks(new ViHttpClient()
+                .disableConnectionReuse()
+                .setTimeout(5000)
+                .setConnectTimeout(5000), url, interval);
+        this.ownsHealthCheckClient = true;
+        return this;
+    }
+
+    /**
+     * Check the health of the proxies periodically. Proxies that fail are ejected, proxies that recovered
+     * are brought back right away. The checks keep the pool reachable until they're disabled.
+     * @param client the client to send the checks with, which is left running when the checks are disabled
+     * @param url the URL to request through every proxy, a status below 500 means the proxy is healthy
+     * @param interval the time between checks in milliseconds
+     */
+    public synchronized ViProxyPool enableHealthChecks(ViHttpClient client, String url, long interval) {
+        if (interval <= 0) throw new IllegalArgumentException("interval must be positive");
+        this.disableHealthChecks();
+        this.healthCheckClient = client;
+        this.healthCheckUrl = url;
+        this.healthCheckTask = HEALTH_CHECK_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                this.checkHealth().get(interval, TimeUnit.MILLISECONDS);
+            } catch (Exception ignored) {
+                // checks that are still running report their results when they finish
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Stop checking the health of the proxies, shutting down the client if the pool created it.
+     */
+    public synchronized ViProxyPool disableHealthChecks() {
+        if (this.healthCheckTask != null) this.healthCheckTask.cancel(false);
+        if (this.ownsHealthCheckClient) this.healthCheckClient.shutdown();
+        this.healthCheckTask = null;
+        this.healthCheckClient = null;
+        this.ownsHealthCheckClient = false;
+        this.healthCheckUrl = null;
+        return this;
+    }
+
+    /**
+     * Get the statistics of the proxies in the pool.
+     * @return a snapshot of every proxy
+     */
+    public List<ProxyStats> getStats() {
+        long now = System.currentTimeMillis();
+        List<ProxyStats> stats = new ArrayList<>(this.members.size());
+        for (Member member : this.members) {
+            stats.add(new ProxyStats(member.proxy, member.inFlight.get(), Double.isNaN(member.latency) ? -1 : member.latency,
+                    !member.isAvailable(now), member.totalRequests.get(), member.totalEjections.get()));
+        }
+        return stats;
+    }
+
+    private Member selectMember() throws ProxyException {
+        long now = System.currentTimeMillis();
+        List<Member> available = new ArrayList<>(this.members.size());
+        for (Member member : this.members) {
+            if (member.isAvailable(now)) available.add(member);
+        }
+        if (available.isEmpty()) {
+            throw new ProxyException(this.members.isEmpty() ? "The proxy pool is empty." : "All " + this.members.size() + " proxies in the pool are ejected.");
+        }
+
+        int start = Math.floorMod(this.cursor.getAndIncrement(), available.size());
+        switch (this.selection) {
+            case LEAST_IN_FLIGHT: {
+                Member best = available.get(start);
+                for (int i = 1; i < available.size(); i++) {
+                    Member member = available.get((start + i) % available.size());
+                    if (member.inFlight.get() < best.inFlight.get()) best = member;
+                }
+                return best;
+            }
+            case LATENCY_WEIGHTED: {
+                double fastest = Double.NaN;
+                for (Member member : available) {
+                    if (!Double.isNaN(member.latency) && !(member.latency >= fastest)) fastest = member.latency;
+                }
+                if (Double.isNaN(fastest)) return available.get(start);
+
+                double[] weights = new double[available.size()];
+                double total = 0;
+                for (int i = 0; i < weights.length; i++) {
+                    double latency = available.get(i).latency;
+                    weights[i] = 1 / Math.max(1, Double.isNaN(latency) ? fastest : latency);
+                    total += weights[i];
+                }
+                double pick = ThreadLocalRandom.current().nextDouble(total);
+                for (int i = 0; i < weights.length; i++) {
+                    pick -= weights[i];
+                    if (pick < 0) return available.get(i);
+                }
+                return available.get(weights.length - 1);
+            }
+            default:
+                return available.get(start);
+        }
+    }
+
+    private void report(Member member, long latency, Throwable error) {
+        if (unwrap(error) instanceof ProxyException) {
+            member.eject(this.ejectionTime);
+        } else if (error == null && latency >= 0) {
+            member.recordLatency(latency);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static class Member {
+        private final ViProxy proxy;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong totalRequests = new AtomicLong();
+        private final AtomicLong totalEjections = new AtomicLong();
+        private volatile double latency = Double.NaN;
+        private volatile long ejectedUntil = 0;
+        private int consecutiveEjections = 0;
+
+        private Member(ViProxy proxy) {
+            this.proxy = proxy;
+        }
+
+        private boolean isAvailable(long now) {
+            return now >= this.ejectedUntil;
+        }
+
+        private synchronized void recordLatency(long latency) {
+            this.latency = Double.isNaN(this.latency) ? latency : this.latency + LATENCY_SMOOTHING * (latency - this.latency);
+            this.consecutiveEjections = 0;
+        }
+
+        private synchronized void eject(long ejectionTime) {
+            long now = System.currentTimeMillis();
+            if (!this.isAvailable(now)) return; // requests that were already in flight failing too
+            this.ejectedUntil = now + (ejectionTime << Math.min(this.consecutiveEjections, MAX_EJECTION_DOUBLINGS));
+            this.consecutiveEjections++;
+            this.totalEjections.incrementAndGet();
+        }
+
+        private synchronized void recover() {
+            this.ejectedUntil = 0;
+        }
+    }
+}
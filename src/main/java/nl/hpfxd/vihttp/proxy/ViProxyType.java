@@ -32,10 +32,17 @@ public enum ViProxyType {
     HTTP_CONNECT,
     /**
      * Uses the SOCKS4 protocol to open a socket to the host.
+     * The host is resolved locally and must have an IPv4 address.
      */
     SOCKS4,
+    /**
+     * Uses the SOCKS4a protocol to open a socket to the host.
+     * The host name is sent to the proxy, which resolves it.
+     */
+    SOCKS4A,
     /**
      * Uses the SOCKS5 protocol to open a socket to the host.
+     * The host name is sent to the proxy, which resolves it. IPv4 and IPv6 literals are sent as addresses.
      */
     SOCKS5
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncTest {
+    @Test
+    public void sendAsyncTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, "async " + path))) {
+            ViHttpClient client = new ViHttpClient()
+                    .enableNio()
+                    .setMaxConnectionsPerRoute(8)
+                    .setUserAgent("ViHttp Test");
+            List<CompletableFuture<ViHttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 256; i++) {
+                futures.add(client.get(server.url("/" + i)).sendAsync());
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("async /" + i, futures.get(i).get().getBody());
+            }
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void deadlineTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            Thread.sleep(2000);
+            return LocalHttpServer.response(200, "slow");
+        })) {
+            ViHttpClient client = new ViHttpClient().setUserAgent("ViHttp Test");
+            long start = System.currentTimeMillis();
+            AtomicReference<Thread> completedOn = new AtomicReference<>();
+            try {
+                client.get(server.url("/")).setDeadline(200).sendAsync()
+                        .whenComplete((response, error) -> completedOn.set(Thread.currentThread())).get();
+                fail("expected the deadline to be exceeded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof HttpException);
+            }
+            assertNotEquals("ViHttp Connection Timer", completedOn.get().getName()); // callbacks run on the executor
+            try {
+                client.get(server.url("/")).setDeadline(200).send();
+                fail("expected the deadline to be exceeded");
+            } catch (Exception e) {
+                assertTrue(e instanceof HttpException);
+            }
+            assertTrue(System.currentTimeMillis() - start < 1500);
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void cancelTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (path.equals("/slow")) Thread.sleep(2000);
+            return LocalHttpServer.response(200, "done");
+        })) {
+            ViHttpClient client = new ViHttpClient()
+                    .enableNio()
+                    .setMaxConnectionsPerRoute(1)
+                    .setUserAgent("ViHttp Test");
+            CompletableFuture<ViHttpResponse> slow = client.get(server.url("/slow")).sendAsync();
+            Thread.sleep(100);
+            assertTrue(slow.cancel(true));
+
+            // the cancelled exchange must free its slot for the next request
+            assertEquals("done", client.get(server.url("/fast")).sendAsync().get(1, TimeUnit.SECONDS).getBody());
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.cache.CacheStats;
+import nl.hpfxd.vihttp.cache.DiskCache;
+import nl.hpfxd.vihttp.cache.ResponseCache;
+import nl.hpfxd.vihttp.http.HttpRequestMethod;
+import nl.hpfxd.vihttp.http.ViHttpRequest;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String httpDate(long secondsFromNow) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(secondsFromNow));
+    }
+
+    @Test
+    public void freshnessTest() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            String value = path + " " + counter.incrementAndGet();
+            switch (path) {
+                case "/max-age": return LocalHttpServer.response(200, value, "Cache-Control: max-age=60", "Date: " + httpDate(0));
+                case "/no-store": return LocalHttpServer.response(200, value, "Cache-Control: no-store, max-age=60");
+                case "/expires": return LocalHttpServer.response(200, value, "Expires: " + httpDate(60), "Date: " + httpDate(0));
+                case "/expired": return LocalHttpServer.response(200, value, "Expires: " + httpDate(-60), "Date: " + httpDate(0));
+                case "/heuristic": return LocalHttpServer.response(200, value, "Last-Modified: " + httpDate(-3600), "Date: " + httpDate(0));
+                case "/old": return LocalHttpServer.response(200, value, "Cache-Control: max-age=60", "Age: 120");
+                default: return LocalHttpServer.response(200, value);
+            }
+        })) {
+            ResponseCache cache = new ResponseCache(1024 * 1024);
+            ViHttpClient client = new ViHttpClient().setCache(cache);
+
+            String first = client.get(server.url("/max-age")).send().getBody();
+            ViHttpResponse cached = client.get(server.url("/max-age")).send();
+            assertEquals(first, cached.getBody());
+            assertNotNull(cached.getHeader("Age"));
+            assertEquals(first, client.get(server.url("/max-age")).sendAsync().get().getBody());
+            assertEquals(client.get(server.url("/expires")).send().getBody(), client.get(server.url("/expires")).send().getBody());
+            assertEquals(client.get(server.url("/heuristic")).send().getBody(), client.get(server.url("/heuristic")).send().getBody());
+            int requests = server.getRequests();
+            assertEquals(3, requests);
+
+            for (String path : new String[] {"/no-store", "/expired", "/old", "/none"}) {
+                client.get(server.url(path)).send();
+                client.get(server.url(path)).send();
+                requests += 2;
+                assertEquals(path, requests, server.getRequests());
+            }
+
+            // requests can ask for fresher responses or allow stale ones
+            client.get(server.url("/max-age")).setHeader("Cache-Control", "no-cache").send();
+            client.get(server.url("/max-age")).setHeader("Cache-Control", "min-fresh=120").send();
+            assertEquals(requests + 2, server.getRequests());
+            client.get(server.url("/old")).setHeader("Cache-Control", "max-stale=3600").send(); // stored, but only served when stale responses are allowed
+            client.get(server.url("/old")).setHeader("Cache-Control", "max-stale").send();
+            assertEquals(requests + 2, server.getRequests());
+            assertEquals(504, client.get(server.url("/uncached")).setHeader("Cache-Control", "only-if-cached").send().getStatusCode());
+            client.get(server.url("/max-age")).setCache(null).send(); // bypassing the cache
+            assertEquals(requests + 3, server.getRequests());
+
+            CacheStats stats = cache.getStats();
+            assertEquals(6, stats.getHits());
+            assertTrue(stats.getHitRatio() > 0);
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void varyAndInvalidationTest() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, headers.get("x-lang") + " " + counter.incrementAndGet(), "Cache-Control: max-age=60", "Vary: X-Lang"))) {
+            ViHttpClient client = new ViHttpClient().setCache(new ResponseCache(1024 * 1024));
+            String english = client.get(server.url("/page")).setHeader("X-Lang", "en").send().getBody();
+            assertEquals(english, client.get(server.url("/page")).setHeader("x-lang", "en").send().getBody());
+            String dutch = client.get(server.url("/page")).setHeader("X-Lang", "nl").send().getBody();
+            assertTrue(dutch.startsWith("nl "));
+            assertEquals(2, server.getRequests());
+
+            client.request(HttpRequestMethod.POST, server.url("/page")).setBody("update").send();
+            assertEquals(3, server.getRequests());
+            client.get(server.url("/page")).setHeader("X-Lang", "nl").send(); // the POST made it stale
+            assertEquals(4, server.getRequests());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) large.append('x');
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, large.toString(), "Cache-Control: max-age=60"))) {
+            ResponseCache cache = new ResponseCache(5000); // room for two responses of about 2KB
+            ViHttpClient client = new ViHttpClient().setCache(cache);
+            client.get(server.url("/a")).send();
+            client.get(server.url("/b")).send();
+            client.get(server.url("/a")).send(); // makes /b the least recently used
+            client.get(server.url("/c")).send();
+            assertEquals(3, server.getRequests());
+            assertEquals(1, cache.getStats().getEvictions());
+            assertTrue(cache.getStats().getSize() <= 5000);
+
+            client.get(server.url("/a")).send();
+            client.get(server.url("/c")).send();
+            assertEquals(3, server.getRequests());
+            client.get(server.url("/b")).send();
+            assertEquals(4, server.getRequests());
+
+            // concurrent senders agree on the statistics
+            cache.clear();
+            CacheStats before = cache.getStats();
+            List<CompletableFuture<ViHttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) futures.add(client.get(server.url("/" + (i % 4))).sendAsync());
+            for (CompletableFuture<ViHttpResponse> future : futures) assertEquals(large.toString(), future.get().getBody());
+            CacheStats stats = cache.getStats();
+            assertEquals(200, stats.getHits() + stats.getMisses() - before.getHits() - before.getMisses());
+            assertTrue(stats.getEntries() <= 2);
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void revalidationTest() throws Exception {
+        String lastModified = httpDate(-3600);
+        AtomicInteger notModified = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (path.equals("/etag")) {
+                if ("\"v1\"".equals(headers.get("if-none-match"))) {
+                    notModified.incrementAndGet();
+                    // a 304 may describe the stored representation's length, but never has a body
+                    return ("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\nCache-Control: max-age=60\r\nX-Revalidated: yes\r\n"
+                            + "Content-Length: 7\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                }
+                return LocalHttpServer.response(200, "version", "ETag: \"v1\"", "Cache-Control: no-cache");
+            }
+            if (lastModified.equals(headers.get("if-modified-since"))) {
+                notModified.incrementAndGet();
+                return "HTTP/1.1 304 Not Modified\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            }
+            return LocalHttpServer.response(200, "dated", "Last-Modified: " + lastModified, "Cache-Control: max-age=0");
+        })) {
+            ResponseCache cache = new ResponseCache(1024 * 1024);
+            ViHttpClient client = new ViHttpClient().setCache(cache);
+            assertEquals("version", client.get(server.url("/etag")).send().getBody());
+
+            ViHttpRequest request = client.get(server.url("/etag"));
+            ViHttpResponse revalidated = request.send();
+            assertEquals(200, revalidated.getStatusCode());
+            assertEquals("version", revalidated.getBody());
+            assertEquals("yes", revalidated.getHeader("X-Revalidated"));
+            assertNull(request.getHeader("If-None-Match")); // the validators aren't left on the request
+            assertEquals(1, notModified.get());
+
+            // the 304 made the response fresh for a minute
+            assertEquals("version", client.get(server.url("/etag")).send().getBody());
+            assertEquals(2, server.getRequests());
+
+            assertEquals("dated", client.get(server.url("/dated")).send().getBody());
+            assertEquals("dated", client.get(server.url("/dated")).sendAsync().get().getBody());
+            assertEquals(2, notModified.get());
+
+            // a conditional request of the caller's own gets the 304
+            assertEquals(304, client.get(server.url("/etag")).setHeader("If-None-Match", "\"v1\"").send().getStatusCode());
+            assertEquals(2, cache.getStats().getRevalidations());
+            assertEquals(1, server.getConnections()); // bodyless responses kept the connection usable
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void bodylessResponseTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (method.equals("HEAD")) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            }
+            if (path.equals("/no-content")) {
+                return "HTTP/1.1 204 No Content\r\nContent-Length: 5\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            }
+            return ("HTTP/1.1 103 Early Hints\r\nLink: </style.css>; rel=preload\r\n\r\n"
+                    + "HTTP/1.1 100 Continue\r\n\r\n"
+                    + "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello").getBytes(StandardCharsets.US_ASCII);
+        })) {
+            for (ViHttpClient client : new ViHttpClient[] {new ViHttpClient(), new ViHttpClient().enableNio()}) {
+                for (int i = 0; i < 2; i++) {
+                    ViHttpResponse head = client.request(HttpRequestMethod.HEAD, server.url("/")).send();
+                    assertEquals(200, head.getStatusCode());
+                    assertEquals("5", head.getHeader("Content-Length"));
+                    assertEquals(204, client.get(server.url("/no-content")).send().getStatusCode());
+
+                    ViHttpResponse response = client.get(server.url("/")).send();
+                    assertEquals(200, response.getStatusCode());
+                    assertEquals("hello", response.getBody());
+                    assertFalse(response.hasHeader("Link"));
+                }
+                client.shutdown();
+            }
+            assertEquals(2, server.getConnections()); // one per client, reused for all of its requests
+        }
+    }
+
+    @Test
+    public void diskCacheTest() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 3000; i++) large.append((char) ('a' + i % 26));
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, path.startsWith("/large") ? large.toString() : path, "Cache-Control: max-age=60", "Date: " + httpDate(0)))) {
+            Path directory = folder.getRoot().toPath();
+            DiskCache disk = new DiskCache(directory, 16384, 4096);
+            ResponseCache cache = new ResponseCache(1024 * 1024).setDiskCache(disk);
+            ViHttpClient client = new ViHttpClient().setCache(cache);
+            client.get(server.url("/large")).send();
+            client.get(server.url("/small")).send();
+            assertEquals(2, disk.getEntryCount());
+            disk.close();
+
+            // a new process finds the responses on disk, and reads them from the mapped segment
+            disk = new DiskCache(directory, 16384, 4096);
+            assertEquals(2, disk.getEntryCount());
+            client.setCache(new ResponseCache(1024 * 1024).setDiskCache(disk));
+            ViHttpResponse response = client.get(server.url("/large")).send();
+            assertEquals(large.toString(), response.getBody());
+            ByteBuffer mapped = response.getBodyBuffer();
+            assertTrue(mapped.isDirect());
+            assertEquals(3000, mapped.remaining());
+            assertEquals("/small", client.get(server.url("/small")).send().getBody());
+            assertEquals(2, server.getRequests());
+
+            // the oldest segment is dropped once the cache is full, keeping the responses that were read
+            for (int i = 0; i < 8; i++) {
+                client.get(server.url("/large/" + i)).send();
+                client.get(server.url("/large")).send();
+            }
+            assertTrue(disk.getSize() <= 16384);
+            assertEquals(10, server.getRequests());
+            client.setCache(new ResponseCache(1024 * 1024).setDiskCache(disk)); // without the responses in memory
+            client.get(server.url("/large/0")).send();
+            assertEquals(11, server.getRequests());
+            int requests = server.getRequests();
+            disk.close();
+
+            // a torn record at the end of the journal is ignored
+            try (FileChannel journal = FileChannel.open(directory.resolve("journal"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                journal.write(ByteBuffer.wrap(new byte[] {0, 0, 1, 0, 42}));
+            }
+            disk = new DiskCache(directory, 16384, 4096);
+            assertTrue(disk.getEntryCount() > 0);
+            client.setCache(new ResponseCache(1024 * 1024).setDiskCache(disk));
+            client.get(server.url("/large")).send();
+            assertEquals(requests, server.getRequests());
+            disk.clear();
+            assertEquals(0, disk.getEntryCount());
+            disk.close();
+            client.shutdown();
+        }
+    }
+}
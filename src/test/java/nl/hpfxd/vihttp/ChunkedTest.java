@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.http.impl.ChunkedDecoder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkedTest {
+    private static final String CHUNKED_RESPONSE = "HTTP/1.1 200 OK\r\n"
+            + "Transfer-Encoding: chunked\r\n"
+            + "\r\n"
+            + "5;name=value\r\nhello\r\n"
+            + "1\r\n \r\n"
+            + "a\r\nchunked!!!\r\n"
+            + "0\r\n"
+            + "Checksum: abc\r\n"
+            + "\r\n";
+
+    @Test
+    public void decoderTest() throws Exception {
+        byte[] encoded = CHUNKED_RESPONSE.substring(CHUNKED_RESPONSE.indexOf("\r\n\r\n") + 4).concat("next").getBytes(StandardCharsets.US_ASCII);
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteBuffer out = ByteBuffer.allocate(64);
+        int i = 0;
+        for (; !decoder.isDone(); i++) decoder.decode(ByteBuffer.wrap(encoded, i, 1), out); // one byte at a time
+        assertEquals("hello chunked!!!", new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII));
+        assertEquals("abc", decoder.getTrailers().get("checksum"));
+        assertEquals("next", new String(encoded, i, encoded.length - i, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void chunkedResponseTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> CHUNKED_RESPONSE.getBytes(StandardCharsets.US_ASCII))) {
+            for (ViHttpClient client : new ViHttpClient[] { new ViHttpClient(), new ViHttpClient().enableNio() }) {
+                for (int i = 0; i < 3; i++) { // the connection stays usable after each body
+                    ViHttpResponse response = client.get(server.url("/")).send();
+                    assertEquals("hello chunked!!!", response.getBody());
+                    assertEquals("abc", response.getTrailers().get("Checksum"));
+                }
+
+                try (ViHttpResponse response = client.get(server.url("/")).enableStreaming().send()) {
+                    assertEquals("hello chunked!!!", response.getBody());
+                    assertEquals("abc", response.getTrailers().get("Checksum"));
+                }
+                client.shutdown();
+            }
+            assertEquals(2, server.getConnections());
+        }
+    }
+
+    @Test
+    public void compressedStreamingTest() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("hello compressed".getBytes(StandardCharsets.US_ASCII));
+        }
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + Integer.toHexString(compressed.size()) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        AtomicInteger connections = new AtomicInteger();
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread thread = new Thread(() -> { // sends the last chunk after the compressed data, as a server streaming it would
+                try (Socket socket = serverSocket.accept()) {
+                    connections.incrementAndGet();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                    OutputStream out = socket.getOutputStream();
+                    while (in.readLine() != null) {
+                        //noinspection StatementWithEmptyBody
+                        for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine());
+                        out.write(head);
+                        out.write(compressed.toByteArray());
+                        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                        Thread.sleep(50);
+                        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            ViHttpClient client = new ViHttpClient().enableCompressionScheme(HttpCompressionScheme.GZIP);
+            for (int i = 0; i < 3; i++) {
+                try (ViHttpResponse response = client.get("http://127.0.0.1:" + serverSocket.getLocalPort() + "/").setTimeout(2000).enableStreaming().send()) {
+                    assertEquals("hello compressed", response.getBody());
+                }
+            }
+            assertEquals(1, connections.get()); // the connection was reused after each body
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void chunkedRequestTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, headers.get("transfer-encoding") + " " + body.length))) {
+            ViHttpClient client = new ViHttpClient();
+            byte[] upload = new byte[100000];
+
+            ViHttpResponse response = client.post(server.url("/")).setBodyStream(new ByteArrayInputStream(upload)).send();
+            assertEquals("chunked 100000", response.getBody());
+
+            response = client.post(server.url("/")).setBodyStream(new ByteArrayInputStream(upload), 1000).send();
+            assertEquals("null 1000", response.getBody());
+            assertEquals(1, server.getConnections());
+            client.shutdown();
+        }
+    }
+}
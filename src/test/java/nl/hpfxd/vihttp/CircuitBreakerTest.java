@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.exception.CircuitOpenException;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.network.CircuitBreaker;
+import nl.hpfxd.vihttp.network.CircuitBreakerPolicy;
+import nl.hpfxd.vihttp.network.CircuitBreakerStats;
+import nl.hpfxd.vihttp.network.CircuitState;
+import nl.hpfxd.vihttp.network.Route;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+    private static CircuitBreakerStats stats(ViHttpClient client, LocalHttpServer server) {
+        return client.getConnectionManager().getCircuitBreakerStats().values().stream()
+                .filter(stats -> stats.getRoute().getPort() == server.getPort()).findFirst().orElse(null);
+    }
+
+    @Test
+    public void circuitBreakerTest() throws Exception {
+        AtomicBoolean healthy = new AtomicBoolean(false);
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(healthy.get() ? 200 : 500, ""));
+             LocalHttpServer other = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, ""))) {
+            CircuitBreakerPolicy policy = new CircuitBreakerPolicy().setWindow(4, 4).setOpenDuration(200).setHalfOpenCalls(2);
+            ViHttpClient client = new ViHttpClient().setCircuitBreakerPolicy(policy);
+            for (int i = 0; i < 4; i++) assertEquals(500, client.get(server.url("/")).send().getStatusCode());
+            assertEquals(CircuitState.OPEN, stats(client, server).getState());
+
+            // while open, requests fail without reaching the server
+            try {
+                client.get(server.url("/")).send();
+                fail();
+            } catch (Exception e) {
+                assertTrue(e instanceof CircuitOpenException);
+            }
+            try {
+                client.get(server.url("/")).sendAsync().get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CircuitOpenException);
+            }
+            assertEquals(4, server.getRequests());
+            assertEquals(2, stats(client, server).getTotalRejected());
+            assertEquals(200, client.get(other.url("/")).send().getStatusCode()); // other routes have their own circuit
+
+            // after the open duration, trial requests close the circuit once they succeed
+            Thread.sleep(250);
+            healthy.set(true);
+            assertEquals(200, client.get(server.url("/")).send().getStatusCode());
+            assertEquals(CircuitState.HALF_OPEN, stats(client, server).getState());
+            assertEquals(200, client.get(server.url("/")).send().getStatusCode());
+            assertEquals(CircuitState.CLOSED, stats(client, server).getState());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void slowCallTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (path.equals("/slow")) Thread.sleep(150);
+            return LocalHttpServer.response(200, "");
+        })) {
+            CircuitBreakerPolicy policy = new CircuitBreakerPolicy().setWindow(10, 4).setSlowCallThreshold(0.5, 100).setOpenDuration(60000);
+            ViHttpClient client = new ViHttpClient().setCircuitBreakerPolicy(policy);
+            client.get(server.url("/fast")).send();
+            client.get(server.url("/fast")).send();
+            client.get(server.url("/slow")).send();
+            assertEquals(CircuitState.CLOSED, stats(client, server).getState());
+            client.get(server.url("/slow")).sendAsync().get(); // half of the last four were slow
+            assertEquals(CircuitState.OPEN, stats(client, server).getState());
+            assertEquals(1, stats(client, server).getTotalOpened());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void generationTest() throws Exception {
+        Route route = Route.of(new ViHttpClient().get("http://127.0.0.1/"));
+        CircuitBreaker breaker = new CircuitBreaker(route, new CircuitBreakerPolicy().setWindow(2, 2).setOpenDuration(50).setHalfOpenCalls(1));
+        long leftover = breaker.acquire();
+        breaker.record(breaker.acquire(), 0, null, new IOException());
+        breaker.record(breaker.acquire(), 0, null, new IOException());
+        assertEquals(CircuitState.OPEN, breaker.getState());
+
+        Thread.sleep(60);
+        long trial = breaker.acquire();
+        assertEquals(CircuitState.HALF_OPEN, breaker.getState());
+
+        // a request sent while closed that finishes now is no trial, it neither reopens the circuit nor frees a trial
+        breaker.record(leftover, 0, null, new IOException());
+        assertEquals(CircuitState.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail();
+        } catch (CircuitOpenException ignored) {
+        }
+
+        breaker.record(trial, 0, new ViHttpResponse(200, Collections.emptyMap(), ""), null);
+        assertEquals(CircuitState.CLOSED, breaker.getState());
+    }
+}
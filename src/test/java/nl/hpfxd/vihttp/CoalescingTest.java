@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.HttpRequestMethod;
+import nl.hpfxd.vihttp.http.RequestCoalescer;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingTest {
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void coalescingTest() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        AtomicReference<CountDownLatch> gate = new AtomicReference<>(new CountDownLatch(1));
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            gate.get().await(5, TimeUnit.SECONDS);
+            return LocalHttpServer.response(200, path + " " + counter.incrementAndGet());
+        })) {
+            RequestCoalescer coalescer = new RequestCoalescer();
+            ViHttpClient client = new ViHttpClient().setCoalescer(coalescer);
+
+            List<ViHttpResponse> responses = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                Thread thread = new Thread(() -> {
+                    ViHttpResponse response = client.get(server.url("/popular")).send();
+                    synchronized (responses) {
+                        responses.add(response);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            await(() -> coalescer.getStats().getCoalesced() == 9);
+            gate.get().countDown();
+            for (Thread thread : threads) thread.join();
+            assertEquals(1, server.getRequests());
+            for (ViHttpResponse response : responses) assertSame(responses.get(0), response);
+            assertEquals(0, coalescer.getStats().getInFlight());
+
+            // requests for another user, with a body or without a coalescer are sent on their own
+            gate.set(new CountDownLatch(1));
+            CompletableFuture<ViHttpResponse> first = client.get(server.url("/popular")).sendAsync();
+            CompletableFuture<ViHttpResponse> other = client.get(server.url("/popular")).setHeader("Authorization", "Bearer other").sendAsync();
+            CompletableFuture<ViHttpResponse> post = client.request(HttpRequestMethod.POST, server.url("/popular")).setBody("x").sendAsync();
+            CompletableFuture<ViHttpResponse> uncoalesced = client.get(server.url("/popular")).setCoalescer(null).sendAsync();
+            CompletableFuture<ViHttpResponse> cancelled = client.get(server.url("/popular")).sendAsync();
+            CompletableFuture<ViHttpResponse> same = client.get(server.url("/popular")).sendAsync();
+            cancelled.cancel(true); // only stops waiting, the others still get the response
+            await(() -> server.getRequests() == 5);
+            gate.get().countDown();
+            assertSame(first.get(), same.get());
+            assertTrue(first.get() != other.get() && first.get() != uncoalesced.get());
+            assertEquals(200, post.get().getStatusCode());
+            assertEquals(5, server.getRequests());
+            assertEquals(11, coalescer.getStats().getCoalesced());
+            assertEquals(3, coalescer.getStats().getExchanges()); // requests that can't be coalesced aren't counted
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.dns.StaticResolver;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectTest {
+    /**
+     * Open a server that never accepts and fill its backlog, so connecting to it hangs like an unreachable address.
+     */
+    private static ServerSocket blackhole(int port, List<Socket> filler) throws Exception {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.2"), port), 1);
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(serverSocket.getLocalSocketAddress(), 200);
+                filler.add(socket);
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                return serverSocket;
+            }
+        }
+    }
+
+    @Test
+    public void unreachableAddressTest() throws Exception {
+        List<Socket> filler = new ArrayList<>();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, "ok"));
+             ServerSocket ignored = blackhole(Integer.parseInt(server.url("").split(":")[2]), filler)) {
+            ViHttpClient client = new ViHttpClient()
+                    .setResolver(new StaticResolver().add("eyeballs.test", "127.0.0.2", "127.0.0.1"))
+                    .setConnectTimeout(5000);
+            String url = server.url("/").replace("127.0.0.1", "eyeballs.test");
+
+            long start = System.currentTimeMillis();
+            assertEquals("ok", client.get(url).send().getBody());
+            assertTrue(System.currentTimeMillis() - start < 2000); // the second address was tried after a short delay
+            client.shutdown();
+        } finally {
+            for (Socket socket : filler) socket.close();
+        }
+    }
+
+    @Test
+    public void connectTimeoutTest() throws Exception {
+        List<Socket> filler = new ArrayList<>();
+        try (ServerSocket serverSocket = blackhole(0, filler)) {
+            ViHttpClient client = new ViHttpClient().setResolver(new StaticResolver().add("blackhole.test", "127.0.0.2"));
+            long start = System.currentTimeMillis();
+            try {
+                client.get("http://blackhole.test:" + serverSocket.getLocalPort() + "/").setConnectTimeout(300).send();
+                fail("Expected the connect to time out");
+            } catch (Exception e) {
+                assertTrue(e instanceof SocketTimeoutException);
+            }
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            client.shutdown();
+        } finally {
+            for (Socket socket : filler) socket.close();
+        }
+    }
+}
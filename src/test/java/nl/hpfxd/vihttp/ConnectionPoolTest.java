@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.network.PoolStats;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+    @Test
+    public void poolBoundsConnectionsTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            Thread.sleep(20);
+            return LocalHttpServer.response(200, "pooled");
+        })) {
+            ViHttpClient client = new ViHttpClient()
+                    .setMaxConnectionsPerRoute(4)
+                    .setUserAgent("ViHttp Test");
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            AtomicInteger ok = new AtomicInteger();
+            for (int i = 0; i < 64; i++) {
+                executor.execute(() -> {
+                    ViHttpResponse response = client.get(server.url("/")).send();
+                    if (response.getStatusCode() == 200 && "pooled".equals(response.getBody())) ok.incrementAndGet();
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertEquals(64, ok.get());
+            assertTrue("opened " + server.getConnections() + " connections", server.getConnections() <= 4);
+            PoolStats stats = client.getConnectionManager().getStats().values().iterator().next();
+            assertEquals(0, stats.getLeased());
+            assertEquals(64, stats.getTotalLeases());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void acquireTimeoutTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            Thread.sleep(500);
+            return LocalHttpServer.response(200, "slow");
+        })) {
+            ViHttpClient client = new ViHttpClient()
+                    .setMaxConnectionsPerRoute(1)
+                    .setConnectionAcquireTimeout(50)
+                    .setUserAgent("ViHttp Test");
+            Thread holder = new Thread(() -> client.get(server.url("/")).send());
+            holder.start();
+            Thread.sleep(100);
+            try {
+                client.get(server.url("/")).send();
+                fail("expected the acquire to time out");
+            } catch (Exception e) {
+                assertTrue(e.getMessage().startsWith("Timed out waiting for a connection"));
+            }
+            holder.join();
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.HedgingPolicy;
+import nl.hpfxd.vihttp.http.HedgingStats;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgingTest {
+    @Test
+    public void hedgingTest() throws Exception {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (!path.startsWith("/slow")) return LocalHttpServer.response(200, "fast");
+            if (!seen.add(path)) return LocalHttpServer.response(200, "fast"); // whichever copy arrives first is slow
+            Thread.sleep(3000);
+            return LocalHttpServer.response(200, "slow");
+        })) {
+            HedgingPolicy policy = new HedgingPolicy().setDelay(50);
+            ViHttpClient client = new ViHttpClient().setHedgingPolicy(policy);
+            AtomicInteger paths = new AtomicInteger();
+            for (ViHttpClient c : new ViHttpClient[] {client, new ViHttpClient().enableNio().setHedgingPolicy(policy)}) {
+                long start = System.currentTimeMillis();
+                assertEquals("fast", c.get(server.url("/slow/" + paths.incrementAndGet())).send().getBody());
+                assertTrue(System.currentTimeMillis() - start < 2500);
+                start = System.currentTimeMillis();
+                assertEquals("fast", c.get(server.url("/slow/" + paths.incrementAndGet())).sendAsync().get().getBody());
+                assertTrue(System.currentTimeMillis() - start < 2500);
+                assertEquals(200, c.get(server.url("/fast")).send().getStatusCode()); // the pool wasn't left with the aborted exchange
+                c.shutdown();
+            }
+            HedgingStats stats = policy.getStats();
+            assertEquals(6, stats.getRequests());
+            assertEquals(4, stats.getHedges()); // nothing answers within the delay, so every slow request was hedged
+            assertTrue(stats.getHedgeWins() <= 4);
+
+            // requests that aren't idempotent are never hedged
+            client = new ViHttpClient().setHedgingPolicy(policy);
+            assertEquals("slow", client.post(server.url("/slow/" + paths.incrementAndGet())).setBody("x").send().getBody());
+            assertEquals(4, policy.getStats().getHedges());
+
+            // with a percentile, the delay follows the latency of recent responses
+            policy.setPercentile(0.9);
+            for (int i = 0; i < 20; i++) client.get(server.url("/fast")).send();
+            assertTrue(policy.getCurrentDelay() < 50);
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.impl.http2.Header;
+import nl.hpfxd.vihttp.http.impl.http2.HpackDecoder;
+import nl.hpfxd.vihttp.http.impl.http2.HpackEncoder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HpackTest {
+    // RFC 7541 appendix C.4, requests with Huffman coding sharing one dynamic table
+    private static final List<List<Header>> REQUESTS = Arrays.asList(
+            Arrays.asList(new Header(":method", "GET"), new Header(":scheme", "http"), new Header(":path", "/"),
+                    new Header(":authority", "www.example.com")),
+            Arrays.asList(new Header(":method", "GET"), new Header(":scheme", "http"), new Header(":path", "/"),
+                    new Header(":authority", "www.example.com"), new Header("cache-control", "no-cache")),
+            Arrays.asList(new Header(":method", "GET"), new Header(":scheme", "https"), new Header(":path", "/index.html"),
+                    new Header(":authority", "www.example.com"), new Header("custom-key", "custom-value")));
+    private static final String[] ENCODED = {
+            "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+            "828684be5886a8eb10649cbf",
+            "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"
+    };
+
+    @Test
+    public void decodeTest() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        for (int i = 0; i < ENCODED.length; i++) {
+            assertEquals(REQUESTS.get(i), decoder.decode(hex(ENCODED[i])));
+        }
+    }
+
+    @Test
+    public void encodeTest() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(4096);
+        for (int i = 0; i < ENCODED.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(REQUESTS.get(i), out);
+            assertArrayEquals(hex(ENCODED[i]), out.toByteArray());
+            assertEquals(REQUESTS.get(i), decoder.decode(out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void tableSizeUpdateTest() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(4096);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(REQUESTS.get(0), out);
+        decoder.decode(out.toByteArray());
+
+        // shrinking and growing again between blocks evicts the table, so both sizes have to be signalled
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(4096);
+        out = new ByteArrayOutputStream();
+        encoder.encode(REQUESTS.get(1), out);
+        byte[] encoded = out.toByteArray();
+        assertArrayEquals(hex("203fe11f"), Arrays.copyOf(encoded, 4));
+        assertEquals(REQUESTS.get(1), decoder.decode(encoded));
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.HttpVersion;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Http2Test {
+    @Test
+    public void priorKnowledgeTest() throws Exception {
+        try (LocalHttp2Server server = new LocalHttp2Server((method, path, headers, body) -> {
+            Thread.sleep(path.length() % 7 * 10); // answer out of order
+            return method + " " + path + " " + new String(body, StandardCharsets.UTF_8);
+        })) {
+            ViHttpClient client = new ViHttpClient()
+                    .setHttpVersion(HttpVersion.HTTP_2_PRIOR_KNOWLEDGE)
+                    .setUserAgent("ViHttp Test");
+
+            ViHttpResponse response = client.post(server.url("/post")).setBody("hello").send();
+            assertEquals(200, response.getStatusCode());
+            assertEquals("POST /post hello", response.getBody());
+            assertEquals("16", response.getHeader("Content-Length"));
+
+            List<CompletableFuture<ViHttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) futures.add(client.get(server.url("/multiplexed")).setQueryParam("i", String.valueOf(i)).sendAsync());
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("GET /multiplexed?i=" + i + " ", futures.get(i).get().getBody());
+            }
+
+            assertEquals(1, server.getConnections());
+            assertTrue("only " + server.getMaxConcurrentStreams() + " concurrent streams", server.getMaxConcurrentStreams() > 1);
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.impl.http2.Header;
+import nl.hpfxd.vihttp.http.impl.http2.HpackDecoder;
+import nl.hpfxd.vihttp.http.impl.http2.HpackEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal cleartext HTTP/2 server (h2c with prior knowledge) for tests.
+ * Every request is answered on its own thread, so responses can complete out of order.
+ */
+public class LocalHttp2Server implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "LocalHttp2Server Handler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger maxConcurrentStreams = new AtomicInteger();
+
+    public LocalHttp2Server(Handler handler) throws IOException {
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        this.handler = handler;
+        Thread thread = new Thread(this::accept, "LocalHttp2Server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + this.serverSocket.getLocalPort() + path;
+    }
+
+    public int getConnections() {
+        return this.connections.get();
+    }
+
+    /**
+     * Get the most streams that were open at once on a connection.
+     */
+    public int getMaxConcurrentStreams() {
+        return this.maxConcurrentStreams.get();
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                this.connections.incrementAndGet();
+                Thread thread = new Thread(() -> this.serve(socket), "LocalHttp2Server Connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            byte[] preface = new byte[24];
+            in.readFully(preface);
+            if (!new String(preface, StandardCharsets.ISO_8859_1).equals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")) return;
+
+            HpackDecoder decoder = new HpackDecoder(4096);
+            HpackEncoder encoder = new HpackEncoder();
+            Map<Integer, Map<String, String>> requests = new HashMap<>();
+            Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+            AtomicInteger open = new AtomicInteger();
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+
+            while (true) {
+                int length = (in.readUnsignedShort() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & 0x7FFFFFFF;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                boolean endStream = (flags & 0x1) != 0;
+                if (type == 0x1) { // HEADERS, assumed to fit in one frame without padding or priority
+                    Map<String, String> headers = new HashMap<>();
+                    for (Header header : decoder.decode(payload)) headers.put(header.getName(), header.getValue());
+                    requests.put(streamId, headers);
+                    bodies.put(streamId, new ByteArrayOutputStream());
+                    this.maxConcurrentStreams.accumulateAndGet(open.incrementAndGet(), Math::max);
+                } else if (type == 0x0) { // DATA
+                    bodies.get(streamId).write(payload, 0, length);
+                } else if (type == 0x4 && (flags & 0x1) == 0) { // SETTINGS
+                    writeFrame(out, 0x4, 0x1, 0, new byte[0]);
+                    continue;
+                } else if (type == 0x7) { // GOAWAY
+                    return;
+                } else {
+                    continue;
+                }
+
+                if (endStream && (type == 0x0 || type == 0x1)) {
+                    Map<String, String> headers = requests.remove(streamId);
+                    byte[] body = bodies.remove(streamId).toByteArray();
+                    this.executor.execute(() -> {
+                        try {
+                            byte[] response = this.handler.handle(headers.get(":method"), headers.get(":path"), headers, body)
+                                    .getBytes(StandardCharsets.UTF_8);
+                            synchronized (out) {
+                                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                                List<Header> responseHeaders = Arrays.asList(new Header(":status", "200"),
+                                        new Header("content-length", String.valueOf(response.length)));
+                                encoder.encode(responseHeaders, block);
+                                writeFrame(out, 0x1, 0x4, streamId, block.toByteArray());
+                                for (int offset = 0; offset < response.length || offset == 0; offset += 16384) { // no flow control, bodies must fit the window
+                                    int frameLength = Math.min(response.length - offset, 16384);
+                                    writeFrame(out, 0x0, offset + frameLength == response.length ? 0x1 : 0, streamId, Arrays.copyOfRange(response, offset, offset + frameLength));
+                                }
+                                open.decrementAndGet();
+                            }
+                        } catch (Exception ignored) {
+                        }
+                    });
+                }
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+        synchronized (out) {
+            out.write(new byte[] {
+                    (byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length, (byte) type, (byte) flags,
+                    (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId
+            });
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+        this.executor.shutdownNow();
+    }
+
+    public interface Handler {
+        String handle(String method, String path, Map<String, String> headers, byte[] body) throws Exception;
+    }
+}
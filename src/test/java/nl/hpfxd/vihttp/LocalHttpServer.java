@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal keep-alive HTTP/1.1 server for tests that shouldn't depend on the internet.
+ */
+public class LocalHttpServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final boolean ssl;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    public LocalHttpServer(Handler handler) throws IOException {
+        this(handler, null);
+    }
+
+    /**
+     * @param handler the handler
+     * @param sslContext the context to serve HTTPS with, or {@code null} for plain HTTP
+     */
+    public LocalHttpServer(Handler handler, SSLContext sslContext) throws IOException {
+        this.serverSocket = sslContext != null
+                ? sslContext.getServerSocketFactory().createServerSocket(0, 128, InetAddress.getLoopbackAddress())
+                : new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        this.ssl = sslContext != null;
+        this.handler = handler;
+        Thread thread = new Thread(this::accept, "LocalHttpServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public String url(String path) {
+        return (this.ssl ? "https" : "http") + "://127.0.0.1:" + this.serverSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Create a TLS context with the self-signed localhost certificate, for both the server and clients that trust it.
+     * @return the context
+     */
+    public static SSLContext localhostSSLContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = LocalHttpServer.class.getResourceAsStream("/localhost.jks")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "changeit".toCharArray());
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    public int getConnections() {
+        return this.connections.get();
+    }
+
+    public int getRequests() {
+        return this.requests.get();
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                this.connections.incrementAndGet();
+                Thread thread = new Thread(() -> this.serve(socket), "LocalHttpServer Connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) return;
+                Map<String, String> headers = new HashMap<>();
+                for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+                    int pos = line.indexOf(':');
+                    headers.put(line.substring(0, pos).trim().toLowerCase(), line.substring(pos + 1).trim());
+                }
+                byte[] body;
+                if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                    ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+                    for (int size = Integer.parseInt(readLine(in), 16); size > 0; size = Integer.parseInt(readLine(in), 16)) {
+                        chunks.write(readFully(in, size));
+                        readLine(in);
+                    }
+                    //noinspection StatementWithEmptyBody
+                    for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)); // trailers
+                    body = chunks.toByteArray();
+                } else {
+                    body = readFully(in, headers.containsKey("content-length") ? Integer.parseInt(headers.get("content-length")) : 0);
+                }
+                this.requests.incrementAndGet();
+                String[] parts = requestLine.split(" ");
+                byte[] response = this.handler.handle(parts[0], parts[1], headers, body);
+                if (response == null) { // drop the connection gracefully, so responses already sent aren't reset
+                    s.shutdownOutput();
+                    //noinspection StatementWithEmptyBody
+                    while (in.read() != -1);
+                    return;
+                }
+                out.write(response);
+                out.flush();
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+    }
+
+    public static byte[] response(int status, String body, String... headers) {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status).append(" OK\r\n");
+        for (String header : headers) sb.append(header).append("\r\n");
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        sb.append("Content-Length: ").append(bodyBytes.length).append("\r\n\r\n");
+        byte[] head = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[head.length + bodyBytes.length];
+        System.arraycopy(head, 0, out, 0, head.length);
+        System.arraycopy(bodyBytes, 0, out, head.length, bodyBytes.length);
+        return out;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < bytes.length; ) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n == -1) throw new IOException("Unexpected end of stream.");
+            read += n;
+        }
+        return bytes;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') baos.write(c);
+        }
+        if (c == -1 && baos.size() == 0) return null;
+        return baos.toString("UTF-8");
+    }
+
+    public interface Handler {
+        byte[] handle(String method, String path, Map<String, String> headers, byte[] body) throws Exception;
+    }
+}
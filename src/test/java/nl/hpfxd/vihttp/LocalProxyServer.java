@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP CONNECT, SOCKS4(a) and SOCKS5 proxy for tests, which optionally requires credentials.
+ */
+public class LocalProxyServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final String username;
+    private final String password;
+    private final String credentials;
+    private final AtomicInteger tunnels = new AtomicInteger();
+    private final List<String> targets = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param username the username to require, or {@code null} to allow anyone
+     * @param password the password to require
+     */
+    public LocalProxyServer(String username, String password) throws IOException {
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        this.username = username;
+        this.password = password;
+        this.credentials = username != null
+                ? "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8))
+                : null;
+        Thread thread = new Thread(this::accept, "LocalProxyServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the amount of tunnels that were established
+     */
+    public int getTunnels() {
+        return this.tunnels.get();
+    }
+
+    /**
+     * @return the targets that were requested, as the client named them
+     */
+    public List<String> getTargets() {
+        return this.targets;
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                Thread thread = new Thread(() -> this.tunnel(socket), "LocalProxyServer Connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void tunnel(Socket client) {
+        try (Socket c = client) {
+            PushbackInputStream in = new PushbackInputStream(c.getInputStream());
+            int version = in.read();
+            in.unread(version);
+            if (version == 0x04) {
+                this.socks4(c, new DataInputStream(in));
+            } else if (version == 0x05) {
+                this.socks5(c, new DataInputStream(in));
+            } else {
+                this.connect(c, in);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void connect(Socket c, InputStream in) throws IOException {
+        OutputStream out = c.getOutputStream();
+        String[] requestLine = readLine(in).split(" ");
+        Map<String, String> headers = new HashMap<>();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        if (!requestLine[0].equals("CONNECT")) {
+            out.write("HTTP/1.1 405 Method Not Allowed\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (this.credentials != null && !this.credentials.equals(headers.get("proxy-authorization"))) {
+            out.write("HTTP/1.1 407 Proxy Authentication Required\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+
+        int colon = requestLine[1].lastIndexOf(':');
+        try (Socket target = this.open(requestLine[1].substring(0, colon), Integer.parseInt(requestLine[1].substring(colon + 1)))) {
+            out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            this.relay(c, target);
+        }
+    }
+
+    private void socks4(Socket c, DataInputStream in) throws IOException {
+        OutputStream out = c.getOutputStream();
+        in.readUnsignedByte(); // VN
+        in.readUnsignedByte(); // CD
+        int port = in.readUnsignedShort();
+        byte[] address = new byte[4];
+        in.readFully(address);
+        String userId = readNullTerminated(in);
+        String host = address[0] == 0 && address[1] == 0 && address[2] == 0 && address[3] != 0
+                ? readNullTerminated(in) // SOCKS4a
+                : InetAddress.getByAddress(address).getHostAddress();
+        if (this.username != null && !this.username.equals(userId)) {
+            out.write(new byte[] {0x00, 0x5d, 0, 0, 0, 0, 0, 0});
+            return;
+        }
+
+        Socket target;
+        try {
+            target = this.open(host, port);
+        } catch (IOException e) {
+            out.write(new byte[] {0x00, 0x5b, 0, 0, 0, 0, 0, 0});
+            return;
+        }
+        try (Socket t = target) {
+            out.write(new byte[] {0x00, 0x5a, 0, 0, 0, 0, 0, 0});
+            this.relay(c, t);
+        }
+    }
+
+    private void socks5(Socket c, DataInputStream in) throws IOException {
+        OutputStream out = c.getOutputStream();
+        in.readUnsignedByte(); // VER
+        byte[] methods = new byte[in.readUnsignedByte()];
+        in.readFully(methods);
+        if (this.username != null) {
+            out.write(new byte[] {0x05, 0x02});
+            in.readUnsignedByte(); // VER
+            byte[] username = new byte[in.readUnsignedByte()];
+            in.readFully(username);
+            byte[] password = new byte[in.readUnsignedByte()];
+            in.readFully(password);
+            boolean valid = this.username.equals(new String(username, StandardCharsets.UTF_8))
+                    && this.password.equals(new String(password, StandardCharsets.UTF_8));
+            out.write(new byte[] {0x01, (byte) (valid ? 0x00 : 0x01)});
+            if (!valid) return;
+        } else {
+            out.write(new byte[] {0x05, 0x00});
+        }
+
+        in.readUnsignedByte(); // VER
+        in.readUnsignedByte(); // CMD
+        in.readUnsignedByte(); // RSV
+        int type = in.readUnsignedByte();
+        String host;
+        if (type == 0x03) {
+            byte[] domain = new byte[in.readUnsignedByte()];
+            in.readFully(domain);
+            host = new String(domain, StandardCharsets.US_ASCII);
+        } else {
+            byte[] address = new byte[type == 0x04 ? 16 : 4];
+            in.readFully(address);
+            host = InetAddress.getByAddress(address).getHostAddress();
+        }
+        int port = in.readUnsignedShort();
+
+        // bound to a domain name, so clients have to read a variable-length reply
+        byte[] bound = "proxy.test".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        Socket target;
+        try {
+            target = this.open(host, port);
+        } catch (IOException e) {
+            out.write(new byte[] {0x05, 0x05, 0x00, 0x01, 0, 0, 0, 0, 0, 0}); // connection refused
+            return;
+        }
+        try (Socket t = target) {
+            reply.write(new byte[] {0x05, 0x00, 0x00, 0x03, (byte) bound.length});
+            reply.write(bound);
+            reply.write(new byte[] {0x1f, (byte) 0x90});
+            reply.writeTo(out);
+            this.relay(c, t);
+        }
+    }
+
+    /**
+     * Connect to a target, trying all of its addresses.
+     */
+    private Socket open(String host, int port) throws IOException {
+        this.targets.add(host);
+        IOException failure = null;
+        for (InetAddress address : InetAddress.getAllByName(host)) {
+            Socket target = new Socket();
+            try {
+                target.connect(new InetSocketAddress(address, port), 5000);
+                this.tunnels.incrementAndGet();
+                return target;
+            } catch (IOException e) {
+                target.close();
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private void relay(Socket client, Socket target) {
+        Thread upstream = new Thread(() -> pipe(client, target), "LocalProxyServer Tunnel");
+        upstream.setDaemon(true);
+        upstream.start();
+        pipe(target, client);
+    }
+
+    private static void pipe(Socket from, Socket to) {
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) out.write(buffer, 0, n);
+            to.shutdownOutput();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static String readNullTerminated(InputStream in) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (int c = in.read(); c != 0; c = in.read()) {
+            if (c == -1) throw new IOException("Unexpected end of stream.");
+            value.write(c);
+        }
+        return value.toString("US-ASCII");
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) throw new IOException("Unexpected end of stream.");
+            if (c != '\r') line.write(c);
+        }
+        return line.toString("UTF-8");
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+    }
+}
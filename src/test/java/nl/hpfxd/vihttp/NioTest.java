@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.exception.HttpException;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioTest {
+    @Test
+    public void nioTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, "nio " + path))) {
+            ViHttpClient client = new ViHttpClient()
+                    .enableNio()
+                    .setIoThreads(2)
+                    .setMaxConnectionsPerRoute(4)
+                    .setUserAgent("ViHttp Test");
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            AtomicInteger ok = new AtomicInteger();
+            for (int i = 0; i < 128; i++) {
+                String path = "/" + i;
+                executor.execute(() -> {
+                    ViHttpResponse response = client.get(server.url(path)).send();
+                    if (response.getStatusCode() == 200 && ("nio " + path).equals(response.getBody())) ok.incrementAndGet();
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertEquals(128, ok.get());
+            assertTrue(server.getConnections() <= 4);
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void badResponseTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (path.equals("/ok")) return LocalHttpServer.response(200, "ok");
+            String length = path.equals("/invalid") ? "12abc" : "99999999999999";
+            return ("HTTP/1.1 200 OK\r\nContent-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        })) {
+            ViHttpClient client = new ViHttpClient().enableNio().setIoThreads(1).setTimeout(2000);
+            for (String path : new String[] { "/invalid", "/huge" }) {
+                try {
+                    client.get(server.url(path)).send();
+                    fail();
+                } catch (Exception e) {
+                    assertTrue(e instanceof HttpException);
+                }
+            }
+            // the I/O thread survived
+            assertEquals("ok", client.get(server.url("/ok")).send().getBody());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void noTimeoutTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            Thread.sleep(50);
+            return LocalHttpServer.response(200, "ok");
+        })) {
+            ViHttpClient client = new ViHttpClient().enableNio().setTimeout(0); // waits forever, like the blocking path
+            assertEquals("ok", client.get(server.url("/")).send().getBody());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void largeTlsHeadTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, "cookie " + headers.get("cookie").length()), LocalHttpServer.localhostSSLContext())) {
+            ViHttpClient client = new ViHttpClient().enableNio().setSSLContext(LocalHttpServer.localhostSSLContext()).setTimeout(5000);
+            StringBuilder cookie = new StringBuilder();
+            for (int i = 0; i < 20000; i++) cookie.append('a');
+            // the head takes more than one TLS record, followed by an empty body
+            assertEquals("cookie 20000", client.post(server.url("/")).setHeader("Cookie", cookie.toString()).setBody("").send().getBody());
+            client.shutdown();
+        }
+    }
+}
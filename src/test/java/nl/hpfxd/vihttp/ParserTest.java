@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.HttpCompressionScheme;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.http.impl.Http1HeadParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParserTest {
+    private static final byte[] HEAD = ("HTTP/1.1 404 Not Found\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "X-Folded: first\r\n"
+            + "\tsecond\r\n"
+            + "X-Spaces:   padded \t\r\n"
+            + "Content-Length: 4\r\n"
+            + "\r\n"
+            + "body").getBytes(StandardCharsets.ISO_8859_1);
+
+    @Test
+    public void headTest() throws Exception {
+        for (int split = 1; split < HEAD.length; split++) { // every way of splitting the head in two
+            Http1HeadParser parser = new Http1HeadParser();
+            int consumed = parser.parse(HEAD, 0, split);
+            if (!parser.isDone()) consumed += parser.parse(HEAD, consumed, HEAD.length - consumed);
+
+            assertTrue(parser.isDone());
+            assertEquals(HEAD.length - 4, consumed); // the body is left
+            assertEquals(404, parser.getStatusCode());
+            assertEquals("text/plain", parser.getHeaders().get("content-type"));
+            assertEquals("first second", parser.getHeaders().get("X-Folded"));
+            assertEquals("padded", parser.getHeaders().get("X-Spaces"));
+            assertEquals("4", parser.getHeaders().get("Content-Length"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedStatusLineTest() throws Exception {
+        byte[] head = "HTTQ/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        new Http1HeadParser().parse(head, 0, head.length);
+    }
+
+    @Test
+    public void compressedBodyTest() throws Exception {
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) ('a' + i % 26);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, requestBody) -> {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            response.write(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + compressed.size() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            compressed.writeTo(response);
+            return response.toByteArray();
+        })) {
+            ViHttpClient client = new ViHttpClient().enableCompressionScheme(HttpCompressionScheme.GZIP);
+            for (int i = 0; i < 3; i++) {
+                ViHttpResponse response = client.get(server.url("/")).send();
+                assertEquals(new String(body, StandardCharsets.UTF_8), response.getBody());
+            }
+            assertEquals(1, server.getConnections());
+            client.shutdown();
+        }
+    }
+}
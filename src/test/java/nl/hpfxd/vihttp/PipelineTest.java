@@ -24,9 +24,11 @@ import org.junit.Test;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class PipelineTest {
     @Test
@@ -54,4 +56,65 @@ public class PipelineTest {
         executor.awaitTermination(30, TimeUnit.SECONDS);
         System.out.println("pipeline total took " + (System.currentTimeMillis() - t1) + "ms (average " + (total.get() / 256) + "ms)");
     }
+
+    @Test
+    public void pipelineOrderTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                LocalHttpServer.response(200, path))) {
+            ViHttpClient client = new ViHttpClient()
+                    .enablePipelining()
+                    .setMaxPipelineDepth(8)
+                    .setMaxConnectionsPerRoute(2)
+                    .setUserAgent("ViHttp Test");
+            ExecutorService executor = Executors.newFixedThreadPool(32);
+            AtomicInteger matched = new AtomicInteger();
+            for (int i = 0; i < 512; i++) {
+                String path = "/" + i;
+                executor.execute(() -> {
+                    if (path.equals(client.get(server.url(path)).send().getBody())) matched.incrementAndGet();
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertEquals(512, matched.get());
+            assertTrue(server.getConnections() <= 2);
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void pipelineServerCloseTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (path.equals("/drop")) return null; // close the connection without answering
+            Thread.sleep(5);
+            return LocalHttpServer.response(200, path);
+        })) {
+            ViHttpClient client = new ViHttpClient()
+                    .enablePipelining()
+                    .setMaxPipelineDepth(16)
+                    .setMaxConnectionsPerRoute(1)
+                    .setUserAgent("ViHttp Test");
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            AtomicInteger matched = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            for (int i = 0; i < 64; i++) {
+                String path = i == 8 ? "/drop" : "/" + i;
+                executor.execute(() -> {
+                    try {
+                        if (path.equals(client.get(server.url(path)).send().getBody())) matched.incrementAndGet();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+            // only the dropped request fails, the ones queued behind it are sent again
+            assertEquals(1, failed.get());
+            assertEquals(63, matched.get());
+            client.shutdown();
+        }
+    }
 }
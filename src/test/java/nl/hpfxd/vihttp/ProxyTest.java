@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.dns.StaticResolver;
+import nl.hpfxd.vihttp.exception.ProxyException;
+import nl.hpfxd.vihttp.network.PoolStats;
+import nl.hpfxd.vihttp.network.Route;
+import nl.hpfxd.vihttp.proxy.ProxyStats;
+import nl.hpfxd.vihttp.proxy.ViProxy;
+import nl.hpfxd.vihttp.proxy.ViProxyPool;
+import nl.hpfxd.vihttp.proxy.ViProxySelection;
+import nl.hpfxd.vihttp.proxy.ViProxyType;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProxyTest {
+    private static ViProxy proxy(LocalProxyServer server, String username, String password) {
+        return new ViProxy(ViProxyType.HTTP_CONNECT, "127.0.0.1", server.getPort(), username == null ? null : new ViAuthentication(username, password));
+    }
+
+    @Test
+    public void tunnelReuseTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, "tunneled"));
+             LocalProxyServer first = new LocalProxyServer("user", "secret");
+             LocalProxyServer second = new LocalProxyServer(null, null)) {
+            ViHttpClient client = new ViHttpClient();
+            for (int i = 0; i < 3; i++) { // equal proxies share their tunnels, even as different instances
+                assertEquals("tunneled", client.get(server.url("/")).setProxy(proxy(first, "user", "secret")).send().getBody());
+                assertEquals("tunneled", client.get(server.url("/")).setProxy(proxy(second, "user", "secret")).send().getBody());
+            }
+            assertEquals(1, first.getTunnels());
+            assertEquals(1, second.getTunnels());
+            assertEquals(2, server.getConnections());
+
+            try { // other credentials are another route, so a tunnel authenticated with ours isn't reused
+                client.get(server.url("/")).setProxy(proxy(first, "user", "wrong")).send();
+                fail("Expected the proxy to reject the credentials");
+            } catch (Exception e) {
+                assertTrue(e instanceof ProxyException);
+            }
+            assertEquals(1, first.getTunnels());
+
+            assertFalse(client.getConnectionManager().getStats().keySet().stream()
+                    .anyMatch(route -> route.toString().contains("secret"))); // routes don't leak credentials
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void prewarmTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, "warm"));
+             LocalProxyServer proxy = new LocalProxyServer("user", "secret")) {
+            ViHttpClient client = new ViHttpClient().setProxy(proxy(proxy, "user", "secret"));
+            assertEquals(3, (int) client.get(server.url("/")).prewarm(3).get());
+            assertEquals(0, (int) client.get(server.url("/")).prewarm(2).get()); // already warm
+            assertEquals(3, proxy.getTunnels());
+
+            Map<Route, PoolStats> stats = client.getConnectionManager().getStats();
+            PoolStats pool = stats.values().iterator().next();
+            assertEquals(3, pool.getOpen());
+            assertEquals(3, pool.getIdle());
+
+            for (int i = 0; i < 5; i++) assertEquals("warm", client.get(server.url("/")).send().getBody());
+            assertEquals(3, proxy.getTunnels()); // no request had to open a tunnel
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void proxyPoolTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, "pooled"));
+             LocalProxyServer first = new LocalProxyServer(null, null);
+             LocalProxyServer second = new LocalProxyServer(null, null);
+             LocalProxyServer rejecting = new LocalProxyServer("user", "secret")) {
+            ViProxyPool pool = new ViProxyPool(proxy(first, null, null), proxy(second, null, null));
+            ViHttpClient client = new ViHttpClient().disableConnectionReuse().setProxy(pool);
+            for (int i = 0; i < 4; i++) assertEquals("pooled", client.get(server.url("/")).send().getBody());
+            assertEquals(2, first.getTunnels()); // taken in turns
+            assertEquals(2, second.getTunnels());
+
+            pool.setSelection(ViProxySelection.LEAST_IN_FLIGHT);
+            for (int i = 0; i < 4; i++) assertEquals("pooled", client.get(server.url("/")).sendAsync().get().getBody());
+            pool.setSelection(ViProxySelection.LATENCY_WEIGHTED);
+            for (int i = 0; i < 4; i++) assertEquals("pooled", client.get(server.url("/")).send().getBody());
+            assertEquals(12, first.getTunnels() + second.getTunnels());
+            for (ProxyStats stats : pool.getStats()) {
+                assertEquals(0, stats.getInFlight());
+                assertTrue(stats.getLatency() >= 0);
+            }
+
+            ViProxy wrongCredentials = proxy(rejecting, "user", "wrong");
+            pool.setSelection(ViProxySelection.ROUND_ROBIN).remove(proxy(second, null, null)).add(wrongCredentials);
+            int failures = 0;
+            for (int i = 0; i < 6; i++) {
+                try {
+                    assertEquals("pooled", client.get(server.url("/")).send().getBody());
+                } catch (Exception e) {
+                    assertTrue(e instanceof ProxyException);
+                    failures++;
+                }
+            }
+            assertEquals(1, failures); // the rejecting proxy was ejected after its first failure
+            assertTrue(pool.getStats().stream().anyMatch(stats -> stats.getProxy().equals(wrongCredentials) && stats.isEjected()));
+
+            pool.remove(proxy(first, null, null));
+            try {
+                client.get(server.url("/")).send();
+                fail("Expected every proxy in the pool to be ejected");
+            } catch (Exception e) {
+                assertTrue(e instanceof ProxyException);
+            }
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void proxyHealthCheckTest() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, "healthy"));
+             LocalProxyServer proxy = new LocalProxyServer(null, null)) {
+            ViProxy healthy = proxy(proxy, null, null);
+            ViProxy unreachable = new ViProxy(ViProxyType.HTTP_CONNECT, "127.0.0.1", closedPort);
+            ViProxyPool pool = new ViProxyPool(healthy, unreachable).enableHealthChecks(server.url("/health"), 60000);
+            pool.checkHealth().get();
+
+            List<ProxyStats> stats = pool.getStats();
+            assertFalse(stats.get(0).isEjected());
+            assertTrue(stats.get(1).isEjected());
+            assertEquals(1, stats.get(1).getTotalEjections());
+            for (int i = 0; i < 3; i++) assertEquals(healthy, pool.select());
+            pool.disableHealthChecks();
+        }
+    }
+
+    @Test
+    public void socksTest() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, headers.get("host")));
+             LocalProxyServer proxy = new LocalProxyServer("user", "secret")) {
+            int port = server.getPort();
+            ViAuthentication credentials = new ViAuthentication("user", "secret");
+            // only IP literals and the hosts added here resolve locally, so names must be resolved by the proxy
+            ViHttpClient client = new ViHttpClient().setResolver(new StaticResolver().add("v4.test", "127.0.0.1").add("v6.test", "::1"));
+
+            ViProxy socks5 = new ViProxy(ViProxyType.SOCKS5, "127.0.0.1", proxy.getPort(), credentials);
+            assertEquals("localhost", client.get("http://localhost:" + port + "/").setProxy(socks5).send().getBody());
+            ViProxy socks4a = new ViProxy(ViProxyType.SOCKS4A, "127.0.0.1", proxy.getPort(), credentials);
+            assertEquals("localhost", client.get("http://localhost:" + port + "/").setProxy(socks4a).send().getBody());
+            ViProxy socks4 = new ViProxy(ViProxyType.SOCKS4, "127.0.0.1", proxy.getPort(), credentials);
+            assertEquals("v4.test", client.get("http://v4.test:" + port + "/").setProxy(socks4).send().getBody());
+            assertEquals(3, proxy.getTunnels());
+            assertEquals(Arrays.asList("localhost", "localhost", "127.0.0.1"), proxy.getTargets());
+
+            try {
+                client.get("http://v6.test:" + port + "/").setProxy(socks4).send();
+                fail("Expected SOCKS4 to refuse a host without an IPv4 address");
+            } catch (Exception e) {
+                assertTrue(e instanceof ProxyException);
+            }
+            try {
+                client.get("http://[::1]:" + closedPort + "/").setProxy(socks5).send();
+                fail("Expected the proxy to fail to connect");
+            } catch (Exception e) {
+                assertTrue(e instanceof ProxyException);
+                assertTrue(e.getMessage().contains("connection refused"));
+            }
+            assertEquals("0:0:0:0:0:0:0:1", proxy.getTargets().get(3)); // sent as an IPv6 address
+            try {
+                client.get("http://localhost:" + port + "/").setProxy(new ViProxy(ViProxyType.SOCKS5, "127.0.0.1", proxy.getPort(), new ViAuthentication("user", "wrong"))).send();
+                fail("Expected the proxy to reject the credentials");
+            } catch (Exception e) {
+                assertTrue(e instanceof ProxyException);
+            }
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.exception.RateLimitException;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.network.QueueFullBehavior;
+import nl.hpfxd.vihttp.network.RateLimitPolicy;
+import nl.hpfxd.vihttp.network.RateLimitStats;
+import nl.hpfxd.vihttp.network.Route;
+import nl.hpfxd.vihttp.network.RouteLimiter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimitTest {
+    private static RateLimitStats stats(ViHttpClient client, LocalHttpServer server) {
+        return client.getConnectionManager().getRateLimitStats().values().stream()
+                .filter(stats -> stats.getRoute().getPort() == server.getPort()).findFirst().orElse(null);
+    }
+
+    @Test
+    public void concurrencyLimitTest() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            active.decrementAndGet();
+            return LocalHttpServer.response(200, "");
+        })) {
+            ViHttpClient client = new ViHttpClient().setRateLimitPolicy(new RateLimitPolicy().setMaxConcurrency(2));
+            List<CompletableFuture<ViHttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) futures.add(client.get(server.url("/")).sendAsync());
+            for (CompletableFuture<ViHttpResponse> future : futures) assertEquals(200, future.get().getStatusCode());
+            assertEquals(2, maxActive.get());
+            assertEquals(2, server.getConnections()); // waiting requests don't hold a connection
+
+            RateLimitStats stats = stats(client, server);
+            assertEquals(0, stats.getInFlight());
+            assertEquals(0, stats.getQueued());
+            assertEquals(8, stats.getTotalAcquired());
+            assertEquals(6, stats.getTotalQueued());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void rateLimitTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, ""))) {
+            ViHttpClient client = new ViHttpClient().setRateLimitPolicy(new RateLimitPolicy().setRate(20, 2));
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 6; i++) assertEquals(200, client.get(server.url("/")).send().getStatusCode());
+            assertTrue(System.currentTimeMillis() - start >= 190); // a burst of two, then one every 50ms
+
+            // waiting counts towards the deadline
+            client.setRateLimitPolicy(new RateLimitPolicy().setRate(1, 1));
+            client.get(server.url("/")).send();
+            try {
+                client.get(server.url("/")).setDeadline(100).send();
+                fail();
+            } catch (Exception e) {
+                assertTrue(e.getMessage().contains("deadline"));
+            }
+            assertEquals(7, server.getRequests());
+            assertEquals(0, stats(client, server).getQueued());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void queueFullTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            Thread.sleep(100);
+            return LocalHttpServer.response(200, "");
+        })) {
+            ViHttpClient client = new ViHttpClient()
+                    .setRateLimitPolicy(new RateLimitPolicy().setMaxConcurrency(1).setQueue(1, QueueFullBehavior.FAIL));
+            CompletableFuture<ViHttpResponse> first = client.get(server.url("/")).sendAsync();
+            CompletableFuture<ViHttpResponse> second = client.get(server.url("/")).sendAsync();
+            try {
+                client.get(server.url("/")).send(); // the queue is full
+                fail();
+            } catch (Exception e) {
+                assertTrue(e instanceof RateLimitException);
+            }
+            assertEquals(200, first.get().getStatusCode());
+            assertEquals(200, second.get().getStatusCode());
+            assertEquals(1, stats(client, server).getTotalRejected());
+
+            client.setRateLimitPolicy(new RateLimitPolicy().setMaxConcurrency(1).setQueue(1, QueueFullBehavior.SHED));
+            first = client.get(server.url("/")).sendAsync();
+            second = client.get(server.url("/")).sendAsync();
+            CompletableFuture<ViHttpResponse> third = client.get(server.url("/")).sendAsync(); // sheds the second
+            try {
+                second.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RateLimitException);
+            }
+            assertEquals(200, first.get().getStatusCode());
+            assertEquals(200, third.get().getStatusCode());
+            assertEquals(1, stats(client, server).getTotalShed());
+            assertEquals(4, server.getRequests());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void adaptiveConcurrencyTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            if (path.equals("/overloaded")) return LocalHttpServer.response(503, "");
+            Thread.sleep(path.equals("/slow") ? 150 : 20);
+            return LocalHttpServer.response(200, "");
+        })) {
+            ViHttpClient client = new ViHttpClient().setRateLimitPolicy(new RateLimitPolicy().setAdaptiveConcurrency(1, 16));
+            for (int i = 0; i < 10; i++) {
+                List<CompletableFuture<ViHttpResponse>> futures = new ArrayList<>();
+                for (int j = 0; j < 4; j++) futures.add(client.get(server.url("/")).sendAsync());
+                for (CompletableFuture<ViHttpResponse> future : futures) assertEquals(200, future.get().getStatusCode());
+            }
+            int grown = stats(client, server).getLimit();
+            assertTrue(grown > 2); // grew while requests waited for it
+
+            // requests much slower than usual mean the host is overloaded
+            for (int i = 0; i < 3; i++) client.get(server.url("/slow")).send();
+            int slowed = stats(client, server).getLimit();
+            assertTrue(slowed < grown);
+
+            for (int i = 0; i < 30; i++) assertEquals(503, client.get(server.url("/overloaded")).send().getStatusCode());
+            assertEquals(1, stats(client, server).getLimit());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void minRttTest() throws Exception {
+        ViHttpClient client = new ViHttpClient();
+        RouteLimiter limiter = new RouteLimiter(client.getConnectionManager(), Route.of(client.get("http://127.0.0.1/")),
+                new RateLimitPolicy().setAdaptiveConcurrency(1, 16));
+        ViHttpResponse ok = new ViHttpResponse(200, Collections.emptyMap(), "");
+        ViHttpResponse overloaded = new ViHttpResponse(503, Collections.emptyMap(), "");
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire().get();
+            limiter.release(100, ok, null);
+        }
+
+        // failures and rejections come back fast, which mustn't become the round trip time the route is held to
+        for (int i = 0; i < 300; i++) {
+            limiter.acquire().get();
+            if (i % 2 == 0) {
+                limiter.release(1, overloaded, null);
+            } else {
+                limiter.release(1, null, new IOException("Connection refused"));
+            }
+        }
+        assertEquals(1, limiter.getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire().get();
+            limiter.release(100, ok, null);
+        }
+        assertTrue(limiter.getLimit() > 1); // recovered once the route answers as usual again
+    }
+
+    @Test
+    public void queueContentionTest() throws Exception {
+        ViHttpClient client = new ViHttpClient();
+        RouteLimiter limiter = new RouteLimiter(client.getConnectionManager(), Route.of(client.get("http://127.0.0.1/")),
+                new RateLimitPolicy().setMaxConcurrency(1).setQueue(4, QueueFullBehavior.FAIL));
+        List<CompletableFuture<Void>> permits = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                CompletableFuture<Void> permit = limiter.acquire();
+                synchronized (permits) {
+                    permits.add(permit);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+
+        // the queue didn't grow past its size while all requests arrived at once
+        assertEquals(1, permits.stream().filter(permit -> permit.isDone() && !permit.isCompletedExceptionally()).count());
+        assertEquals(4, permits.stream().filter(permit -> !permit.isDone()).count());
+        assertEquals(11, limiter.getStats().getTotalRejected());
+        client.shutdown();
+    }
+}
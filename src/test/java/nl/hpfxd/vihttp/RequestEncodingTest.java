@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestEncodingTest {
+    @Test
+    public void framingTest() throws Exception {
+        for (boolean nio : new boolean[] { false, true }) {
+            try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                CompletableFuture<String> received = new CompletableFuture<>();
+                Thread thread = new Thread(() -> {
+                    try (Socket socket = serverSocket.accept()) {
+                        InputStream in = socket.getInputStream();
+                        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+                        for (int i = 0; i < 2; i++) { // read exactly the head and body, so anything extra would corrupt the next request
+                            ByteArrayOutputStream head = new ByteArrayOutputStream();
+                            while (!head.toString("UTF-8").endsWith("\r\n\r\n")) head.write(in.read());
+                            requests.write(head.toByteArray());
+                            byte[] body = new byte[4];
+                            for (int read = 0; read < body.length; ) read += in.read(body, read, body.length - read);
+                            requests.write(body);
+                            socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                        }
+                        received.complete(requests.toString("UTF-8"));
+                    } catch (Exception e) {
+                        received.completeExceptionally(e);
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+
+                ViHttpClient client = new ViHttpClient();
+                if (nio) client.enableNio();
+                String url = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/path";
+                client.post(url).setQueryParam("q", "a b").setHeader("X-Test", "1").setBody("body").send();
+                client.post(url).setQueryParam("q", "a b").setHeader("X-Test", "2").setBody("body").send();
+
+                String requests = received.get(5, TimeUnit.SECONDS);
+                String[] split = requests.split("(?<=body)");
+                assertEquals(2, split.length);
+                for (int i = 0; i < split.length; i++) {
+                    String request = split[i];
+                    assertTrue(request.startsWith("POST /path?q=a+b HTTP/1.1\r\n"));
+                    assertTrue(request.contains("\r\nX-Test: " + (i + 1) + "\r\n"));
+                    assertTrue(request.endsWith("\r\nContent-Length: 4\r\n\r\nbody"));
+                    assertEquals(request.split("\n").length, request.split("\r\n").length); // no bare LF
+                }
+                client.shutdown();
+            }
+        }
+    }
+}
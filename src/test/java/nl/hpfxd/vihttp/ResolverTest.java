@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.dns.CachingResolver;
+import nl.hpfxd.vihttp.dns.Resolver;
+import nl.hpfxd.vihttp.dns.StaticResolver;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ResolverTest {
+    @Test
+    public void cacheTest() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        Resolver counting = host -> {
+            lookups.incrementAndGet();
+            if (host.equals("missing.test")) throw new UnknownHostException(host);
+            return Collections.singletonList(InetAddress.getByAddress(host, new byte[] { 10, 0, 0, (byte) lookups.get() }));
+        };
+        CachingResolver resolver = new CachingResolver(counting).setTtl(400).setNegativeTtl(60000);
+
+        assertEquals("10.0.0.1", resolver.resolve("cached.test").get(0).getHostAddress());
+        assertEquals("10.0.0.1", resolver.resolve("CACHED.test").get(0).getHostAddress());
+        assertEquals(1, lookups.get());
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("missing.test");
+                fail("Expected an UnknownHostException");
+            } catch (UnknownHostException expected) {
+            }
+        }
+        assertEquals(2, lookups.get()); // the failure was cached
+
+        Thread.sleep(320); // past three quarters of the TTL, so the next use refreshes in the background
+        assertEquals("10.0.0.1", resolver.resolve("cached.test").get(0).getHostAddress());
+        for (long start = System.currentTimeMillis(); lookups.get() < 3 && System.currentTimeMillis() - start < 5000; ) Thread.sleep(10);
+        Thread.sleep(50);
+        assertEquals("10.0.0.3", resolver.resolve("cached.test").get(0).getHostAddress());
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void hostsFileTest() throws Exception {
+        StaticResolver resolver = StaticResolver.parseHosts(new StringReader(""
+                + "# comment\n"
+                + "127.0.0.1 localhost local.test # trailing comment\n"
+                + "::1\tlocalhost\n"), null);
+
+        assertEquals(2, resolver.resolve("localhost").size());
+        assertEquals("0:0:0:0:0:0:0:1", resolver.resolve("localhost").get(1).getHostAddress());
+        assertEquals("127.0.0.1", resolver.resolve("Local.Test").get(0).getHostAddress());
+        assertEquals("192.168.0.1", resolver.resolve("192.168.0.1").get(0).getHostAddress());
+        try {
+            resolver.resolve("unknown.test");
+            fail("Expected an UnknownHostException");
+        } catch (UnknownHostException expected) {
+        }
+    }
+
+    @Test
+    public void clientResolverTest() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, headers.get("host")))) {
+            ViHttpClient client = new ViHttpClient().setResolver(new StaticResolver().add("example.invalid", "127.0.0.1"));
+            String url = server.url("/").replace("127.0.0.1", "example.invalid");
+            assertEquals("example.invalid", client.get(url).send().getBody());
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.exception.ConnectionClosedException;
+import nl.hpfxd.vihttp.http.RetryPolicy;
+import nl.hpfxd.vihttp.http.RetryStats;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryTest {
+    @Test
+    public void staleConnectionTest() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) ->
+                counter.incrementAndGet() % 2 == 0 ? null : LocalHttpServer.response(200, "ok"))) { // every other request finds the connection closed
+            ViHttpClient client = new ViHttpClient();
+            assertEquals("ok", client.get(server.url("/")).send().getBody());
+            assertEquals("ok", client.get(server.url("/")).send().getBody()); // sent again on a new connection
+            assertEquals(2, server.getConnections());
+
+            try {
+                client.post(server.url("/")).setBody("x").send(); // not idempotent, so it may have been processed
+                fail();
+            } catch (Exception e) {
+                assertTrue(e instanceof ConnectionClosedException);
+            }
+            assertEquals(4, server.getRequests());
+            assertEquals("ok", client.post(server.url("/")).setBody("x").setHeader("Idempotency-Key", "1").send().getBody());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void retryPolicyTest() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> {
+            int n = counter.incrementAndGet();
+            switch (path) {
+                case "/flaky": return n % 3 == 0 ? LocalHttpServer.response(200, "ok") : LocalHttpServer.response(503, "unavailable");
+                case "/later": return LocalHttpServer.response(503, "unavailable", "Retry-After: 3600");
+                default: return LocalHttpServer.response(200, "ok");
+            }
+        })) {
+            RetryPolicy policy = new RetryPolicy().setMaxRetries(3).setBackoff(1, 20);
+            ViHttpClient client = new ViHttpClient().setRetryPolicy(policy);
+            assertEquals(200, client.get(server.url("/flaky")).send().getStatusCode());
+            assertEquals(3, server.getRequests());
+            assertEquals(200, client.get(server.url("/flaky")).sendAsync().get().getStatusCode());
+            assertEquals(6, server.getRequests());
+            assertEquals(503, client.post(server.url("/flaky")).setBody("x").send().getStatusCode()); // not idempotent
+            assertEquals(503, client.get(server.url("/later")).send().getStatusCode()); // asks to wait longer than the maximum backoff
+            assertEquals(8, server.getRequests());
+
+            RetryStats stats = policy.getStats();
+            assertEquals(4, stats.getRequests());
+            assertEquals(4, stats.getRetries());
+
+            // requests that never reached the server are retried whatever their method
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            try {
+                client.post("http://127.0.0.1:" + port + "/").setBody("x").sendAsync().get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ConnectException);
+            }
+            assertEquals(7, policy.getStats().getRetries());
+
+            // an empty budget stops retries
+            policy.setBudget(0, 0);
+            counter.set(0);
+            assertEquals(503, client.get(server.url("/flaky")).send().getStatusCode());
+            assertTrue(policy.getStats().getBudgetExhausted() > 0);
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.http.HttpVersion;
+import nl.hpfxd.vihttp.http.ViHttpResponse;
+import nl.hpfxd.vihttp.network.PoolStats;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingTest {
+    private static final int BODY_LENGTH = 4 * 1024 * 1024;
+
+    @Test
+    public void streamingTest() throws Exception {
+        String body = new String(new char[BODY_LENGTH]).replace('\0', 'x');
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, requestBody) -> LocalHttpServer.response(200, body))) {
+            ViHttpClient client = new ViHttpClient().setUserAgent("ViHttp Test");
+
+            try (ViHttpResponse response = client.get(server.url("/")).enableStreaming().send()) {
+                assertTrue(response.isStreaming());
+                assertEquals(1, getStats(client).getLeased()); // held until the body is consumed
+
+                long read = 0;
+                InputStream in = response.getBodyStream();
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n != -1; n = in.read(buffer)) read += n;
+                assertEquals(BODY_LENGTH, read);
+                assertEquals(0, getStats(client).getLeased());
+            }
+
+            // the fully read connection is reused, a body closed early closes its connection
+            ViHttpResponse partial = client.get(server.url("/")).enableStreaming().send();
+            ReadableByteChannel channel = partial.getBodyChannel();
+            assertTrue(channel.read(ByteBuffer.allocate(1024)) > 0);
+            partial.close();
+            assertEquals(0, getStats(client).getLeased());
+            assertEquals(0, getStats(client).getOpen());
+            assertEquals(1, server.getConnections());
+
+            assertEquals(BODY_LENGTH, client.get(server.url("/")).enableStreaming().send().getBody().length());
+            assertEquals(2, server.getConnections());
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void http2StreamingTest() throws Exception {
+        String body = new String(new char[BODY_LENGTH]).replace('\0', 'x');
+        try (LocalHttp2Server server = new LocalHttp2Server((method, path, headers, requestBody) -> body)) {
+            ViHttpClient client = new ViHttpClient()
+                    .setHttpVersion(HttpVersion.HTTP_2_PRIOR_KNOWLEDGE)
+                    .setUserAgent("ViHttp Test");
+
+            ViHttpResponse partial = client.get(server.url("/")).enableStreaming().send();
+            assertTrue(partial.getBodyStream().read() != -1);
+            partial.close(); // resets the stream, but keeps the connection
+
+            try (ViHttpResponse response = client.get(server.url("/")).enableStreaming().send()) {
+                long read = 0;
+                InputStream in = response.getBodyStream();
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n != -1; n = in.read(buffer)) read += n;
+                assertEquals(BODY_LENGTH, read);
+            }
+            assertEquals(0, getStats(client).getLeased());
+            assertEquals(1, server.getConnections());
+            client.shutdown();
+        }
+    }
+
+    private static PoolStats getStats(ViHttpClient client) {
+        return client.getConnectionManager().getStats().values().iterator().next();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020 Nathan M.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package nl.hpfxd.vihttp;
+
+import nl.hpfxd.vihttp.network.TlsStats;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TlsTest {
+    @Test
+    public void sessionResumptionTest() throws Exception {
+        SSLContext context = LocalHttpServer.localhostSSLContext();
+        try (LocalHttpServer server = new LocalHttpServer((method, path, headers, body) -> LocalHttpServer.response(200, "secure"), context)) {
+            for (boolean nio : new boolean[] { false, true }) {
+                ViHttpClient client = new ViHttpClient()
+                        .setSSLContext(LocalHttpServer.localhostSSLContext()) // a fresh session cache
+                        .disableConnectionReuse(); // every request does a handshake
+                if (nio) client.enableNio();
+                for (int i = 0; i < 4; i++) {
+                    assertEquals("secure", client.get(server.url("/")).send().getBody());
+                }
+
+                TlsStats stats = client.getConnectionManager().getTlsStats();
+                assertEquals(4, stats.getFullHandshakes() + stats.getResumedHandshakes());
+                assertEquals(1, stats.getFullHandshakes()); // only the first connection negotiated a new session
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void sessionCacheTest() throws Exception {
+        ViHttpClient client = new ViHttpClient().setTlsSessionCacheSize(16).setTlsSessionTimeout(60);
+        assertEquals(16, client.getSSLContext().getClientSessionContext().getSessionCacheSize());
+        assertEquals(60, client.getSSLContext().getClientSessionContext().getSessionTimeout());
+        assertTrue(client.getSSLContext() != SSLContext.getDefault()); // clients don't share their session cache
+        client.shutdown();
+    }
+}